@@ -0,0 +1,166 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.gradle.api.artifacts.ModuleVersionIdentifier;
+import org.gradle.api.artifacts.ResolvedArtifact;
+import org.gradle.api.artifacts.ResolvedDependency;
+import org.gradle.api.artifacts.ResolvedModuleVersion;
+import org.gradle.api.internal.artifacts.DefaultModuleVersionIdentifier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks flattening a resolved dependency graph with {@link FlattenedDependencies} on synthetic graphs.
+ *
+ * <p>{@code "random"} is a DAG where each module depends on a few later modules, like a typical library graph.
+ * {@code "chain"} is a single deep path, the worst case for a recursive traversal.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FlattenedDependenciesBenchmark {
+    @Param({ "100", "1000", "10000" })
+    public int modules;
+
+    @Param({ "random", "chain" })
+    public String shape;
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(42);
+        final ArrayList<SyntheticDependency> nodes = new ArrayList<>(this.modules);
+        for (int i = 0; i < this.modules; i++) {
+            nodes.add(new SyntheticDependency("org.example.group" + (i % 50), "module" + i, "1.0." + i));
+        }
+        for (int i = 0; i < this.modules - 1; i++) {
+            if (this.shape.equals("chain")) {
+                nodes.get(i).children.add(nodes.get(i + 1));
+            } else {
+                final int fanOut = 1 + random.nextInt(4);
+                for (int j = 0; j < fanOut; j++) {
+                    nodes.get(i).children.add(nodes.get(i + 1 + random.nextInt(this.modules - i - 1)));
+                }
+            }
+        }
+
+        final LinkedHashSet<ResolvedDependency> roots = new LinkedHashSet<>();
+        for (int i = 0; i < Math.min(10, this.modules); i++) {
+            roots.add(nodes.get(i));
+            if (this.shape.equals("chain")) {
+                break;
+            }
+        }
+        this.firstLevel = roots;
+    }
+
+    @Benchmark
+    public FlattenedDependencies flatten() {
+        return FlattenedDependencies.build(this.firstLevel);
+    }
+
+    private Set<ResolvedDependency> firstLevel;
+
+    private static final class SyntheticDependency implements ResolvedDependency {
+        SyntheticDependency(final String group, final String name, final String version) {
+            final ModuleVersionIdentifier id = DefaultModuleVersionIdentifier.newId(group, name, version);
+            this.module = () -> id;
+            this.children = new LinkedHashSet<>();
+        }
+
+        @Override
+        public String getName() {
+            return this.module.getId().toString();
+        }
+
+        @Override
+        public String getModuleGroup() {
+            return this.module.getId().getGroup();
+        }
+
+        @Override
+        public String getModuleName() {
+            return this.module.getId().getName();
+        }
+
+        @Override
+        public String getModuleVersion() {
+            return this.module.getId().getVersion();
+        }
+
+        @Override
+        public String getConfiguration() {
+            return "default";
+        }
+
+        @Override
+        public ResolvedModuleVersion getModule() {
+            return this.module;
+        }
+
+        @Override
+        public Set<ResolvedDependency> getChildren() {
+            return this.children;
+        }
+
+        @Override
+        public Set<ResolvedDependency> getParents() {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public Set<ResolvedArtifact> getModuleArtifacts() {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public Set<ResolvedArtifact> getAllModuleArtifacts() {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public Set<ResolvedArtifact> getParentArtifacts(final ResolvedDependency parent) {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public Set<ResolvedArtifact> getArtifacts(final ResolvedDependency parent) {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public Set<ResolvedArtifact> getAllArtifacts(final ResolvedDependency parent) {
+            return Collections.emptySet();
+        }
+
+        private final ResolvedModuleVersion module;
+        private final Set<ResolvedDependency> children;
+    }
+}
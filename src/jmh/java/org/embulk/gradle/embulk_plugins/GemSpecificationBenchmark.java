@@ -0,0 +1,86 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks rendering a gemspec with thousands of files, as Ruby for {@code gem build} and as YAML for
+ * {@code metadata.gz}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GemSpecificationBenchmark {
+    @Param({ "100", "1000", "10000" })
+    public int files;
+
+    @Setup
+    public void setup() {
+        final ArrayList<String> fileList = new ArrayList<>(this.files);
+        for (int i = 0; i < this.files; i++) {
+            fileList.add("classpath/library-" + i + "-1.0." + i + ".jar");
+        }
+        this.specification = GemSpecification.builder()
+                .name("embulk-input-example")
+                .version("0.1.0")
+                .authors(Arrays.asList("Somebody Somewhere"))
+                .summary("Example input plugin for Embulk")
+                .description("An example input plugin for Embulk, with \"quotes\" and \\backslashes\\.")
+                .email(Arrays.asList("somebody@example.com"))
+                .homepage("https://example.com")
+                .licenses(Arrays.asList("Apache-2.0"))
+                .metadata(Collections.singletonMap("source_code_uri", "https://example.com/source"))
+                .files(fileList)
+                .date(Instant.ofEpochSecond(315619200L))
+                .build();
+    }
+
+    @Benchmark
+    public String dumpRuby() {
+        final StringWriter out = new StringWriter();
+        try (final PrintWriter writer = new PrintWriter(out)) {
+            this.specification.dumpRuby(writer);
+        }
+        return out.toString();
+    }
+
+    @Benchmark
+    public String dumpYaml() {
+        final StringWriter out = new StringWriter();
+        try (final PrintWriter writer = new PrintWriter(out)) {
+            this.specification.dumpYaml(writer);
+        }
+        return out.toString();
+    }
+
+    private GemSpecification specification;
+}
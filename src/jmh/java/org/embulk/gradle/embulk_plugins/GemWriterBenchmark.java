@@ -0,0 +1,139 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Benchmarks assembling a gem in-process with {@link GemWriter} from JAR files of configurable counts and sizes.
+ *
+ * <p>The JAR files are real ZIP archives of semi-compressible entries so that the compression of {@code data.tar.gz}
+ * sees already-deflated data as it does with real dependencies.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class GemWriterBenchmark {
+    @Param({ "10", "100" })
+    public int jarCount;
+
+    @Param({ "64", "1024" })
+    public int jarSizeKiB;
+
+    @Param({ "fastest", "smallest" })
+    public String compression;
+
+    @Param({ "1" })
+    public int compressionThreads;
+
+    @Setup
+    public void setup() throws IOException {
+        this.directory = Files.createTempDirectory("gem-writer-benchmark");
+        final Random random = new Random(42);
+        this.files = new ArrayList<>();
+        for (int i = 0; i < this.jarCount; i++) {
+            final String file = "classpath/library-" + i + ".jar";
+            final Path jarPath = this.directory.resolve(file);
+            Files.createDirectories(jarPath.getParent());
+            writeJar(jarPath, this.jarSizeKiB * 1024L, random);
+            this.files.add(file);
+        }
+        this.specification = GemSpecification.builder()
+                .name("embulk-input-example")
+                .version("0.1.0")
+                .authors(Arrays.asList("Somebody Somewhere"))
+                .summary("Example input plugin for Embulk")
+                .files(this.files)
+                .build();
+        this.gemPath = this.directory.resolve("embulk-input-example-0.1.0-java.gem");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (final Stream<Path> paths = Files.walk(this.directory)) {
+            for (final Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        try (final GemWriter writer = GemWriter.open(
+                this.gemPath, MTIME, GemCompression.of(this.compression), this.compressionThreads)) {
+            writer.addContents(tar -> {
+                for (final String file : this.files) {
+                    final Path path = this.directory.resolve(file);
+                    try (final InputStream in = Files.newInputStream(path)) {
+                        tar.addFile(file, 0644, MTIME, Files.size(path), in);
+                    }
+                }
+            });
+            writer.addMetadata(this.specification);
+        }
+        return Files.size(this.gemPath);
+    }
+
+    /**
+     * Writes a JAR file of about the size, with entries of a few bytes repeated randomly as class files would be.
+     */
+    private static void writeJar(final Path jarPath, final long size, final Random random) throws IOException {
+        final byte[] content = new byte[16 * 1024];
+        try (final OutputStream out = Files.newOutputStream(jarPath);
+                final ZipOutputStream zip = new ZipOutputStream(out)) {
+            int entry = 0;
+            while (Files.size(jarPath) < size) {
+                for (int i = 0; i < content.length; i++) {
+                    content[i] = (byte) random.nextInt(random.nextBoolean() ? 16 : 256);
+                }
+                zip.putNextEntry(new ZipEntry("org/example/Class" + (entry++) + ".class"));
+                zip.write(content);
+                zip.closeEntry();
+                zip.flush();
+            }
+        }
+    }
+
+    private static final long MTIME = 315619200L;
+
+    private Path directory;
+    private List<String> files;
+    private GemSpecification specification;
+    private Path gemPath;
+}
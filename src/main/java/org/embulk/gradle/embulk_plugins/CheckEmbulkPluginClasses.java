@@ -0,0 +1,316 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.inject.Inject;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.Project;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.TaskAction;
+
+/**
+ * A Gradle task to find duplicate classes and split packages in the classpath of an Embulk plugin:
+ * {@code "checkEmbulkPluginClasses"}.
+ *
+ * <p>It scans the classes in the JAR files of the gem's {@code classpath/}, which are {@code "embulkPluginRuntime"}
+ * and the main JAR file, and in the JAR files of {@code "compileOnly"}, which represent Embulk's core. It reports:
+ *
+ * <ul>
+ * <li>classes in more than one JAR file of the plugin, with the same bytes or with different bytes,
+ * <li>classes of the plugin which are also in {@code "compileOnly"}, and
+ * <li>packages split across more than one JAR file, including JAR files of {@code "compileOnly"}.
+ * </ul>
+ *
+ * <p>It complements {@code "checkEmbulkPluginDependencies"}, which compares only module coordinates, for shaded
+ * copies of libraries. The JAR files are scanned in parallel only from their central directories. The report is
+ * written into {@code build/reports/embulk/classes.txt}.
+ *
+ * <p>It is not a part of {@code "check"} by default. Run it explicitly, or make {@code "check"} depend on it.
+ *
+ * <pre>{@code checkEmbulkPluginClasses {
+ *   failOnConflicts = true  // Fails the build if anything is found. false by default.
+ * }
+ *
+ * check.dependsOn checkEmbulkPluginClasses  // To check it as a part of "check".
+ * }</pre>
+ */
+class CheckEmbulkPluginClasses extends DefaultTask {
+    @Inject
+    public CheckEmbulkPluginClasses() {
+        super();
+
+        final Project project = this.getProject();
+        final ObjectFactory objectFactory = project.getObjects();
+        this.runtimeClasspath = objectFactory.fileCollection();
+        this.compileOnlyClasspath = objectFactory.fileCollection();
+        this.failOnConflicts = objectFactory.property(Boolean.class);
+        this.failOnConflicts.set(false);
+        this.reportFile = objectFactory.fileProperty();
+        this.reportFile.set(project.getLayout().getBuildDirectory().file("reports/embulk/classes.txt"));
+    }
+
+    /**
+     * Returns the JAR files to be in {@code classpath/} of the gem.
+     */
+    @InputFiles
+    @PathSensitive(PathSensitivity.NAME_ONLY)
+    public ConfigurableFileCollection getRuntimeClasspath() {
+        return this.runtimeClasspath;
+    }
+
+    /**
+     * Returns the JAR files of {@code "compileOnly"}, which are provided by Embulk's core at runtime.
+     */
+    @InputFiles
+    @PathSensitive(PathSensitivity.NAME_ONLY)
+    public ConfigurableFileCollection getCompileOnlyClasspath() {
+        return this.compileOnlyClasspath;
+    }
+
+    /**
+     * Property to configure whether to fail the build if duplicate classes or split packages are found.
+     */
+    @Input
+    public Property<Boolean> getFailOnConflicts() {
+        return this.failOnConflicts;
+    }
+
+    @OutputFile
+    public RegularFileProperty getReportFile() {
+        return this.reportFile;
+    }
+
+    @TaskAction
+    public void check() {
+        final Logger logger = this.getLogger();
+
+        final List<JarClassIndex> runtimeJars;
+        final List<JarClassIndex> compileOnlyJars;
+        final ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            final List<Future<JarClassIndex>> runtimeFutures = submitAll(executor, this.runtimeClasspath);
+            final List<Future<JarClassIndex>> compileOnlyFutures = submitAll(executor, this.compileOnlyClasspath);
+            runtimeJars = getAll(runtimeFutures);
+            compileOnlyJars = getAll(compileOnlyFutures);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        final ClassConflicts conflicts = ClassConflicts.find(runtimeJars, compileOnlyJars);
+
+        final Path reportPath = this.reportFile.get().getAsFile().toPath();
+        try {
+            Files.createDirectories(reportPath.getParent());
+            try (final PrintWriter writer = new PrintWriter(Files.newBufferedWriter(reportPath, StandardCharsets.UTF_8))) {
+                conflicts.write(writer);
+            }
+        } catch (final IOException ex) {
+            throw new GradleException("Failed to write the report at: " + reportPath.toString(), ex);
+        }
+
+        final String summary = String.format(
+                "Scanned %d JAR file(s) in the gem and %d in \"compileOnly\": "
+                        + "%d duplicate class(es) with the same bytes, %d with different bytes, "
+                        + "%d class(es) also in \"compileOnly\", and %d split package(s). See: %s",
+                runtimeJars.size(),
+                compileOnlyJars.size(),
+                conflicts.getIdenticalDuplicates().size(),
+                conflicts.getDifferentDuplicates().size(),
+                conflicts.getProvidedClasses().size(),
+                conflicts.getSplitPackages().size(),
+                reportPath);
+        if (conflicts.isEmpty()) {
+            logger.info(summary);
+            return;
+        }
+        if (this.failOnConflicts.get()) {
+            throw new GradleException(summary);
+        }
+        logger.warn(summary);
+    }
+
+    /**
+     * Duplicate classes and split packages found in JAR files.
+     */
+    static final class ClassConflicts {
+        private ClassConflicts() {
+            this.identicalDuplicates = new TreeMap<>();
+            this.differentDuplicates = new TreeMap<>();
+            this.providedClasses = new TreeMap<>();
+            this.splitPackages = new TreeMap<>();
+        }
+
+        static ClassConflicts find(final List<JarClassIndex> runtimeJars, final List<JarClassIndex> compileOnlyJars) {
+            final ClassConflicts conflicts = new ClassConflicts();
+
+            final TreeMap<String, List<JarClassIndex>> runtimeClasses = new TreeMap<>();
+            final TreeMap<String, TreeSet<String>> packages = new TreeMap<>();
+            for (final JarClassIndex jar : runtimeJars) {
+                for (final String className : jar.getClasses().keySet()) {
+                    runtimeClasses.computeIfAbsent(className, key -> new ArrayList<>()).add(jar);
+                    packages.computeIfAbsent(JarClassIndex.packageOf(className), key -> new TreeSet<>())
+                            .add(jar.getJarFile().getName());
+                }
+            }
+
+            final TreeMap<String, String> compileOnlyClasses = new TreeMap<>();
+            for (final JarClassIndex jar : compileOnlyJars) {
+                for (final String className : jar.getClasses().keySet()) {
+                    compileOnlyClasses.putIfAbsent(className, jar.getJarFile().getName());
+                    // Only packages in the gem are of interest. Packages only in "compileOnly" are Embulk's business.
+                    final TreeSet<String> packageJars = packages.get(JarClassIndex.packageOf(className));
+                    if (packageJars != null) {
+                        packageJars.add(jar.getJarFile().getName());
+                    }
+                }
+            }
+
+            for (final Map.Entry<String, List<JarClassIndex>> entry : runtimeClasses.entrySet()) {
+                final String className = entry.getKey();
+                final List<JarClassIndex> jars = entry.getValue();
+                if (jars.size() > 1) {
+                    final TreeSet<String> jarNames = new TreeSet<>();
+                    final TreeSet<Long> crcs = new TreeSet<>();
+                    for (final JarClassIndex jar : jars) {
+                        jarNames.add(jar.getJarFile().getName());
+                        crcs.add(jar.getClasses().get(className));
+                    }
+                    (crcs.size() == 1 ? conflicts.identicalDuplicates : conflicts.differentDuplicates)
+                            .put(className, new ArrayList<>(jarNames));
+                }
+                final String compileOnlyJar = compileOnlyClasses.get(className);
+                if (compileOnlyJar != null) {
+                    final ArrayList<String> jarNames = new ArrayList<>();
+                    for (final JarClassIndex jar : jars) {
+                        jarNames.add(jar.getJarFile().getName());
+                    }
+                    jarNames.add(compileOnlyJar + " (compileOnly)");
+                    conflicts.providedClasses.put(className, jarNames);
+                }
+            }
+
+            for (final Map.Entry<String, TreeSet<String>> entry : packages.entrySet()) {
+                if (entry.getValue().size() > 1) {
+                    conflicts.splitPackages.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+                }
+            }
+            return conflicts;
+        }
+
+        Map<String, List<String>> getIdenticalDuplicates() {
+            return this.identicalDuplicates;
+        }
+
+        Map<String, List<String>> getDifferentDuplicates() {
+            return this.differentDuplicates;
+        }
+
+        Map<String, List<String>> getProvidedClasses() {
+            return this.providedClasses;
+        }
+
+        Map<String, List<String>> getSplitPackages() {
+            return this.splitPackages;
+        }
+
+        boolean isEmpty() {
+            return this.identicalDuplicates.isEmpty()
+                    && this.differentDuplicates.isEmpty()
+                    && this.providedClasses.isEmpty()
+                    && this.splitPackages.isEmpty();
+        }
+
+        void write(final PrintWriter writer) {
+            writeSection(writer, "Duplicate classes with the same bytes", this.identicalDuplicates);
+            writeSection(writer, "Duplicate classes with different bytes", this.differentDuplicates);
+            writeSection(writer, "Classes also in \"compileOnly\"", this.providedClasses);
+            writeSection(writer, "Split packages", this.splitPackages);
+        }
+
+        private static void writeSection(final PrintWriter writer, final String title, final Map<String, List<String>> found) {
+            writer.println(title + ": " + found.size());
+            for (final Map.Entry<String, List<String>> entry : found.entrySet()) {
+                writer.println("  " + entry.getKey().replace('/', '.'));
+                for (final String jarName : entry.getValue()) {
+                    writer.println("    " + jarName);
+                }
+            }
+            writer.println();
+        }
+
+        private final TreeMap<String, List<String>> identicalDuplicates;
+        private final TreeMap<String, List<String>> differentDuplicates;
+        private final TreeMap<String, List<String>> providedClasses;
+        private final TreeMap<String, List<String>> splitPackages;
+    }
+
+    private static List<Future<JarClassIndex>> submitAll(
+            final ExecutorService executor, final Iterable<File> files) {
+        final ArrayList<Future<JarClassIndex>> futures = new ArrayList<>();
+        for (final File file : files) {
+            if (file.isFile() && file.getName().endsWith(".jar")) {
+                futures.add(executor.submit(() -> JarClassIndex.load(file)));
+            }
+        }
+        return futures;
+    }
+
+    private static List<JarClassIndex> getAll(final List<Future<JarClassIndex>> futures) {
+        final ArrayList<JarClassIndex> indexes = new ArrayList<>();
+        for (final Future<JarClassIndex> future : futures) {
+            try {
+                indexes.add(future.get());
+            } catch (final ExecutionException ex) {
+                throw new GradleException("Failed to scan a JAR file.", ex.getCause());
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new GradleException("Interrupted while scanning JAR files.", ex);
+            }
+        }
+        return indexes;
+    }
+
+    private final ConfigurableFileCollection runtimeClasspath;
+    private final ConfigurableFileCollection compileOnlyClasspath;
+    private final Property<Boolean> failOnConflicts;
+    private final RegularFileProperty reportFile;
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import javax.inject.Inject;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.Project;
+import org.gradle.api.artifacts.ModuleIdentifier;
+import org.gradle.api.artifacts.ResolvedDependency;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.TaskAction;
+
+/**
+ * A Gradle task to verify the dependencies of an Embulk plugin: {@code "checkEmbulkPluginDependencies"}.
+ *
+ * <p>It checks the dependency lock state of {@code "embulkPluginRuntime"}, and warns if dependencies of
+ * {@code "embulkPluginRuntime"}, which are packaged into the gem, are included also in {@code "compileOnly"}.
+ * They need the configurations resolved. They are in a task, not in {@code afterEvaluate}, so that configuring
+ * a project does not resolve dependencies. The {@code "check"} task depends on it.
+ *
+ * <p>The dependencies included in both are listed in the report file. The task is up-to-date unless the files of
+ * the configurations change.
+ */
+class CheckEmbulkPluginDependencies extends DefaultTask {
+    @Inject
+    public CheckEmbulkPluginDependencies() {
+        super();
+
+        final Project project = this.getProject();
+        final ObjectFactory objectFactory = project.getObjects();
+        this.runtimeClasspath = objectFactory.fileCollection();
+        this.compileOnlyClasspath = objectFactory.fileCollection();
+        this.reportFile = objectFactory.fileProperty();
+        this.reportFile.set(project.getLayout().getBuildDirectory().file("reports/embulk/dependencies.txt"));
+        this.dependencyGraphs = null;
+    }
+
+    /**
+     * Returns the files of {@code "embulkPluginRuntime"}, and of {@code "runtime"} flattened into it.
+     *
+     * <p>Resolving them as the task input checks the dependency lock state of {@code "embulkPluginRuntime"}.
+     */
+    @InputFiles
+    @PathSensitive(PathSensitivity.NAME_ONLY)
+    public ConfigurableFileCollection getRuntimeClasspath() {
+        return this.runtimeClasspath;
+    }
+
+    /**
+     * Returns the files of {@code "compileOnly"}, which are provided by Embulk's core at runtime.
+     */
+    @InputFiles
+    @PathSensitive(PathSensitivity.NAME_ONLY)
+    public ConfigurableFileCollection getCompileOnlyClasspath() {
+        return this.compileOnlyClasspath;
+    }
+
+    @OutputFile
+    public RegularFileProperty getReportFile() {
+        return this.reportFile;
+    }
+
+    /**
+     * Returns the flattened graphs of the project, shared with the flattening of {@code "runtime"} if not {@code "mainJar"}.
+     */
+    @Internal
+    ProjectDependencyGraphs getDependencyGraphs() {
+        return this.dependencyGraphs;
+    }
+
+    void setDependencyGraphs(final ProjectDependencyGraphs dependencyGraphs) {
+        this.dependencyGraphs = dependencyGraphs;
+    }
+
+    @TaskAction
+    public void check() {
+        final Logger logger = this.getLogger();
+
+        final Map<ModuleIdentifier, ResolvedDependency> compileOnlyDependencies =
+                this.dependencyGraphs.getCompileOnly().getAllDependencies();
+        // It is the graph of "runtime" shared with the flattening unless "mainJar" is configured.
+        final Map<ModuleIdentifier, ResolvedDependency> alternativeRuntimeDependencies =
+                this.dependencyGraphs.getAlternativeRuntime().getAllDependencies();
+
+        final Set<ModuleIdentifier> intersects = new TreeSet<>(FlattenedDependencies.MODULE_ORDER);
+        intersects.addAll(alternativeRuntimeDependencies.keySet());
+        intersects.retainAll(compileOnlyDependencies.keySet());
+        final List<String> modules = intersects.stream()
+                .map(key -> alternativeRuntimeDependencies.get(key).getModule().toString())
+                .collect(Collectors.toList());
+
+        final Path reportPath = this.reportFile.get().getAsFile().toPath();
+        try {
+            Files.createDirectories(reportPath.getParent());
+            Files.write(reportPath, modules, StandardCharsets.UTF_8);
+        } catch (final IOException ex) {
+            throw new GradleException("Failed to write the report at: " + reportPath.toString(), ex);
+        }
+
+        if (!modules.isEmpty()) {
+            warnIfRuntimeHasCompileOnlyDependencies(logger, modules);
+        }
+    }
+
+    private static void warnIfRuntimeHasCompileOnlyDependencies(final Logger logger, final List<String> modules) {
+        // Logging in the "error" loglevel to show the severity, but not to fail with GradleException.
+        logger.error(
+                "============================================ WARNING ============================================\n"
+                + "Following \"runtime\" dependencies are included also in \"compileOnly\" dependencies.\n"
+                + "\n"
+                + modules.stream().map(module -> "  \"" + module + "\"\n").collect(Collectors.joining(""))
+                + "\n"
+                + "  \"compileOnly\" dependencies are used to represent Embulk's core to be \"provided\" at runtime.\n"
+                + "  They should be excluded from \"compile\" or \"runtime\" dependencies like the example below.\n"
+                + "\n"
+                + "  dependencies {\n"
+                + "    compile(\"org.glassfish.jersey.core:jersey-client:2.25.1\") {\n"
+                + "      exclude group: \"javax.inject\", module: \"javax.inject\"\n"
+                + "    }\n"
+                + "  }\n"
+                + "=================================================================================================");
+    }
+
+    private final ConfigurableFileCollection runtimeClasspath;
+    private final ConfigurableFileCollection compileOnlyClasspath;
+    private final RegularFileProperty reportFile;
+
+    private ProjectDependencyGraphs dependencyGraphs;
+}
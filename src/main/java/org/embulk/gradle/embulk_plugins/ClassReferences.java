@@ -0,0 +1,113 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Names of classes possibly referenced from a class file, read from the constant pool of the class file.
+ *
+ * <p>All references from a class to other classes, including its superclass, interfaces, fields, methods, and
+ * annotations, are in the constant pool as {@code CONSTANT_Class} or as descriptors in {@code CONSTANT_Utf8}. It
+ * does not parse the bytecode. Instead, it takes every {@code CONSTANT_Utf8} as a candidate of class names:
+ * the string as it is, the string with {@code '.'} replaced with {@code '/'}, and {@code L...;} in the string.
+ * It over-approximates the references, then. A string constant like {@code "com.example.Foo"} for
+ * {@code Class.forName} is also taken as a reference.
+ *
+ * <p>The candidates are to be filtered by the classes which really exist.
+ *
+ * @see <a href="https://docs.oracle.com/javase/specs/jvms/se8/html/jvms-4.html#jvms-4.4">The Constant Pool</a>
+ */
+final class ClassReferences {
+    private ClassReferences() {
+        // No instantiation.
+    }
+
+    static Set<String> read(final InputStream classStream) throws IOException {
+        final DataInputStream in = new DataInputStream(classStream);
+        if (in.readInt() != 0xCAFEBABE) {
+            throw new IOException("Not a class file.");
+        }
+        in.readUnsignedShort();  // minor_version
+        in.readUnsignedShort();  // major_version
+
+        final HashSet<String> candidates = new HashSet<>();
+        final byte[] skipped = new byte[8];
+        final int constantPoolCount = in.readUnsignedShort();
+        for (int i = 1; i < constantPoolCount; i++) {
+            final int tag = in.readUnsignedByte();
+            switch (tag) {
+                case 1:  // CONSTANT_Utf8
+                    addCandidates(candidates, in.readUTF());
+                    break;
+                case 7:  // CONSTANT_Class
+                case 8:  // CONSTANT_String
+                case 16:  // CONSTANT_MethodType
+                case 19:  // CONSTANT_Module
+                case 20:  // CONSTANT_Package
+                    in.readFully(skipped, 0, 2);
+                    break;
+                case 15:  // CONSTANT_MethodHandle
+                    in.readFully(skipped, 0, 3);
+                    break;
+                case 3:  // CONSTANT_Integer
+                case 4:  // CONSTANT_Float
+                case 9:  // CONSTANT_Fieldref
+                case 10:  // CONSTANT_Methodref
+                case 11:  // CONSTANT_InterfaceMethodref
+                case 12:  // CONSTANT_NameAndType
+                case 17:  // CONSTANT_Dynamic
+                case 18:  // CONSTANT_InvokeDynamic
+                    in.readFully(skipped, 0, 4);
+                    break;
+                case 5:  // CONSTANT_Long
+                case 6:  // CONSTANT_Double
+                    in.readFully(skipped, 0, 8);
+                    i++;  // They take two entries.
+                    break;
+                default:
+                    throw new IOException("Unknown constant pool tag: " + tag);
+            }
+        }
+        return candidates;
+    }
+
+    private static void addCandidates(final Set<String> candidates, final String utf8) {
+        if (utf8.isEmpty()) {
+            return;
+        }
+        candidates.add(utf8);
+        if (utf8.indexOf('.') >= 0) {
+            candidates.add(utf8.replace('.', '/'));
+        }
+        if (utf8.indexOf(';') >= 0) {
+            final Matcher matcher = DESCRIPTOR_CLASS.matcher(utf8);
+            while (matcher.find()) {
+                candidates.add(matcher.group(1));
+            }
+        }
+    }
+
+    // "Lcom/example/Foo;" in descriptors, and "Lcom/example/Foo<" in generic signatures.
+    private static final Pattern DESCRIPTOR_CLASS = Pattern.compile("L([^;<>()\\[]+)[;<]");
+}
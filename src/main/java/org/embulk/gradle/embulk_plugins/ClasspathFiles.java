@@ -0,0 +1,113 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.gradle.api.internal.file.copy.FileCopyDetailsInternal;
+
+/**
+ * Files generated into {@code classpath/} of a gem from the JAR files in it: {@link ClasspathIndex} and
+ * {@link ClasspathList}, each if enabled.
+ *
+ * <p>The JAR files are added while the files of the gem are processed. Then, the generated files are added to the gem
+ * before the bootstrap Ruby file.
+ */
+final class ClasspathFiles {
+    ClasspathFiles(final boolean index, final boolean list) {
+        this.index = index ? new ClasspathIndex() : null;
+        this.list = list ? new ClasspathList() : null;
+    }
+
+    /**
+     * Adds a file in the gem, which is taken only if it is a JAR file directly in {@code classpath/}.
+     *
+     * <p>The JAR file is read through its central directory if it is in the file system as it is. Otherwise, for
+     * example when it is filtered by the copy spec, it is read through as a stream.
+     */
+    void add(final FileCopyDetailsInternal details) throws IOException {
+        final String path = details.getRelativePath().getPathString();
+        if (this.isEmpty() || !ClasspathIndex.isIndexed(path)) {
+            return;
+        }
+        File file;
+        try {
+            file = details.getFile();
+        } catch (final UnsupportedOperationException ex) {
+            file = null;
+        }
+        if (file != null) {
+            this.add(path, file);
+            return;
+        }
+
+        final String jarName = ClasspathIndex.jarNameOf(path);
+        if (this.index != null) {
+            try (final InputStream in = details.open()) {
+                this.index.add(jarName, in);
+            }
+        }
+        if (this.list != null) {
+            try (final InputStream in = details.open()) {
+                this.list.add(jarName, details.getSize(), GemSegmentCache.sha256(in));
+            }
+        }
+    }
+
+    /**
+     * Adds a file in the gem from a file in the file system.
+     */
+    void add(final String path, final File file) throws IOException {
+        if (this.isEmpty() || !ClasspathIndex.isIndexed(path)) {
+            return;
+        }
+        final String jarName = ClasspathIndex.jarNameOf(path);
+        if (this.index != null) {
+            this.index.add(jarName, file);
+        }
+        if (this.list != null) {
+            try (final InputStream in = Files.newInputStream(file.toPath())) {
+                this.list.add(jarName, file.length(), GemSegmentCache.sha256(in));
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        return this.index == null && this.list == null;
+    }
+
+    /**
+     * Returns the generated files from their paths in the gem to their contents.
+     */
+    Map<String, byte[]> toFiles() {
+        final LinkedHashMap<String, byte[]> files = new LinkedHashMap<>();
+        if (this.index != null) {
+            files.put(ClasspathIndex.PATH, this.index.toBytes());
+        }
+        if (this.list != null) {
+            files.put(ClasspathList.PATH, this.list.toBytes());
+        }
+        return files;
+    }
+
+    private final ClasspathIndex index;
+    private final ClasspathList list;
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+/**
+ * An index from packages to the JAR files in {@code classpath/} of a gem, in the same format as
+ * {@code META-INF/INDEX.LIST} of the JAR index.
+ *
+ * <p>A plugin classloader which knows the index can go straight to the JAR files of a package, instead of probing
+ * every JAR file. The main JAR file of the plugin points to the index with {@code Embulk-Plugin-Classpath-Index} in
+ * its manifest, as a path relative to the directory of the main JAR file.
+ *
+ * <pre>{@code JarIndex-Version: 1.0
+ *
+ * embulk-input-example-0.1.0.jar
+ * org/embulk/input/example
+ *
+ * guava-19.0.jar
+ * com/google/common/base
+ * com/google/common/collect
+ * }</pre>
+ *
+ * <p>The JAR files and the packages are sorted so that the index is reproducible. Entries under {@code META-INF/}
+ * are not indexed as the JAR index does not.
+ *
+ * @see <a href="https://docs.oracle.com/javase/8/docs/technotes/guides/jar/jar.html#JAR_Index">JAR Index</a>
+ */
+final class ClasspathIndex {
+    ClasspathIndex() {
+        this.jars = new TreeMap<>();
+    }
+
+    /**
+     * Returns {@code true} if the path in the gem is a JAR file directly in {@code classpath/}.
+     */
+    static boolean isIndexed(final String path) {
+        return path.startsWith(CLASSPATH_DIRECTORY) && path.endsWith(".jar")
+                && path.indexOf('/', CLASSPATH_DIRECTORY.length()) < 0;
+    }
+
+    /**
+     * Returns the name of a JAR file in the index from its path in the gem: {@code "guava-19.0.jar"}.
+     */
+    static String jarNameOf(final String path) {
+        return path.substring(CLASSPATH_DIRECTORY.length());
+    }
+
+    /**
+     * Adds a JAR file from its central directory.
+     */
+    void add(final String jarName, final File jarFile) throws IOException {
+        final TreeSet<String> packages = new TreeSet<>();
+        try (final ZipFile zipFile = new ZipFile(jarFile)) {
+            final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                addPackage(packages, entries.nextElement());
+            }
+        }
+        this.jars.put(jarName, packages);
+    }
+
+    /**
+     * Adds a JAR file by reading it through, for a JAR file which is not in the file system as it is.
+     */
+    void add(final String jarName, final InputStream jarStream) throws IOException {
+        final TreeSet<String> packages = new TreeSet<>();
+        try (final ZipInputStream zip = new ZipInputStream(jarStream)) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                addPackage(packages, entry);
+            }
+        }
+        this.jars.put(jarName, packages);
+    }
+
+    byte[] toBytes() {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("JarIndex-Version: 1.0\n\n");
+        for (final Map.Entry<String, TreeSet<String>> jar : this.jars.entrySet()) {
+            builder.append(jar.getKey()).append('\n');
+            for (final String packageName : jar.getValue()) {
+                builder.append(packageName).append('\n');
+            }
+            builder.append('\n');
+        }
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Adds the directory of an entry, or the entry itself if it is at the root, as {@code JarIndex} does.
+     */
+    private static void addPackage(final TreeSet<String> packages, final ZipEntry entry) {
+        final String name = entry.getName();
+        if (entry.isDirectory() || name.startsWith("META-INF/")) {
+            return;
+        }
+        final int lastSlash = name.lastIndexOf('/');
+        packages.add((lastSlash < 0) ? name : name.substring(0, lastSlash));
+    }
+
+    static final String CLASSPATH_DIRECTORY = "classpath/";
+
+    static final String FILE_NAME = "INDEX.LIST";
+
+    // The path of the index in the gem.
+    static final String PATH = CLASSPATH_DIRECTORY + FILE_NAME;
+
+    // The manifest attribute of the main JAR file to point to the index, relative to the directory of the main JAR file.
+    static final String MANIFEST_ATTRIBUTE = "Embulk-Plugin-Classpath-Index";
+
+    private final TreeMap<String, TreeSet<String>> jars;
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * A list of the JAR files in {@code classpath/} of a gem in order, with the size and the SHA-256 of each.
+ *
+ * <p>It is written as {@code classpath/CLASSPATH.LIST} in the gem, and the bootstrap Ruby file refers to it. A plugin
+ * loader which knows the list can load exactly the listed JAR files in the order without scanning the directory,
+ * and can verify them before loading, or map them into memory directly.
+ *
+ * <pre>{@code # SHA-256 size name
+ * 5b9f1d2e... 2256213 guava-19.0.jar
+ * 0a3c7e41... 8412 embulk-input-example-0.1.0.jar
+ * }</pre>
+ *
+ * <p>The JAR files are listed in the order of the classpath of the gem, the same as the order in the gem. They are
+ * not reordered because the order decides which one of duplicate classes is loaded.
+ */
+final class ClasspathList {
+    ClasspathList() {
+        this.lines = new ArrayList<>();
+    }
+
+    void add(final String jarName, final long size, final String sha256) {
+        this.lines.add(sha256 + " " + size + " " + jarName);
+    }
+
+    byte[] toBytes() {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("# SHA-256 size name\n");
+        for (final String line : this.lines) {
+            builder.append(line).append('\n');
+        }
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    static final String FILE_NAME = "CLASSPATH.LIST";
+
+    // The path of the list in the gem.
+    static final String PATH = ClasspathIndex.CLASSPATH_DIRECTORY + FILE_NAME;
+
+    private final ArrayList<String> lines;
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import javax.inject.Inject;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.Project;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.Optional;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.TaskAction;
+
+/**
+ * A Gradle task to generate a class list and an AppCDS archive of an Embulk plugin: {@code "dumpEmbulkPluginCds"}.
+ *
+ * <p>It launches a JVM with the main JAR file, the JAR files in the gem, and {@code "compileOnly"} on the classpath,
+ * and loads {@code mainClass} of {@code embulkPlugin} in it with {@code -XX:DumpLoadedClassList}. Then, it dumps
+ * the loaded classes into an archive with {@code -Xshare:dump}. The class list and the archive are written next to
+ * the gem: {@code build/gems/<gem>.classlist} and {@code build/gems/<gem>.jsa}. At last, it reports the startup time
+ * of the JVM loading {@code mainClass} without and with the archive, the median of {@code startupRuns} runs each.
+ *
+ * <p>It is not a part of any build by default. Run it explicitly. The JVM at {@code javaHome} must be Java 10 or
+ * later for AppCDS of the application classpath. The archive is effective for a JVM with the same classpath.
+ *
+ * <pre>{@code dumpEmbulkPluginCds {
+ *   javaHome = "/usr/lib/jvm/java-11"  // The Java running Gradle by default.
+ *   startupRuns = 5  // 5 by default.
+ * }}</pre>
+ *
+ * @see <a href="https://openjdk.java.net/jeps/310">JEP 310: Application Class-Data Sharing</a>
+ */
+class DumpEmbulkPluginCds extends DefaultTask {
+    @Inject
+    public DumpEmbulkPluginCds() {
+        super();
+
+        final Project project = this.getProject();
+        final ObjectFactory objectFactory = project.getObjects();
+        this.classpath = objectFactory.fileCollection();
+        this.mainClass = objectFactory.property(String.class);
+        this.javaHome = objectFactory.property(String.class);
+        this.javaHome.set(System.getProperty("java.home"));
+        this.startupRuns = objectFactory.property(Integer.class);
+        this.startupRuns.set(5);
+        this.classListFile = objectFactory.fileProperty();
+        this.archiveFile = objectFactory.fileProperty();
+        this.metricsReportFile = objectFactory.fileProperty();
+        this.metricsReportFile.set(
+                project.getLayout().getBuildDirectory().file("reports/embulk/" + this.getName() + ".json"));
+    }
+
+    /**
+     * Returns the classpath of the plugin in order: the main JAR file, the JAR files in the gem, and
+     * {@code "compileOnly"}.
+     */
+    @Classpath
+    public ConfigurableFileCollection getClasspath() {
+        return this.classpath;
+    }
+
+    @Input
+    public Property<String> getMainClass() {
+        return this.mainClass;
+    }
+
+    /**
+     * Property to configure the Java home of the JVM to launch.
+     */
+    @Input
+    public Property<String> getJavaHome() {
+        return this.javaHome;
+    }
+
+    /**
+     * Property to configure the number of runs to measure the startup time each without and with the archive.
+     */
+    @Input
+    public Property<Integer> getStartupRuns() {
+        return this.startupRuns;
+    }
+
+    @OutputFile
+    public RegularFileProperty getClassListFile() {
+        return this.classListFile;
+    }
+
+    @OutputFile
+    public RegularFileProperty getArchiveFile() {
+        return this.archiveFile;
+    }
+
+    /**
+     * Property to configure the JSON report of the metrics, {@code build/reports/embulk/dumpEmbulkPluginCds.json} by
+     * default. The report is not written if it is unset.
+     */
+    @Optional
+    @OutputFile
+    public RegularFileProperty getMetricsReportFile() {
+        return this.metricsReportFile;
+    }
+
+    @TaskAction
+    public void dump() {
+        final Logger logger = this.getLogger();
+
+        if (this.startupRuns.get() < 1) {
+            throw new GradleException("Failed to configure \"dumpEmbulkPluginCds\" because \"startupRuns\" must be positive.");
+        }
+
+        final Path temporaryDirectory = this.getTemporaryDir().toPath();
+        final Path classListPath = this.classListFile.get().getAsFile().toPath();
+        final Path archivePath = this.archiveFile.get().getAsFile().toPath();
+        final String java = new File(new File(this.javaHome.get(), "bin"), IS_WINDOWS ? "java.exe" : "java").getPath();
+
+        final ArrayList<String> classpathEntries = new ArrayList<>();
+        for (final File file : this.classpath) {
+            classpathEntries.add(file.getAbsolutePath());
+        }
+        // The archive is dumped without the harness so that the classpath of the archive is only of the plugin.
+        // A JVM with the harness appended to the classpath can still use the archive as the classpath is a prefix.
+        final String pluginClasspath = String.join(File.pathSeparator, classpathEntries);
+        final String harnessClasspath;
+        try {
+            Files.createDirectories(classListPath.getParent());
+            Files.deleteIfExists(classListPath);
+            Files.deleteIfExists(archivePath);
+            harnessClasspath = pluginClasspath + File.pathSeparator + writeHarnessJar(temporaryDirectory).toString();
+        } catch (final IOException ex) {
+            throw new GradleException("Failed to prepare for the AppCDS archive at: " + archivePath.toString(), ex);
+        }
+
+        final PhaseMetrics metrics = new PhaseMetrics(this.getPath()).attribute("javaHome", this.javaHome.get());
+        try {
+            try (final PhaseMetrics.Phase phase = metrics.start("classList")) {
+                run(Arrays.asList(
+                        java, "-Xshare:off", "-XX:DumpLoadedClassList=" + classListPath.toString(),
+                        "-cp", harnessClasspath, HARNESS, this.mainClass.get()),
+                    temporaryDirectory.resolve("classList.log"));
+                phase.written(classListPath.toFile().length()).file();
+            }
+            try (final PhaseMetrics.Phase phase = metrics.start("dump")) {
+                run(Arrays.asList(
+                        java, "-Xshare:dump",
+                        "-XX:SharedClassListFile=" + classListPath.toString(),
+                        "-XX:SharedArchiveFile=" + archivePath.toString(),
+                        "-cp", pluginClasspath),
+                    temporaryDirectory.resolve("dump.log"));
+                phase.written(archivePath.toFile().length()).file();
+            }
+
+            final long withoutArchive;
+            try (final PhaseMetrics.Phase phase = metrics.start("startupWithoutArchive")) {
+                withoutArchive = this.measureStartup(Arrays.asList(
+                        java, "-cp", harnessClasspath, HARNESS, this.mainClass.get()),
+                    temporaryDirectory.resolve("startupWithoutArchive.log"));
+            }
+            final long withArchive;
+            try (final PhaseMetrics.Phase phase = metrics.start("startupWithArchive")) {
+                withArchive = this.measureStartup(Arrays.asList(
+                        java, "-Xshare:on", "-XX:SharedArchiveFile=" + archivePath.toString(),
+                        "-cp", harnessClasspath, HARNESS, this.mainClass.get()),
+                    temporaryDirectory.resolve("startupWithArchive.log"));
+            }
+
+            logger.lifecycle(String.format(
+                    "Dumped %d classes into %s (%d bytes). Startup loading %s: %.3f s without the archive, "
+                            + "%.3f s with the archive (median of %d runs).",
+                    countClasses(classListPath),
+                    archivePath.getFileName(),
+                    archivePath.toFile().length(),
+                    this.mainClass.get(),
+                    withoutArchive / 1_000_000_000.0,
+                    withArchive / 1_000_000_000.0,
+                    this.startupRuns.get()));
+        } finally {
+            if (this.metricsReportFile.isPresent()) {
+                metrics.writeReport(this.metricsReportFile.get().getAsFile().toPath(), logger);
+            }
+        }
+    }
+
+    /**
+     * Returns the median of the wall time of runs of a command.
+     */
+    private long measureStartup(final List<String> command, final Path logPath) {
+        final ArrayList<Long> nanos = new ArrayList<>();
+        for (int i = 0; i < this.startupRuns.get(); i++) {
+            nanos.add(run(command, logPath));
+        }
+        Collections.sort(nanos);
+        return nanos.get(nanos.size() / 2);
+    }
+
+    /**
+     * Runs a command with its output into a log file, and returns its wall time.
+     */
+    private static long run(final List<String> command, final Path logPath) {
+        final ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(logPath.toFile());
+        final int exitCode;
+        final long startNanos = System.nanoTime();
+        try {
+            exitCode = builder.start().waitFor();
+        } catch (final IOException ex) {
+            throw new GradleException("Failed to execute: " + String.join(" ", command), ex);
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new GradleException("Interrupted while executing: " + String.join(" ", command), ex);
+        }
+        final long wallNanos = System.nanoTime() - startNanos;
+        if (exitCode != 0) {
+            throw new GradleException(
+                    "Failed with exit code " + exitCode + ": " + String.join(" ", command)
+                    + "\nSee the output at: " + logPath.toString()
+                    + "\nNote that AppCDS of the application classpath requires Java 10 or later.");
+        }
+        return wallNanos;
+    }
+
+    /**
+     * Writes {@link EmbulkPluginCdsHarness} alone into a JAR file, which is independent from Gradle.
+     */
+    private static Path writeHarnessJar(final Path directory) throws IOException {
+        final String classFileName = HARNESS.replace('.', '/') + ".class";
+        final Path jarPath = directory.resolve("embulk-plugin-cds-harness.jar");
+        try (final InputStream in = EmbulkPluginCdsHarness.class.getClassLoader().getResourceAsStream(classFileName);
+                final OutputStream out = Files.newOutputStream(jarPath);
+                final ZipOutputStream zip = new ZipOutputStream(out)) {
+            if (in == null) {
+                throw new IOException("Class file is not found: " + classFileName);
+            }
+            zip.putNextEntry(new ZipEntry(classFileName));
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                zip.write(buffer, 0, read);
+            }
+            zip.closeEntry();
+        }
+        return jarPath;
+    }
+
+    private static long countClasses(final Path classListPath) {
+        try {
+            return Files.readAllLines(classListPath, StandardCharsets.UTF_8).stream()
+                    .filter(line -> !line.isEmpty() && !line.startsWith("#") && !line.startsWith("@"))
+                    .count();
+        } catch (final IOException ex) {
+            return 0;
+        }
+    }
+
+    private static final String HARNESS = EmbulkPluginCdsHarness.class.getName();
+
+    private static final boolean IS_WINDOWS = System.getProperty("os.name").toLowerCase(Locale.ROOT).startsWith("windows");
+
+    private final ConfigurableFileCollection classpath;
+    private final Property<String> mainClass;
+    private final Property<String> javaHome;
+    private final Property<Integer> startupRuns;
+    private final RegularFileProperty classListFile;
+    private final RegularFileProperty archiveFile;
+    private final RegularFileProperty metricsReportFile;
+}
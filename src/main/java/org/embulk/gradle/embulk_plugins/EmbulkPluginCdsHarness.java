@@ -0,0 +1,37 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+/**
+ * The main class of the JVM launched by {@link DumpEmbulkPluginCds} to load an Embulk plugin as Embulk does.
+ *
+ * <p>It is executed out of Gradle on the classpath of the plugin. It must depend on nothing but the JDK, then.
+ */
+public final class EmbulkPluginCdsHarness {
+    private EmbulkPluginCdsHarness() {
+        // No instantiation.
+    }
+
+    public static void main(final String[] args) throws ClassNotFoundException {
+        final Class<?> pluginClass = Class.forName(args[0]);
+        try {
+            pluginClass.getConstructor().newInstance();
+        } catch (final ReflectiveOperationException | LinkageError ex) {
+            // A plugin may not be instantiated without Embulk's injection. The plugin class is loaded, anyway.
+        }
+    }
+}
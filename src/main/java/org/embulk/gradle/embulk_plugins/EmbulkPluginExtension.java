@@ -36,6 +36,10 @@ import org.gradle.api.provider.Property;
  *     category = "input"
  *     type = "example"
  *     // mainJar = "shadowJar"
+ *     // classpathIndex = true  // Generates classpath/INDEX.LIST in the gem. false by default.
+ *     // classpathList = true  // Generates classpath/CLASSPATH.LIST in the gem. false by default.
+ *     // dependencyList = true  // Embeds META-INF/embulk/dependencies.list in the main JAR file. false by default.
+ *     // minimize = true  // Removes classes unreachable from mainClass from the dependencies in the gem. false by default.
  * }}</pre>
  */
 public class EmbulkPluginExtension {
@@ -47,6 +51,14 @@ public class EmbulkPluginExtension {
         this.category = objectFactory.property(String.class);
         this.type = objectFactory.property(String.class);
         this.mainJar = objectFactory.property(String.class);
+        this.classpathIndex = objectFactory.property(Boolean.class);
+        this.classpathIndex.set(false);
+        this.classpathList = objectFactory.property(Boolean.class);
+        this.classpathList.set(false);
+        this.dependencyList = objectFactory.property(Boolean.class);
+        this.dependencyList.set(false);
+        this.minimize = objectFactory.property(Boolean.class);
+        this.minimize.set(false);
     }
 
     public Property<String> getMainClass() {
@@ -65,6 +77,38 @@ public class EmbulkPluginExtension {
         return this.mainJar;
     }
 
+    /**
+     * Property to configure whether to generate a package-to-JAR index in {@code classpath/} of the gem, which is
+     * pointed from {@code Embulk-Plugin-Classpath-Index} in the manifest of the main JAR file.
+     */
+    public Property<Boolean> getClasspathIndex() {
+        return this.classpathIndex;
+    }
+
+    /**
+     * Property to configure whether to generate a list of the JAR files in {@code classpath/} of the gem with their
+     * sizes and SHA-256, which is referred from the bootstrap Ruby file.
+     */
+    public Property<Boolean> getClasspathList() {
+        return this.classpathList;
+    }
+
+    /**
+     * Property to configure whether to embed the list of the resolved dependencies with their checksums in the main
+     * JAR file, which is pointed from {@code Embulk-Plugin-Dependencies} in its manifest.
+     */
+    public Property<Boolean> getDependencyList() {
+        return this.dependencyList;
+    }
+
+    /**
+     * Property to configure whether to put the dependencies minimized by {@code "minimizeEmbulkPluginClasspath"}
+     * into the gem, instead of the original ones.
+     */
+    public Property<Boolean> getMinimize() {
+        return this.minimize;
+    }
+
     void checkValidity() {
         final ArrayList<String> errors = new ArrayList<>();
         if ((!this.mainClass.isPresent()) || this.mainClass.get().isEmpty()) {
@@ -109,4 +153,8 @@ public class EmbulkPluginExtension {
     private final Property<String> category;
     private final Property<String> type;
     private final Property<String> mainJar;
+    private final Property<Boolean> classpathIndex;
+    private final Property<Boolean> classpathList;
+    private final Property<Boolean> dependencyList;
+    private final Property<Boolean> minimize;
 }
@@ -17,19 +17,17 @@
 package org.embulk.gradle.embulk_plugins;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.Callable;
 import org.gradle.api.GradleException;
 import org.gradle.api.Plugin;
 import org.gradle.api.Project;
 import org.gradle.api.artifacts.Configuration;
-import org.gradle.api.artifacts.Dependency;
 import org.gradle.api.artifacts.ResolvedArtifact;
 import org.gradle.api.artifacts.ResolvedDependency;
 import org.gradle.api.artifacts.component.ComponentIdentifier;
@@ -38,11 +36,15 @@ import org.gradle.api.artifacts.maven.Conf2ScopeMapping;
 import org.gradle.api.artifacts.maven.Conf2ScopeMappingContainer;
 import org.gradle.api.component.AdhocComponentWithVariants;
 import org.gradle.api.component.SoftwareComponent;
-import org.gradle.api.logging.Logger;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.Directory;
+import org.gradle.api.file.RegularFile;
 import org.gradle.api.plugins.JavaPlugin;
 import org.gradle.api.plugins.MavenPlugin;
+import org.gradle.api.provider.Provider;
 import org.gradle.api.tasks.TaskProvider;
 import org.gradle.api.tasks.bundling.Jar;
+import org.gradle.language.base.plugins.LifecycleBasePlugin;
 
 /**
  * A plugin for building Embulk plugins.
@@ -60,22 +62,37 @@ public class EmbulkPluginsPlugin implements Plugin<Project> {
 
         createExtension(project);
 
-        project.getTasks().create("gem", Gem.class);
-        project.getTasks().create("gemPush", GemPush.class);
+        // The tasks are registered lazily so that they are not created unless required for the build.
+        project.getTasks().register("gem", Gem.class);
+        project.getTasks().register("gemPush", GemPush.class);
+        final TaskProvider<CheckEmbulkPluginDependencies> checkDependenciesTask =
+                project.getTasks().register("checkEmbulkPluginDependencies", CheckEmbulkPluginDependencies.class);
+        final TaskProvider<CheckEmbulkPluginClasses> checkClassesTask =
+                project.getTasks().register("checkEmbulkPluginClasses", CheckEmbulkPluginClasses.class);
+        project.getTasks().register("mergeEmbulkPluginClasspath", MergeEmbulkPluginClasspath.class);
+        project.getTasks().register("minimizeEmbulkPluginClasspath", MinimizeEmbulkPluginClasspath.class);
+        project.getTasks().register("dumpEmbulkPluginCds", DumpEmbulkPluginCds.class);
+        project.getTasks().register("generateEmbulkPluginDependencies", GenerateEmbulkPluginDependencies.class);
 
         final Configuration runtimeConfiguration = project.getConfigurations().getByName("runtime");
 
         // It must be a non-detached configuration to be mapped into Maven scopes by Conf2ScopeMapping.
         final Configuration alternativeRuntimeConfiguration = project.getConfigurations().maybeCreate("embulkPluginRuntime");
 
+        // The flattened graphs are computed once in the project, and shared by the flattening and the check.
+        final ProjectDependencyGraphs dependencyGraphs = new ProjectDependencyGraphs(
+                runtimeConfiguration, alternativeRuntimeConfiguration, project.getConfigurations().getByName("compileOnly"));
+
         // It must be configured before evaluation (not in afterEvaluate).
         replaceConf2ScopeMappings(project, runtimeConfiguration, alternativeRuntimeConfiguration);
 
-        project.afterEvaluate(projectAfterEvaluate -> {
-            initializeAfterEvaluate(projectAfterEvaluate, runtimeConfiguration, alternativeRuntimeConfiguration);
+        // The dependency lock state and "compileOnly" dependencies are checked in a verification task, not here,
+        // so that configuring the project does not resolve any dependency.
+        configureCheckDependenciesTask(project, checkDependenciesTask, alternativeRuntimeConfiguration, dependencyGraphs);
+        configureCheckClassesTask(project, checkClassesTask, alternativeRuntimeConfiguration);
 
-            // Configuration#getResolvedConfiguration here so that the dependency lock state is checked.
-            alternativeRuntimeConfiguration.getResolvedConfiguration();
+        project.afterEvaluate(projectAfterEvaluate -> {
+            initializeAfterEvaluate(projectAfterEvaluate, alternativeRuntimeConfiguration, dependencyGraphs);
         });
     }
 
@@ -94,8 +111,8 @@ public class EmbulkPluginsPlugin implements Plugin<Project> {
 
     private static void initializeAfterEvaluate(
             final Project project,
-            final Configuration runtimeConfiguration,
-            final Configuration alternativeRuntimeConfiguration) {
+            final Configuration alternativeRuntimeConfiguration,
+            final ProjectDependencyGraphs dependencyGraphs) {
         final EmbulkPluginExtension extension = project.getExtensions().getByType(EmbulkPluginExtension.class);
 
         extension.checkValidity();
@@ -105,14 +122,16 @@ public class EmbulkPluginsPlugin implements Plugin<Project> {
         // Dependencies of "embulkPluginRuntime" will be set only when "mainJar" is not configured.
         // If "mainJar" is set (ex. to "shadowJar"), developers need to configure "embulkPluginRuntime" by themselves.
         if (!extension.getMainJar().isPresent()) {
-            configureAlternativeRuntimeDependencies(project, runtimeConfiguration, alternativeRuntimeConfiguration);
+            dependencyGraphs.setAlternativeRuntimeFlattenedFromRuntime();
+            configureAlternativeRuntimeDependencies(project, alternativeRuntimeConfiguration, dependencyGraphs);
         }
 
         configureComponentsJava(project, alternativeRuntimeConfiguration);
 
-        configureJarTask(project, extension);
+        configureJarTask(project, extension, alternativeRuntimeConfiguration);
 
-        warnIfRuntimeHasCompileOnlyDependencies(project, alternativeRuntimeConfiguration);
+        configureCheckClassesTaskMainJar(
+                project, extension.getMainJar().isPresent() ? extension.getMainJar().get() : "jar");
 
         configureGemTasks(project, extension, alternativeRuntimeConfiguration);
     }
@@ -148,36 +167,26 @@ public class EmbulkPluginsPlugin implements Plugin<Project> {
      */
     private static void configureAlternativeRuntimeDependencies(
             final Project project,
-            final Configuration runtimeConfiguration,
-            final Configuration alternativeRuntimeConfiguration) {
+            final Configuration alternativeRuntimeConfiguration,
+            final ProjectDependencyGraphs dependencyGraphs) {
         alternativeRuntimeConfiguration.withDependencies(dependencies -> {
-            final Map<String, ResolvedDependency> allDependencies = new HashMap<>();
-            final Set<ResolvedDependency> firstLevelDependencies =
-                    runtimeConfiguration.getResolvedConfiguration().getFirstLevelModuleDependencies();
-            for (final ResolvedDependency dependency : firstLevelDependencies) {
-                if (dependency.getConfiguration().equals("runtimeElements")) {
-                    // The target project may contain a non-"group:module:version" dependency. A subproject, for example,
-                    // "compile project(':subproject-a')" should not be resolved as "group:module:version", nor be flattened.
-                    // See also: https://discuss.gradle.org/t/determining-external-vs-sub-project-dependencies/12321
-                    //
-                    // Such a dependency is under the configuration "runtimeElements".
-                    // https://docs.gradle.org/current/userguide/java_library_plugin.html#sec:java_library_configurations_graph
-                    for (final ResolvedArtifact artifact : dependency.getModuleArtifacts()) {
-                        // TODO: Consider nested subproject dependencies. See #54.
-                        final ComponentIdentifier componentIdentifier = artifact.getId().getComponentIdentifier();
-                        if (componentIdentifier instanceof ProjectComponentIdentifier) {
-                            final Project dependencyProject =
-                                    project.project(((ProjectComponentIdentifier) componentIdentifier).getProjectPath());
-                            dependencies.add(project.getDependencies().create(dependencyProject));
-                        }
+            final FlattenedDependencies flattened = dependencyGraphs.getRuntime();
+
+            // The target project may contain a non-"group:module:version" dependency, which is not flattened.
+            for (final ResolvedDependency dependency : flattened.getProjectDependencies()) {
+                for (final ResolvedArtifact artifact : dependency.getModuleArtifacts()) {
+                    // TODO: Consider nested subproject dependencies. See #54.
+                    final ComponentIdentifier componentIdentifier = artifact.getId().getComponentIdentifier();
+                    if (componentIdentifier instanceof ProjectComponentIdentifier) {
+                        final Project dependencyProject =
+                                project.project(((ProjectComponentIdentifier) componentIdentifier).getProjectPath());
+                        dependencies.add(project.getDependencies().create(dependencyProject));
                     }
-                } else {
-                    recurseAllDependencies(dependency, allDependencies);
                 }
             }
 
-            for (final ResolvedDependency dependency : allDependencies.values()) {
-                final HashMap<String, String> notation = new HashMap<>();
+            for (final ResolvedDependency dependency : flattened.getExternalDependencies().values()) {
+                final LinkedHashMap<String, String> notation = new LinkedHashMap<>();
                 notation.put("group", dependency.getModuleGroup());
                 notation.put("name", dependency.getModuleName());
                 notation.put("version", dependency.getModuleVersion());
@@ -246,7 +255,10 @@ public class EmbulkPluginsPlugin implements Plugin<Project> {
     /**
      * Configures the standard {@code "jar"} task with required MANIFEST.
      */
-    private static void configureJarTask(final Project project, final EmbulkPluginExtension extension) {
+    private static void configureJarTask(
+            final Project project,
+            final EmbulkPluginExtension extension,
+            final Configuration alternativeRuntimeConfiguration) {
         final String mainJarTaskName;
         if (extension.getMainJar().isPresent()) {
             mainJarTaskName = extension.getMainJar().get();
@@ -254,71 +266,121 @@ public class EmbulkPluginsPlugin implements Plugin<Project> {
             mainJarTaskName = "jar";
         }
         project.getTasks().named(mainJarTaskName, Jar.class, jarTask -> {
-            jarTask.manifest(UpdateManifestAction.builder()
-                             .add("Embulk-Plugin-Main-Class", extension.getMainClass().get())
-                             .add("Embulk-Plugin-Category", extension.getCategory().get())
-                             .add("Embulk-Plugin-Type", extension.getType().get())
-                             .add("Embulk-Plugin-Spi-Version", "0")
-                             .add("Implementation-Title", project.getName())
-                             .add("Implementation-Version", project.getVersion().toString())
-                             .build());
+            final UpdateManifestAction.Builder manifest = UpdateManifestAction.builder()
+                    .add("Embulk-Plugin-Main-Class", extension.getMainClass().get())
+                    .add("Embulk-Plugin-Category", extension.getCategory().get())
+                    .add("Embulk-Plugin-Type", extension.getType().get())
+                    .add("Embulk-Plugin-Spi-Version", "0")
+                    .add("Implementation-Title", project.getName())
+                    .add("Implementation-Version", project.getVersion().toString());
+            if (extension.getClasspathIndex().get()) {
+                // The main JAR file is in classpath/ of the gem together with the index.
+                manifest.add(ClasspathIndex.MANIFEST_ATTRIBUTE, ClasspathIndex.FILE_NAME);
+            }
+            if (extension.getDependencyList().get()) {
+                final TaskProvider<GenerateEmbulkPluginDependencies> dependenciesTask = project.getTasks().named(
+                        "generateEmbulkPluginDependencies", GenerateEmbulkPluginDependencies.class, task -> {
+                            task.setConfiguration(alternativeRuntimeConfiguration);
+                        });
+                jarTask.from(dependenciesTask);
+                manifest.add(GenerateEmbulkPluginDependencies.MANIFEST_ATTRIBUTE, GenerateEmbulkPluginDependencies.PATH);
+            }
+            jarTask.manifest(manifest.build());
+        });
+    }
+
+    private static void configureCheckDependenciesTask(
+            final Project project,
+            final TaskProvider<CheckEmbulkPluginDependencies> checkDependenciesTask,
+            final Configuration alternativeRuntimeConfiguration,
+            final ProjectDependencyGraphs dependencyGraphs) {
+        checkDependenciesTask.configure(task -> {
+            task.setGroup(LifecycleBasePlugin.VERIFICATION_GROUP);
+            task.setDescription("Checks the dependency lock state, and \"compileOnly\" dependencies in the runtime.");
+            task.getRuntimeClasspath().from(alternativeRuntimeConfiguration, project.getConfigurations().getByName("runtime"));
+            task.getCompileOnlyClasspath().from(project.getConfigurations().getByName("compileOnly"));
+            task.setDependencyGraphs(dependencyGraphs);
+        });
+        project.getTasks().named(LifecycleBasePlugin.CHECK_TASK_NAME, task -> {
+            task.dependsOn(checkDependenciesTask);
         });
     }
 
-    private static void warnIfRuntimeHasCompileOnlyDependencies(
+    private static void configureCheckClassesTask(
             final Project project,
+            final TaskProvider<CheckEmbulkPluginClasses> checkClassesTask,
             final Configuration alternativeRuntimeConfiguration) {
-        final Configuration compileOnlyConfiguration = project.getConfigurations().getByName("compileOnly");
-
-        final Map<String, ResolvedDependency> compileOnlyDependencies =
-                collectAllDependencies(compileOnlyConfiguration);
-        final Map<String, ResolvedDependency> alternativeRuntimeDependencies =
-                collectAllDependencies(alternativeRuntimeConfiguration);
-
-        final Set<String> intersects = new HashSet<>();
-        intersects.addAll(alternativeRuntimeDependencies.keySet());
-        intersects.retainAll(compileOnlyDependencies.keySet());
-        if (!intersects.isEmpty()) {
-            final Logger logger = project.getLogger();
-
-            // Logging in the "error" loglevel to show the severity, but not to fail with GradleException.
-            logger.error(
-                    "============================================ WARNING ============================================\n"
-                    + "Following \"runtime\" dependencies are included also in \"compileOnly\" dependencies.\n"
-                    + "\n"
-                    + intersects.stream().map(key -> {
-                          final ResolvedDependency dependency = alternativeRuntimeDependencies.get(key);
-                          return "  \"" + dependency.getModule().toString() + "\"\n";
-                      }).collect(Collectors.joining(""))
-                    + "\n"
-                    + "  \"compileOnly\" dependencies are used to represent Embulk's core to be \"provided\" at runtime.\n"
-                    + "  They should be excluded from \"compile\" or \"runtime\" dependencies like the example below.\n"
-                    + "\n"
-                    + "  dependencies {\n"
-                    + "    compile(\"org.glassfish.jersey.core:jersey-client:2.25.1\") {\n"
-                    + "      exclude group: \"javax.inject\", module: \"javax.inject\"\n"
-                    + "    }\n"
-                    + "  }\n"
-                    + "=================================================================================================");
-        }
+        checkClassesTask.configure(task -> {
+            task.setGroup(LifecycleBasePlugin.VERIFICATION_GROUP);
+            task.setDescription("Finds duplicate classes and split packages in the classpath of the gem.");
+            task.getRuntimeClasspath().from(alternativeRuntimeConfiguration);
+            task.getCompileOnlyClasspath().from(project.getConfigurations().getByName("compileOnly"));
+        });
+        // It is not a part of "check" by default because it scans also Embulk's core, and may warn in existing builds.
+    }
+
+    /**
+     * Adds the main JAR file into the classes to check, as it is in {@code classpath/} of the gem.
+     */
+    private static void configureCheckClassesTaskMainJar(final Project project, final String mainJarTaskName) {
+        project.getTasks().named("checkEmbulkPluginClasses", CheckEmbulkPluginClasses.class, task -> {
+            task.getRuntimeClasspath().from(project.getTasks().named(mainJarTaskName, Jar.class).flatMap(Jar::getArchiveFile));
+        });
     }
 
     private static void configureGemTasks(
             final Project project,
             final EmbulkPluginExtension extension,
             final Configuration alternativeRuntimeConfiguration) {
-        final TaskProvider<Gem> gemTask = project.getTasks().named("gem", Gem.class, task -> {
-            final String mainJarTaskName;
-            if (extension.getMainJar().isPresent()) {
-                mainJarTaskName = extension.getMainJar().get();
-            } else {
-                mainJarTaskName = "jar";
+        final String mainJarTaskName;
+        if (extension.getMainJar().isPresent()) {
+            mainJarTaskName = extension.getMainJar().get();
+        } else {
+            mainJarTaskName = "jar";
+        }
+        final TaskProvider<Jar> mainJarTask = project.getTasks().named(mainJarTaskName, Jar.class);
+        final Provider<RegularFile> mainJarFile = mainJarTask.flatMap(Jar::getArchiveFile);
+
+        final TaskProvider<MinimizeEmbulkPluginClasspath> minimizeClasspathTask = project.getTasks().named(
+                "minimizeEmbulkPluginClasspath", MinimizeEmbulkPluginClasspath.class, task -> {
+                    task.getMainClasspath().from(mainJarFile);
+                    task.getClasspath().from(alternativeRuntimeConfiguration);
+                    task.getMainClass().set(extension.getMainClass());
+                });
+
+        // The JAR files of the dependencies to be in the gem, in the order of "embulkPluginRuntime".
+        // The minimized JAR files are in the same names as the original ones.
+        final ConfigurableFileCollection runtimeJars = project.files((Callable<Object>) () -> {
+            if (!extension.getMinimize().get()) {
+                return alternativeRuntimeConfiguration;
             }
+            final Directory minimized = minimizeClasspathTask.get().getDestinationDirectory().get();
+            final ArrayList<File> files = new ArrayList<>();
+            for (final File file : alternativeRuntimeConfiguration) {
+                files.add(minimized.file(file.getName()).getAsFile());
+            }
+            return files;
+        });
+        runtimeJars.builtBy((Callable<Object>) () -> {
+            return extension.getMinimize().get() ? minimizeClasspathTask : Collections.emptyList();
+        });
+
+        // The merged JAR file is named after the main JAR file as it carries the manifest of the main JAR file.
+        final TaskProvider<MergeEmbulkPluginClasspath> mergeClasspathTask = project.getTasks().named(
+                "mergeEmbulkPluginClasspath", MergeEmbulkPluginClasspath.class, task -> {
+                    task.getClasspath().from(mainJarFile, runtimeJars);
+                    task.getMergedJar().set(project.getLayout().getBuildDirectory().dir("embulkPluginClasspath")
+                            .flatMap(directory -> directory.file(mainJarTask.flatMap(Jar::getArchiveFileName))));
+                });
+
+        final TaskProvider<Gem> gemTask = project.getTasks().named("gem", Gem.class, task -> {
             task.dependsOn(mainJarTaskName);
 
-            task.setEmbulkPluginMainClass(extension.getMainClass().get());
-            task.setEmbulkPluginCategory(extension.getCategory().get());
-            task.setEmbulkPluginType(extension.getType().get());
+            task.getEmbulkPluginMainClass().set(extension.getMainClass());
+            task.getEmbulkPluginCategory().set(extension.getCategory());
+            task.getEmbulkPluginType().set(extension.getType());
+            task.getEmbulkPluginClasspathIndex().set(extension.getClasspathIndex());
+            task.getEmbulkPluginClasspathList().set(extension.getClasspathList());
 
             if ((!task.getArchiveBaseName().isPresent())) {
                 // project.getName() never returns null.
@@ -335,11 +397,14 @@ public class EmbulkPluginsPlugin implements Plugin<Project> {
                 task.getArchiveVersion().set(buildGemVersionFromMavenVersion(project.getVersion().toString()));
             }
 
-            task.getDestinationDirectory().set(((File) project.property("buildDir")).toPath().resolve("gems").toFile());
-            task.from(alternativeRuntimeConfiguration, copySpec -> {
-                copySpec.into("classpath");
-            });
-            task.from(((Jar) project.getTasks().getByName(mainJarTaskName)).getArchiveFile(), copySpec -> {
+            task.getDestinationDirectory().set(project.getLayout().getBuildDirectory().dir("gems"));
+            // The layout is chosen lazily so that "classpathLayout" configured after this is respected.
+            task.from((Callable<Object>) () -> {
+                if (task.getClasspathLayout().get().equals(Gem.LAYOUT_MERGED)) {
+                    return mergeClasspathTask;
+                }
+                return Arrays.asList(runtimeJars, mainJarFile);
+            }, copySpec -> {
                 copySpec.into("classpath");
             });
         });
@@ -347,9 +412,48 @@ public class EmbulkPluginsPlugin implements Plugin<Project> {
         project.getTasks().named("gemPush", GemPush.class, task -> {
             task.dependsOn("gem");
             if (!task.getGem().isPresent()) {
-                task.getGem().set(gemTask.get().getArchiveFile());
+                task.getGem().set(gemTask.flatMap(Gem::getArchiveFile));
             }
         });
+
+        // The class list and the archive are next to the gem, named after the gem.
+        project.getTasks().named("dumpEmbulkPluginCds", DumpEmbulkPluginCds.class, task -> {
+            task.setDescription("Generates a class list and an AppCDS archive of the Embulk plugin next to the gem.");
+            task.getClasspath().from(mainJarFile, runtimeJars, project.getConfigurations().getByName("compileOnly"));
+            task.getMainClass().set(extension.getMainClass());
+            task.getClassListFile().set(nextToGem(gemTask, ".classlist"));
+            task.getArchiveFile().set(nextToGem(gemTask, ".jsa"));
+        });
+
+        configureGemAllTask(project, gemTask);
+    }
+
+    private static Provider<RegularFile> nextToGem(final TaskProvider<Gem> gemTask, final String extension) {
+        final Provider<String> fileName = gemTask.flatMap(Gem::getArchiveFileName).map(
+                gemFileName -> gemFileName.replaceAll("\\.gem$", "") + extension);
+        return gemTask.flatMap(Gem::getDestinationDirectory).flatMap(directory -> directory.file(fileName));
+    }
+
+    /**
+     * Adds the {@code "gem"} task to the {@code "gemAll"} task in the root project, which is registered at first.
+     */
+    private static void configureGemAllTask(final Project project, final TaskProvider<Gem> gemTask) {
+        final Project rootProject = project.getRootProject();
+        final TaskProvider<GemAll> gemAllTask;
+        if (rootProject.getTasks().getNames().contains("gemAll")) {
+            gemAllTask = rootProject.getTasks().named("gemAll", GemAll.class);
+        } else {
+            gemAllTask = rootProject.getTasks().register("gemAll", GemAll.class, task -> {
+                task.setDescription("Builds the gems of all the Embulk plugins.");
+            });
+        }
+        gemAllTask.configure(task -> {
+            task.addGem(gemTask);
+        });
+        // It bounds the number of gems built concurrently by "maxWorkers" of "gemAll".
+        gemTask.configure(task -> {
+            task.mustRunAfter((Callable<Object>) () -> gemAllTask.get().precedingGem(gemTask));
+        });
     }
 
     private static String buildGemVersionFromMavenVersion(final String mavenVersion) {
@@ -365,34 +469,5 @@ public class EmbulkPluginsPlugin implements Plugin<Project> {
         }
     }
 
-    private static Map<String, ResolvedDependency> collectAllDependencies(final Configuration configuration) {
-        final HashMap<String, ResolvedDependency> allDependencies = new HashMap<>();
-
-        final Set<ResolvedDependency> firstLevel = configuration.getResolvedConfiguration().getFirstLevelModuleDependencies();
-        for (final ResolvedDependency dependency : firstLevel) {
-            recurseAllDependencies(dependency, allDependencies);
-        }
-
-        return Collections.unmodifiableMap(allDependencies);
-    }
-
-    /**
-     * Traverses the dependency tree recursively to list all the dependencies.
-     */
-    private static void recurseAllDependencies(
-            final ResolvedDependency dependency,
-            final Map<String, ResolvedDependency> allDependencies) {
-        final String key = dependency.getModuleGroup() + ":" + dependency.getModuleName();
-        if (allDependencies.containsKey(key)) {
-            return;
-        }
-        allDependencies.put(key, dependency);
-        if (dependency.getChildren().size() > 0) {
-            for (final ResolvedDependency child : dependency.getChildren()) {
-                recurseAllDependencies(child, allDependencies);
-            }
-        }
-    }
-
     static final String DEFAULT_JRUBY = "org.jruby:jruby-complete:9.2.7.0";
 }
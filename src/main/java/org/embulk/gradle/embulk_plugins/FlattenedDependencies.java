@@ -0,0 +1,146 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import org.gradle.api.artifacts.Configuration;
+import org.gradle.api.artifacts.ModuleIdentifier;
+import org.gradle.api.artifacts.ResolvedConfiguration;
+import org.gradle.api.artifacts.ResolvedDependency;
+
+/**
+ * An index of a resolved dependency graph flattened into modules, sorted by "group:module".
+ *
+ * <p>It is computed once per project by {@link ProjectDependencyGraphs}, and shared by the flattening of
+ * {@code "runtime"} into {@code "embulkPluginRuntime"} and the check of {@code "compileOnly"} dependencies. The graph
+ * is traversed iteratively, not recursively, so that a very deep graph does not overflow the stack.
+ *
+ * <p>When the same module appears more than once in the graph, the first one in the depth-first pre-order is taken,
+ * as the earlier recursive traversal did.
+ */
+final class FlattenedDependencies {
+    private FlattenedDependencies(
+            final Set<ResolvedDependency> projectDependencies,
+            final Map<ModuleIdentifier, ResolvedDependency> externalDependencies,
+            final Map<ModuleIdentifier, ResolvedDependency> allDependencies) {
+        this.projectDependencies = projectDependencies;
+        this.externalDependencies = externalDependencies;
+        this.allDependencies = allDependencies;
+    }
+
+    static FlattenedDependencies of(final Configuration configuration) {
+        return of(configuration.getResolvedConfiguration());
+    }
+
+    static FlattenedDependencies of(final ResolvedConfiguration resolvedConfiguration) {
+        return build(resolvedConfiguration.getFirstLevelModuleDependencies());
+    }
+
+    /**
+     * Returns the first-level dependencies on other projects, which are under the configuration "runtimeElements".
+     *
+     * <p>A subproject, for example, "compile project(':subproject-a')" should not be resolved as "group:module:version",
+     * nor be flattened. See also: https://discuss.gradle.org/t/determining-external-vs-sub-project-dependencies/12321
+     *
+     * @see <a href="https://docs.gradle.org/current/userguide/java_library_plugin.html#sec:java_library_configurations_graph">The Java Library plugin configurations</a>
+     */
+    Set<ResolvedDependency> getProjectDependencies() {
+        return this.projectDependencies;
+    }
+
+    /**
+     * Returns all the modules reachable from the first-level dependencies except for {@link #getProjectDependencies}.
+     */
+    Map<ModuleIdentifier, ResolvedDependency> getExternalDependencies() {
+        return this.externalDependencies;
+    }
+
+    /**
+     * Returns all the modules reachable from the first-level dependencies.
+     */
+    Map<ModuleIdentifier, ResolvedDependency> getAllDependencies() {
+        return this.allDependencies;
+    }
+
+    static String toKey(final ModuleIdentifier module) {
+        return module.getGroup() + ":" + module.getName();
+    }
+
+    static FlattenedDependencies build(final Set<ResolvedDependency> firstLevelDependencies) {
+        final ArrayList<ResolvedDependency> externalRoots = new ArrayList<>();
+        final LinkedHashSet<ResolvedDependency> projectRoots = new LinkedHashSet<>();
+        for (final ResolvedDependency dependency : firstLevelDependencies) {
+            if (dependency.getConfiguration().equals("runtimeElements")) {
+                projectRoots.add(dependency);
+            } else {
+                externalRoots.add(dependency);
+            }
+        }
+
+        final TreeMap<ModuleIdentifier, ResolvedDependency> visited = new TreeMap<>(MODULE_ORDER);
+        traverse(externalRoots, visited);
+        final TreeMap<ModuleIdentifier, ResolvedDependency> externalDependencies = new TreeMap<>(visited);
+        traverse(new ArrayList<>(projectRoots), visited);
+
+        return new FlattenedDependencies(
+                Collections.unmodifiableSet(projectRoots),
+                Collections.unmodifiableMap(externalDependencies),
+                Collections.unmodifiableMap(visited));
+    }
+
+    /**
+     * Traverses the dependency graph in depth-first pre-order with an explicit stack.
+     */
+    private static void traverse(
+            final List<ResolvedDependency> roots,
+            final Map<ModuleIdentifier, ResolvedDependency> visited) {
+        final ArrayDeque<ResolvedDependency> stack = new ArrayDeque<>();
+        pushReversed(stack, roots);
+        while (!stack.isEmpty()) {
+            final ResolvedDependency dependency = stack.pop();
+            final ModuleIdentifier module = dependency.getModule().getId().getModule();
+            if (visited.containsKey(module)) {
+                continue;
+            }
+            visited.put(module, dependency);
+            if (!dependency.getChildren().isEmpty()) {
+                pushReversed(stack, new ArrayList<>(dependency.getChildren()));
+            }
+        }
+    }
+
+    private static void pushReversed(final ArrayDeque<ResolvedDependency> stack, final List<ResolvedDependency> dependencies) {
+        for (int i = dependencies.size() - 1; i >= 0; i--) {
+            stack.push(dependencies.get(i));
+        }
+    }
+
+    // Sorted by "group:module" so that the flattened dependencies are listed in a stable order.
+    static final Comparator<ModuleIdentifier> MODULE_ORDER = Comparator.comparing(FlattenedDependencies::toKey);
+
+    private final Set<ResolvedDependency> projectDependencies;
+    private final Map<ModuleIdentifier, ResolvedDependency> externalDependencies;
+    private final Map<ModuleIdentifier, ResolvedDependency> allDependencies;
+}
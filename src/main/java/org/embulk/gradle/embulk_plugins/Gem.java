@@ -17,38 +17,41 @@
 package org.embulk.gradle.embulk_plugins;
 
 import java.io.File;
-import java.io.IOException;
-import java.io.PrintWriter;
-import java.nio.file.Files;
-import java.nio.file.FileVisitResult;
 import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.StandardOpenOption;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.TreeMap;
 import javax.inject.Inject;
 import org.gradle.api.GradleException;
 import org.gradle.api.Project;
-import org.gradle.api.artifacts.Configuration;
-import org.gradle.api.artifacts.Dependency;
+import org.gradle.api.file.Directory;
 import org.gradle.api.file.FileCollection;
+import org.gradle.api.file.RegularFileProperty;
 import org.gradle.api.internal.file.copy.CopyAction;
 import org.gradle.api.logging.Logger;
 import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.Optional;
+import org.gradle.api.tasks.OutputFile;
 import org.gradle.api.tasks.bundling.AbstractArchiveTask;
 import org.gradle.api.provider.ListProperty;
 import org.gradle.api.provider.MapProperty;
 import org.gradle.api.provider.Property;
-import org.gradle.process.ExecResult;
+import org.gradle.api.provider.Provider;
+import org.gradle.workers.WorkerExecutor;
 
 /**
  * A Gradle task to build a gem.
  *
+ * <p>The task is cacheable. All the gemspec attributes and the Embulk plugin attributes are declared as inputs,
+ * and the files in the gem are tracked by their relative paths in the gem as {@link AbstractArchiveTask} does.
+ * Then, a gem built in another workspace can be reused from the build cache.
+ *
  * <p>Configuration example:
  *
  * <pre>{@code gem {
@@ -59,23 +62,54 @@ import org.gradle.process.ExecResult;
  *   homepage = "https://example.com"
  *   licenses = [ "Apache-2.0" ]
  *
- *   // JRuby artifact to execute `gem build`.
+ *   // Build the gem reproducibly with fixed timestamps and permissions, in a stable order of files.
+ *   // The timestamps are fixed to SOURCE_DATE_EPOCH if set. reproducibleFileOrder follows it unless set explicitly.
+ *   preserveFileTimestamps = false
+ *
+ *   // Cache compressed entries of the gem so that a rebuild compresses only changed files again.
+ *   // The gem is compressed a little less because each file is compressed independently.
+ *   incremental = true
+ *
+ *   // Compression profile: "fastest", "balanced", or "smallest" (default).
+ *   // "fastest" is for snapshot builds. It saves CPU for JAR files which are already compressed.
+ *   compression = "fastest"
+ *
+ *   // The number of threads to compress the files in the gem, as pigz does. 1 by default.
+ *   compressionThreads = Runtime.runtime.availableProcessors()
+ *
+ *   // Layout of classpath/ in the gem: "separate" (default) or "merged".
+ *   // "merged" puts the main JAR file and all its dependencies into a single JAR file so that Embulk opens fewer files.
+ *   classpathLayout = "merged"
+ *
+ *   // How to build the gem: "java" (default) or "jruby".
+ *   // "java" writes the gem archive in-process. "jruby" executes `gem build` in a JRuby worker as a fallback.
+ *   builder = "jruby"
+ *
+ *   // JRuby artifact to execute `gem build` when `builder` is "jruby".
  *   // NOTE: Not recommended for users to configure it because this Gradle plugin expects a fixed version of JRuby.
  *   // For example, a certain version of `gem` would be required for command line options specified.
  *   // This option is here just for a quick hack or debugging.
  *   jruby = "org.jruby:jruby-complete:9.X.Y.Z"
  * }}</pre>
  */
-class Gem extends AbstractArchiveTask {
+@CacheableTask
+abstract class Gem extends AbstractArchiveTask {
     @Inject
     public Gem() {
         super();
 
-        final ObjectFactory objectFactory = this.getProject().getObjects();
+        // The project is touched only here at configuration time. The task action works only with the values
+        // captured below so that it does not depend on the mutable project model at execution time.
+        final Project project = this.getProject();
+        final ObjectFactory objectFactory = project.getObjects();
 
         this.embulkPluginMainClass = objectFactory.property(String.class);
         this.embulkPluginCategory = objectFactory.property(String.class);
         this.embulkPluginType = objectFactory.property(String.class);
+        this.embulkPluginClasspathIndex = objectFactory.property(Boolean.class);
+        this.embulkPluginClasspathIndex.set(false);
+        this.embulkPluginClasspathList = objectFactory.property(Boolean.class);
+        this.embulkPluginClasspathList.set(false);
 
         this.authors = objectFactory.listProperty(String.class);
         this.summary = objectFactory.property(String.class);
@@ -86,128 +120,220 @@ class Gem extends AbstractArchiveTask {
         // https://guides.rubygems.org/specification-reference/#metadata
         this.metadata = objectFactory.mapProperty(String.class, String.class);
 
-        this.jruby = objectFactory.property(Object.class);
-        this.jruby.set(EmbulkPluginsPlugin.DEFAULT_JRUBY);
+        this.builder = objectFactory.property(String.class);
+        this.builder.set(BUILDER_JAVA);
 
-        this.getArchiveExtension().set("gem");
-    }
-
-    @Override
-    protected CopyAction createCopyAction() {
-        final Project project = this.getProject();
-        final Logger logger = project.getLogger();
-        this.checkValidity(project, logger);
-
-        this.cleanIfExists(project);
-
-        // Copying the source files into the working directory. Note that the Gem task should not have top-level `into`
-        // because AbstractArchiveTask#into represents a destination directory *inside* the archive for the files.
-        // https://docs.gradle.org/5.5.1/javadoc/org/gradle/api/tasks/bundling/AbstractArchiveTask.html#into-java.lang.Object-
-        //
-        // TODO: Replace it with creating files in `GemCopyAction` (See #37)
-        // https://github.com/embulk/gradle-embulk-plugins/issues/37
-        project.copy(copySpec -> {
-            copySpec.with(this);
-            copySpec.into(this.getWorkingDir(project).toFile());
-        });
-        this.createBootstrap(project);
-        this.createGemspec(project, this.listFiles(project));
-
-        final ArrayList<String> args = new ArrayList<>();
-        args.add("-rjars/setup");
-        args.add("-S");
-        args.add("gem");
-        args.add("build");
-        args.add(project.getName() + ".gemspec");
-
-        final Path workingDirectory = this.getWorkingDir(project);
-
-        final Configuration jrubyConfiguration = project.getConfigurations().detachedConfiguration();
-        final Dependency jrubyDependency = project.getDependencies().create(this.jruby.get());
-        jrubyConfiguration.withDependencies(dependencies -> {
-            dependencies.add(jrubyDependency);
-        });
-
-        final FileCollection jrubyFiles = (FileCollection) jrubyConfiguration;
-        if (logger.isLifecycleEnabled()) {
-            logger.lifecycle(
-                    "Executing: `java org.jruby.Main " + String.join(" ", args) + "`\n"
-                    + "    with working directory at: " + workingDirectory.toString() + "\n"
-                    + "    with classpath: "
-                    + jrubyFiles.getFiles().stream().map(File::getPath).collect(Collectors.joining(", ", "[ ", " ]")));
-        }
+        this.classpathLayout = objectFactory.property(String.class);
+        this.classpathLayout.set(LAYOUT_SEPARATE);
 
-        final ExecResult execResult = project.javaexec(javaExecSpec -> {
-            javaExecSpec.setWorkingDir(workingDirectory.toFile());
-            javaExecSpec.setClasspath(jrubyFiles);
-            javaExecSpec.setMain("org.jruby.Main");
-            javaExecSpec.setArgs(args);
+        this.incremental = objectFactory.property(Boolean.class);
+        this.incremental.set(false);
 
-            javaExecSpec.setIgnoreExitValue(false);
+        this.compression = objectFactory.property(String.class);
+        this.compression.set(GemCompression.SMALLEST.getName());
 
-            final HashMap<String, Object> environments = new HashMap<>();
-            environments.putAll(System.getenv());
-            environments.putAll(javaExecSpec.getEnvironment());
+        this.compressionThreads = objectFactory.property(Integer.class);
+        this.compressionThreads.set(1);
 
-            // Clearing GEM_HOME and GEM_PATH so that user environment variables do not affect the gem execution.
-            environments.remove("GEM_HOME");
-            environments.remove("GEM_PATH");
+        this.jruby = objectFactory.property(Object.class);
+        this.jruby.set(EmbulkPluginsPlugin.DEFAULT_JRUBY);
+        this.jrubyClasspath = JRubyToolchains.of(project).classpath(project, this.jruby);
 
-            // JARS_LOCK, JARS_HOME, and JARS_SKIP are for "jar-dependencies".
-            // https://github.com/mkristian/jar-dependencies/wiki/Jars.lock#jarslock-filename
-            environments.remove("JARS_LOCK");
-            // https://github.com/mkristian/jar-dependencies/blob/0.4.0/Readme.md#configuration
-            environments.remove("JARS_HOME");
-            environments.put("JARS_SKIP", "true");
+        this.projectDescription = objectFactory.property(String.class);
+        this.projectDescription.set(project.provider(project::getDescription));
+        this.sourceDateEpoch = project.getProviders().provider(() -> System.getenv("SOURCE_DATE_EPOCH"));
+        this.workingDirectory = project.getLayout().getBuildDirectory().dir("gemContents");
+        this.metricsReportFile = objectFactory.fileProperty();
+        this.metricsReportFile.set(
+                project.getLayout().getBuildDirectory().file("reports/embulk/" + this.getName() + ".json"));
+        this.projectDirectory = project.getProjectDir().toPath();
 
-            // https://github.com/mkristian/jbundler/wiki/Configuration
-            environments.put("JBUNDLE_SKIP", "true");
+        this.getArchiveExtension().set("gem");
 
-            javaExecSpec.setEnvironment(environments);
-        });
-        execResult.assertNormalExitValue();
+        // SOURCE_DATE_EPOCH is the build time of a reproducible gem.
+        this.getInputs().property("sourceDateEpoch", this.sourceDateEpoch).optional(true);
+    }
 
-        logger.lifecycle("Executing `gem build` finished successfully.");
+    @Override
+    protected CopyAction createCopyAction() {
+        final Logger logger = this.getLogger();
+        this.checkValidity(logger);
 
+        final Instant buildTime = this.getBuildTime();
         return new GemCopyAction(
-                this.getWorkingDir(project).resolve(project.getName() + "-" + this.getArchiveVersion().get() + "-java.gem"),
                 this.getArchiveFile(),
-                project);
+                this.buildSpecification(buildTime),
+                buildTime,
+                this.isPreserveFileTimestamps(),
+                this.incremental.get(),
+                this.getTemporaryDir().toPath().resolve("segments"),
+                this.getTemporaryDir().toPath().resolve("staging"),
+                GemCompression.of(this.compression.get()),
+                this.compressionThreads.get(),
+                this.getBootstrapPath(),
+                this.renderBootstrap(),
+                this.embulkPluginClasspathIndex.get(),
+                this.embulkPluginClasspathList.get(),
+                this.builder.get(),
+                this.jrubyClasspath,
+                this.workingDirectory.get().getAsFile().toPath().normalize(),
+                this.projectDirectory,
+                this.getWorkerExecutor(),
+                this.getPath(),
+                this.metricsReportFile.isPresent() ? this.metricsReportFile.get().getAsFile().toPath() : null,
+                logger);
     }
 
+    @Inject
+    abstract WorkerExecutor getWorkerExecutor();
+
+    @Input
     public ListProperty<String> getAuthors() {
         return this.authors;
     }
 
+    @Input
     public Property<String> getSummary() {
         return this.summary;
     }
 
+    @Input
+    @Optional
     public ListProperty<String> getEmail() {
         return this.email;
     }
 
+    @Input
+    @Optional
     public Property<String> getHomepage() {
         return this.homepage;
     }
 
+    @Input
+    @Optional
     public ListProperty<String> getLicenses() {
         return this.licenses;
     }
 
+    @Input
+    @Optional
     public MapProperty<String, String> getMetadata() {
         return this.metadata;
     }
 
+    /**
+     * Property to configure how to build the gem: {@code "java"} (default) or {@code "jruby"}.
+     */
+    @Input
+    public Property<String> getBuilder() {
+        return this.builder;
+    }
+
+    /**
+     * Property to configure the layout of {@code classpath/} in the gem: {@code "separate"} (default) or
+     * {@code "merged"}.
+     *
+     * <p>{@code "separate"} puts the main JAR file and the JAR files of {@code "embulkPluginRuntime"} as they are.
+     * {@code "merged"} puts a single JAR file merged by {@link MergeEmbulkPluginClasspath} instead.
+     */
+    @Input
+    public Property<String> getClasspathLayout() {
+        return this.classpathLayout;
+    }
+
+    /**
+     * Returns whether to put the files in the gem in a stable order.
+     *
+     * <p>It is {@code true} by default when {@code preserveFileTimestamps} is {@code false} so that the gem is
+     * reproducible only with {@code preserveFileTimestamps = false}. It can still be configured explicitly.
+     */
+    @Input
+    @Override
+    public boolean isReproducibleFileOrder() {
+        if (this.reproducibleFileOrder != null) {
+            return this.reproducibleFileOrder;
+        }
+        return !this.isPreserveFileTimestamps();
+    }
+
+    @Override
+    public void setReproducibleFileOrder(final boolean reproducibleFileOrder) {
+        super.setReproducibleFileOrder(reproducibleFileOrder);
+        this.reproducibleFileOrder = reproducibleFileOrder;
+    }
+
+    /**
+     * Property to configure the JSON report of the metrics of the build, {@code build/reports/embulk/gem.json} by
+     * default. It is an output of the task so that it is restored together with the gem from the build cache.
+     * The report is not written if it is unset.
+     */
+    @Optional
+    @OutputFile
+    public RegularFileProperty getMetricsReportFile() {
+        return this.metricsReportFile;
+    }
+
+    /**
+     * Property to configure whether to cache compressed entries of the gem to rebuild it incrementally.
+     *
+     * <p>It is effective only with the {@code "java"} builder.
+     */
+    @Input
+    public Property<Boolean> getIncremental() {
+        return this.incremental;
+    }
+
+    /**
+     * Property to configure the compression profile of the gem: {@code "fastest"}, {@code "balanced"},
+     * or {@code "smallest"} (default).
+     *
+     * <p>It is effective only with the {@code "java"} builder.
+     *
+     * @see GemCompression
+     */
+    @Input
+    public Property<String> getCompression() {
+        return this.compression;
+    }
+
+    /**
+     * Property to configure the number of threads to compress the files in the gem. It is 1 by default.
+     *
+     * <p>It is effective only with the {@code "java"} builder, and not with {@code incremental}.
+     */
+    @Input
+    public Property<Integer> getCompressionThreads() {
+        return this.compressionThreads;
+    }
+
     /**
      * Property to configure a dependency notation for JRuby to run `gem build` and `gem push` commands.
      */
+    @Internal
     public Property<Object> getJruby() {
         return this.jruby;
     }
 
-    private void checkValidity(final Project project, final Logger logger) {
-        if (project.getDescription() == null || project.getDescription().isEmpty()) {
+    /**
+     * Returns the JRuby dependency notation as a task input. A notation other than a string is represented by its
+     * {@code toString} so that the input is always serializable for the build cache.
+     */
+    @Input
+    Provider<String> getJrubyNotation() {
+        return this.jruby.map(Object::toString);
+    }
+
+    /**
+     * Returns the project description, which is rendered into the gemspec as "description".
+     */
+    @Input
+    @Optional
+    Property<String> getProjectDescription() {
+        return this.projectDescription;
+    }
+
+    private void checkValidity(final Logger logger) {
+        if ((!this.projectDescription.isPresent()) || this.projectDescription.get().isEmpty()) {
             logger.warn("Recommended to configure \"project.description\".");
         }
         if ((!this.email.isPresent()) || this.email.get().isEmpty()) {
@@ -220,6 +346,26 @@ class Gem extends AbstractArchiveTask {
             logger.warn("Recommended to configure \"licenses\". For example: `licenses = [ \"Apache-2.0\" ]`");
         }
 
+        if (!GemCompression.names().contains(this.compression.get())) {
+            throw new GradleException(
+                    "Failed to configure \"gem\" because \"compression\" must be one of: [ "
+                    + String.join(", ", GemCompression.names()) + " ]");
+        }
+        if (this.compressionThreads.get() < 1) {
+            throw new GradleException("Failed to configure \"gem\" because \"compressionThreads\" must be positive.");
+        }
+
+        if (!BUILDERS.contains(this.builder.get())) {
+            throw new GradleException(
+                    "Failed to configure \"gem\" because \"builder\" must be one of: [ "
+                    + String.join(", ", BUILDERS) + " ]");
+        }
+        if (!LAYOUTS.contains(this.classpathLayout.get())) {
+            throw new GradleException(
+                    "Failed to configure \"gem\" because \"classpathLayout\" must be one of: [ "
+                    + String.join(", ", LAYOUTS) + " ]");
+        }
+
         final ArrayList<String> errors = new ArrayList<>();
         if ((!this.getArchiveBaseName().isPresent()) || this.getArchiveBaseName().get().isEmpty()) {
             errors.add("\"archiveBaseName\"");
@@ -240,159 +386,107 @@ class Gem extends AbstractArchiveTask {
         }
     }
 
-    void setEmbulkPluginMainClass(final String embulkPluginMainClass) {
-        this.embulkPluginMainClass.set(embulkPluginMainClass);
+    @Input
+    Property<String> getEmbulkPluginMainClass() {
+        return this.embulkPluginMainClass;
     }
 
-    void setEmbulkPluginCategory(final String embulkPluginCategory) {
-        this.embulkPluginCategory.set(embulkPluginCategory);
+    @Input
+    Property<String> getEmbulkPluginCategory() {
+        return this.embulkPluginCategory;
     }
 
-    void setEmbulkPluginType(final String embulkPluginType) {
-        this.embulkPluginType.set(embulkPluginType);
+    @Input
+    Property<String> getEmbulkPluginType() {
+        return this.embulkPluginType;
     }
 
-    private static String renderList(final List<String> strings) {
-        return String.join(", ", strings.stream().map(s -> "\"" + s + "\"").collect(Collectors.toList()));
+    /**
+     * Returns whether to generate {@link ClasspathIndex} in the gem, which is configured by {@code embulkPlugin}.
+     */
+    @Input
+    Property<Boolean> getEmbulkPluginClasspathIndex() {
+        return this.embulkPluginClasspathIndex;
     }
 
-    private void cleanIfExists(final Project project) {
-        final Path root = this.getWorkingDir(project);
-        if (!Files.exists(root)) {
-            return;
-        }
-        try {
-            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
-                @Override
-                public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
-                    Files.delete(file);
-                    return FileVisitResult.CONTINUE;
-                }
-
-                @Override
-                public FileVisitResult postVisitDirectory(final Path dir, final IOException exc) throws IOException {
-                    Files.delete(dir);
-                    return FileVisitResult.CONTINUE;
-                }
-            });
-        } catch (final IOException ex) {
-            throw new GradleException("Failed to clean the target directory: " + root.toString(), ex);
-        }
+    /**
+     * Returns whether to generate {@link ClasspathList} in the gem, which is configured by {@code embulkPlugin}.
+     */
+    @Input
+    Property<Boolean> getEmbulkPluginClasspathList() {
+        return this.embulkPluginClasspathList;
     }
 
-    private void createBootstrap(final Project project) {
-        final Path dirPath = this.getWorkingDir(project).resolve("lib").resolve("embulk").resolve(this.embulkPluginCategory.get());
-        try {
-            Files.createDirectories(dirPath);
-        } catch (final IOException ex) {
-            throw new GradleException("Failed to create the directory: " + dirPath.toString(), ex);
-        }
-
-        final Path filePath = dirPath.resolve(this.embulkPluginType.get() + ".rb");
-        try (final PrintWriter writer = new PrintWriter(Files.newOutputStream(filePath, StandardOpenOption.CREATE_NEW))) {
-            writer.println("Embulk::JavaPlugin.register_" + this.embulkPluginCategory.get() + "(");
-            writer.println("  \"" + this.embulkPluginType.get() + "\", \"" + this.embulkPluginMainClass.get() + "\",");
-            writer.println("  File.expand_path(\"../../../../classpath\", __FILE__))");
-        } catch (final IOException ex) {
-            throw new GradleException("Failed to create/write to the bootstrap Ruby file: " + filePath.toString(), ex);
-        }
+    /**
+     * Returns the path of the bootstrap Ruby file in the gem: {@code lib/embulk/<category>/<type>.rb}.
+     */
+    private String getBootstrapPath() {
+        return "lib/embulk/" + this.embulkPluginCategory.get() + "/" + this.embulkPluginType.get() + ".rb";
     }
 
-    private List<Path> listFiles(final Project project) {
-        final ArrayList<Path> files = new ArrayList<>();
-
-        final Path root = this.getWorkingDir(project);
-        try {
-            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
-                @Override
-                public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
-                    files.add(root.relativize(file));
-                    return FileVisitResult.CONTINUE;
-                }
-            });
-        } catch (final IOException ex) {
-            throw new GradleException("Failed to list files in the directory: " + root.toString(), ex);
+    private String renderBootstrap() {
+        final StringBuilder builder = new StringBuilder();
+        if (this.embulkPluginClasspathList.get()) {
+            // Embulk::JavaPlugin.register_* takes only the directory. The list is for plugin loaders which know it.
+            builder.append("# The JAR files in the classpath directory are listed in order with their sizes and SHA-256 in:\n");
+            builder.append("# " + ClasspathList.PATH + "\n");
         }
-
-        return Collections.unmodifiableList(files);
+        builder.append("Embulk::JavaPlugin.register_" + this.embulkPluginCategory.get() + "(\n");
+        builder.append("  \"" + this.embulkPluginType.get() + "\", \"" + this.embulkPluginMainClass.get() + "\",\n");
+        builder.append("  File.expand_path(\"../../../../classpath\", __FILE__))\n");
+        return builder.toString();
     }
 
-    private void createGemspec(final Project project, final List<Path> files) {
-        final Path gemspecPath = this.getWorkingDir(project).resolve(project.getName() + ".gemspec");
-        try (final PrintWriter writer = new PrintWriter(Files.newOutputStream(gemspecPath, StandardOpenOption.CREATE_NEW))) {
-            this.dump(writer, project, files);
-        } catch (final IOException ex) {
-            throw new GradleException("Failed to create/write to the gemspec file: " + gemspecPath.toString(), ex);
+    /**
+     * Returns the time to be recorded in the gem.
+     *
+     * <p>When {@code preserveFileTimestamps} is {@code false}, the gem is built reproducibly. The time is fixed to
+     * {@code SOURCE_DATE_EPOCH}, or to 1980-01-02 if unset, as RubyGems does for reproducible builds.
+     *
+     * @see <a href="https://reproducible-builds.org/specs/source-date-epoch/">SOURCE_DATE_EPOCH</a>
+     */
+    private Instant getBuildTime() {
+        if (this.isPreserveFileTimestamps()) {
+            return Instant.now();
         }
-    }
-
-    private Path getWorkingDir(final Project project) {
-        return ((File) project.property("buildDir")).toPath().resolve("gemContents").normalize();
-    }
-
-    // https://guides.rubygems.org/specification-reference/
-    // https://maven.apache.org/ref/3.6.0/maven-model/apidocs/org/apache/maven/model/Model.html
-    private void dump(final PrintWriter writer, final Project project, final List<Path> files) {
-        writer.println("Gem::Specification.new do |spec|");
-
-        // REQUIRED GEMSPEC ATTRIBUTES
-        writer.println("    spec.authors       = [" + renderList(this.authors.get()) + "]");
-        writer.println("    spec.files         = [");
-        for (final Path file : files) {
-            writer.println("        \"" + file.toString() + "\",");
+        final String sourceDateEpoch = this.sourceDateEpoch.getOrNull();
+        if (sourceDateEpoch == null || sourceDateEpoch.isEmpty()) {
+            return Instant.ofEpochSecond(DEFAULT_SOURCE_DATE_EPOCH);
         }
-        writer.println("    ]");
-        writer.println("    spec.name          = \"" + this.getArchiveBaseName().get() + "\"");
-        writer.println("    spec.summary       = \"" + this.summary.get() + "\"");
-        writer.println("    spec.version       = \"" + this.getArchiveVersion().get() + "\"");
-
-        // RECOMMENDED GEMSPEC ATTRIBUTES
-        if (project.getDescription() != null && !project.getDescription().isEmpty()) {
-            writer.println("    spec.description   = \"" + project.getDescription() + "\"");
+        try {
+            return Instant.ofEpochSecond(Long.parseLong(sourceDateEpoch.trim()));
+        } catch (final NumberFormatException ex) {
+            throw new GradleException("SOURCE_DATE_EPOCH must be seconds since the epoch: " + sourceDateEpoch, ex);
         }
-        if (this.email.isPresent() && !this.email.get().isEmpty()) {
-            writer.println("    spec.email         = [" + renderList(this.email.get()) + "]");
+    }
+
+    /**
+     * Builds the specification of the gem except for {@code files}, which are fixed in {@link GemCopyAction}.
+     */
+    private GemSpecification buildSpecification(final Instant buildTime) {
+        final GemSpecification.Builder builder = GemSpecification.builder()
+                .name(this.getArchiveBaseName().get())
+                .version(this.getArchiveVersion().get())
+                .authors(this.authors.get())
+                .summary(this.summary.get())
+                .description(this.projectDescription.getOrNull())
+                .licenses(this.licenses.getOrElse(Collections.emptyList()))
+                .metadata(new TreeMap<>(this.metadata.getOrElse(Collections.emptyMap())))
+                .date(buildTime);
+        if (this.email.isPresent()) {
+            builder.email(this.email.get());
         }
         if (this.homepage.isPresent()) {
-            writer.println("    spec.homepage      = \"" + this.homepage.get() + "\"");
+            builder.homepage(this.homepage.get());
         }
-        if (this.licenses.isPresent() && !this.licenses.get().isEmpty()) {
-            writer.println("    spec.licenses      = [" + renderList(this.licenses.get()) + "]");
-        }
-        if (this.metadata.isPresent() && !this.metadata.get().isEmpty()) {
-            writer.println("    spec.metadata      = {");
-            for (final Map.Entry<String, String> entry : this.metadata.get().entrySet()) {
-                writer.println("        \"" + entry.getKey() + "\" => \"" + entry.getValue() + "\",");
-            }
-            writer.println("    }");
-        }
-
-        // OPTIONAL GEMSPEC ATTRIBUTES
-        // add_development_dependency
-        // add_runtime_dependency
-        // author=
-        // bindir
-        // cert_chain
-        // executables
-        // extensions
-        // extra_rdoc_files
-        writer.println("    spec.platform      = \"java\"");
-        // post_install_message
-        // rdoc_options
-        writer.println("    spec.require_paths = [ \"lib\" ]");
-        // required_ruby_version
-        // required_ruby_version=
-        // required_rubygems_version
-        // required_rubygems_version=
-        // requirements
-        // rubygems_version
-        // signing_key
-        writer.println("end");
+        return builder.build();
     }
 
     private final Property<String> embulkPluginMainClass;
     private final Property<String> embulkPluginCategory;
     private final Property<String> embulkPluginType;
+    private final Property<Boolean> embulkPluginClasspathIndex;
+    private final Property<Boolean> embulkPluginClasspathList;
 
     private final ListProperty<String> authors;
     private final Property<String> summary;
@@ -403,5 +497,37 @@ class Gem extends AbstractArchiveTask {
     private final ListProperty<String> licenses;
     private final MapProperty<String, String> metadata;
 
+    private final Property<String> builder;
+
+    private final Property<String> classpathLayout;
+
+    private final Property<Boolean> incremental;
+
+    private final Property<String> compression;
+    private final Property<Integer> compressionThreads;
+
     private final Property<Object> jruby;
+    private final FileCollection jrubyClasspath;
+
+    // null unless configured explicitly, then it follows preserveFileTimestamps.
+    private Boolean reproducibleFileOrder;
+
+    private final Property<String> projectDescription;
+    private final Provider<String> sourceDateEpoch;
+    private final Provider<Directory> workingDirectory;
+    private final RegularFileProperty metricsReportFile;
+    private final Path projectDirectory;
+
+    // The same as Gem::DEFAULT_SOURCE_DATE_EPOCH in RubyGems 3: 1980-01-02 00:00:00 UTC.
+    private static final long DEFAULT_SOURCE_DATE_EPOCH = 315619200L;
+
+    static final String BUILDER_JAVA = "java";
+    static final String BUILDER_JRUBY = "jruby";
+
+    private static final List<String> BUILDERS = Collections.unmodifiableList(Arrays.asList(BUILDER_JAVA, BUILDER_JRUBY));
+
+    static final String LAYOUT_SEPARATE = "separate";
+    static final String LAYOUT_MERGED = "merged";
+
+    private static final List<String> LAYOUTS = Collections.unmodifiableList(Arrays.asList(LAYOUT_SEPARATE, LAYOUT_MERGED));
 }
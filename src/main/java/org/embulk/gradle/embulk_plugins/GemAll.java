@@ -0,0 +1,179 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import groovy.json.JsonSlurper;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import javax.inject.Inject;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.TaskAction;
+import org.gradle.api.tasks.TaskProvider;
+import org.gradle.api.tasks.TaskState;
+
+/**
+ * A Gradle task to build the gems of all the Embulk plugins in a multi-project build: {@code "gemAll"}.
+ *
+ * <p>It is registered in the root project when this Gradle plugin is applied to any project, and it depends on the
+ * {@link Gem} task of every project. It does not build gems by itself so that the {@link Gem} tasks stay up-to-date,
+ * and are taken from the build cache, as usual.
+ *
+ * <p>Each {@link Gem} task with the {@code "java"} builder writes its gem through the Worker API after its action.
+ * Gradle runs other tasks, including the {@link Gem} tasks of other projects, while waiting for the worker even
+ * without {@code --parallel}. So, the gems are built concurrently. {@code maxWorkers} bounds the number of gems built at the same time by ordering the
+ * {@link Gem} tasks: a {@link Gem} task runs after the one {@code maxWorkers} ahead of it has finished. Gradle's
+ * {@code --max-workers} bounds it further.
+ *
+ * <p>A summary table of the gems and their build times is logged at the end. The build times are read from the
+ * metrics report of each {@link Gem} task.
+ *
+ * <pre>{@code gradle.projectsEvaluated {
+ *   tasks.named("gemAll") {
+ *     maxWorkers = 4  // The number of available processors by default.
+ *   }
+ * }}</pre>
+ */
+class GemAll extends DefaultTask {
+    @Inject
+    public GemAll() {
+        super();
+        this.maxWorkers = this.getProject().getObjects().property(Integer.class);
+        this.maxWorkers.set(Runtime.getRuntime().availableProcessors());
+        this.gems = new ArrayList<>();
+    }
+
+    /**
+     * Property to configure the maximum number of gems to build concurrently.
+     *
+     * <p>It is internal because it only orders the {@link Gem} tasks, and does not change any gem.
+     */
+    @Internal
+    public Property<Integer> getMaxWorkers() {
+        return this.maxWorkers;
+    }
+
+    /**
+     * Adds a {@link Gem} task to be aggregated.
+     */
+    void addGem(final TaskProvider<Gem> gem) {
+        this.gems.add(gem);
+        this.dependsOn(gem);
+    }
+
+    /**
+     * Returns the {@link Gem} task {@code maxWorkers} ahead of the {@link Gem} task, or an empty list.
+     *
+     * <p>The {@link Gem} task must run after it. It is called when the task graph is built, after {@code maxWorkers}
+     * is configured.
+     */
+    Object precedingGem(final TaskProvider<Gem> gem) {
+        final int maxWorkers = this.maxWorkers.get();
+        if (maxWorkers < 1) {
+            throw new GradleException("Failed to configure \"gemAll\" because \"maxWorkers\" must be positive.");
+        }
+        final int index = this.gems.indexOf(gem);
+        if (index < maxWorkers) {
+            return Collections.emptyList();
+        }
+        return this.gems.get(index - maxWorkers);
+    }
+
+    @TaskAction
+    public void summarize() {
+        final Logger logger = this.getLogger();
+
+        final ArrayList<String[]> rows = new ArrayList<>();
+        rows.add(new String[] { "Task", "Gem", "Status", "Bytes", "Seconds" });
+        for (final TaskProvider<Gem> gem : this.gems) {
+            final Gem gemTask = gem.get();
+            final File gemFile = gemTask.getArchiveFile().get().getAsFile();
+            final String status = statusOf(gemTask.getState());
+            rows.add(new String[] {
+                    gemTask.getPath(),
+                    gemFile.getName(),
+                    status,
+                    gemFile.exists() ? Long.toString(gemFile.length()) : "-",
+                    // The metrics report of a skipped task is from an earlier build.
+                    status.equals(STATUS_BUILT) ? secondsOf(gemTask, logger) : "-",
+            });
+        }
+        logger.lifecycle(formatTable(rows));
+    }
+
+    private static String statusOf(final TaskState state) {
+        if (state.getFailure() != null) {
+            return "FAILED";
+        }
+        if (state.getSkipped()) {
+            return state.getSkipMessage();
+        }
+        return STATUS_BUILT;
+    }
+
+    private static String secondsOf(final Gem gemTask, final Logger logger) {
+        if (!gemTask.getMetricsReportFile().isPresent()) {
+            return "-";
+        }
+        final File reportFile = gemTask.getMetricsReportFile().get().getAsFile();
+        if (!reportFile.exists()) {
+            return "-";
+        }
+        try {
+            final Object report = new JsonSlurper().parseText(
+                    new String(Files.readAllBytes(reportFile.toPath()), StandardCharsets.UTF_8));
+            final Object wallNanos = ((Map<?, ?>) report).get("wallNanos");
+            return String.format("%.3f", ((Number) wallNanos).longValue() / 1_000_000_000.0);
+        } catch (final IOException | RuntimeException ex) {
+            logger.warn("Failed to read the metrics report at: " + reportFile.toString(), ex);
+            return "-";
+        }
+    }
+
+    static String formatTable(final List<String[]> rows) {
+        final int[] widths = new int[rows.get(0).length];
+        for (final String[] row : rows) {
+            for (int i = 0; i < row.length; i++) {
+                widths[i] = Math.max(widths[i], row[i].length());
+            }
+        }
+        final StringBuilder table = new StringBuilder();
+        table.append(String.format("Summary of %d gem(s):", rows.size() - 1));
+        for (final String[] row : rows) {
+            table.append("\n ");
+            for (int i = 0; i < row.length; i++) {
+                // Texts are aligned left, and numbers are aligned right.
+                table.append(String.format((i < 3) ? " %-" + widths[i] + "s" : " %" + widths[i] + "s", row[i]));
+            }
+        }
+        return table.toString();
+    }
+
+    private static final String STATUS_BUILT = "BUILT";
+
+    private final Property<Integer> maxWorkers;
+    private final ArrayList<TaskProvider<Gem>> gems;
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A gem resolved from the copy spec of a {@link Gem} task to be built in-process by {@link GemBuildWorker}.
+ *
+ * <p>The files in the gem are referred by their paths, not by their contents, except for small generated files.
+ * It is serializable so that it can be passed to a worker of the Worker API.
+ */
+final class GemBuildPlan implements Serializable {
+    GemBuildPlan(
+            final String taskPath,
+            final File gemFile,
+            final GemSpecification specification,
+            final long buildEpochSecond,
+            final GemCompression compression,
+            final int compressionThreads,
+            final File segmentCacheDirectory,
+            final List<Entry> entries,
+            final File metricsReportFile,
+            final File projectDirectory) {
+        this.taskPath = taskPath;
+        this.gemFile = gemFile;
+        this.specification = specification;
+        this.buildEpochSecond = buildEpochSecond;
+        this.compression = compression;
+        this.compressionThreads = compressionThreads;
+        this.segmentCacheDirectory = segmentCacheDirectory;
+        this.entries = Collections.unmodifiableList(new ArrayList<>(entries));
+        this.metricsReportFile = metricsReportFile;
+        this.projectDirectory = projectDirectory;
+    }
+
+    /**
+     * A file in the gem, with its mode and modification time already normalized as {@link GemCopyAction} does.
+     *
+     * <p>Its content is either a source file, or bytes for a small file generated in the task.
+     */
+    static final class Entry implements Serializable {
+        private Entry(final String path, final int mode, final long mtime, final long size, final File source, final byte[] content) {
+            this.path = path;
+            this.mode = mode;
+            this.mtime = mtime;
+            this.size = size;
+            this.source = source;
+            this.content = content;
+        }
+
+        static Entry ofFile(final String path, final int mode, final long mtime, final long size, final File source) {
+            return new Entry(path, mode, mtime, size, source, null);
+        }
+
+        static Entry ofBytes(final String path, final int mode, final long mtime, final byte[] content) {
+            return new Entry(path, mode, mtime, content.length, null, content);
+        }
+
+        String getPath() {
+            return this.path;
+        }
+
+        int getMode() {
+            return this.mode;
+        }
+
+        long getMtime() {
+            return this.mtime;
+        }
+
+        long getSize() {
+            return this.size;
+        }
+
+        /**
+         * Returns the source file, or {@code null} if the content is generated in memory.
+         */
+        File getSource() {
+            return this.source;
+        }
+
+        /**
+         * Reads the whole content.
+         */
+        byte[] read() throws IOException {
+            if (this.source != null) {
+                return Files.readAllBytes(this.source.toPath());
+            }
+            return this.content;
+        }
+
+        InputStream open() throws IOException {
+            if (this.source != null) {
+                return Files.newInputStream(this.source.toPath());
+            }
+            return new ByteArrayInputStream(this.content);
+        }
+
+        private static final long serialVersionUID = 1L;
+
+        private final String path;
+        private final int mode;
+        private final long mtime;
+        private final long size;
+        private final File source;
+        private final byte[] content;
+    }
+
+    String getTaskPath() {
+        return this.taskPath;
+    }
+
+    File getGemFile() {
+        return this.gemFile;
+    }
+
+    GemSpecification getSpecification() {
+        return this.specification;
+    }
+
+    long getBuildEpochSecond() {
+        return this.buildEpochSecond;
+    }
+
+    GemCompression getCompression() {
+        return this.compression;
+    }
+
+    int getCompressionThreads() {
+        return this.compressionThreads;
+    }
+
+    /**
+     * Returns the directory of {@link GemSegmentCache} to build the gem incrementally, or {@code null} if not.
+     */
+    File getSegmentCacheDirectory() {
+        return this.segmentCacheDirectory;
+    }
+
+    List<Entry> getEntries() {
+        return this.entries;
+    }
+
+    /**
+     * Returns the JSON report of the metrics to write, or {@code null} if not to write.
+     */
+    File getMetricsReportFile() {
+        return this.metricsReportFile;
+    }
+
+    File getProjectDirectory() {
+        return this.projectDirectory;
+    }
+
+    private static final long serialVersionUID = 1L;
+
+    private final String taskPath;
+    private final File gemFile;
+    private final GemSpecification specification;
+    private final long buildEpochSecond;
+    private final GemCompression compression;
+    private final int compressionThreads;
+    private final File segmentCacheDirectory;
+    private final List<Entry> entries;
+    private final File metricsReportFile;
+    private final File projectDirectory;
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import javax.inject.Inject;
+import org.gradle.api.GradleException;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+/**
+ * Builds a gem in-process with {@link GemWriter} in a worker of the Worker API, for the {@code "java"} builder of
+ * {@link Gem}.
+ *
+ * <p>{@code metadata.gz} is written after {@code data.tar.gz} because the list of files is fixed only after
+ * the contents are written. RubyGems does not depend on the order of entries in a gem.
+ *
+ * <p>{@code data.tar.gz} is compressed in parallel when {@code compressionThreads} is more than one.
+ * When {@code incremental}, {@code data.tar.gz} is built from compressed segments of tar entries cached in
+ * {@link GemSegmentCache} so that only changed entries are read and compressed again.
+ */
+public class GemBuildWorker implements Runnable {
+    @Inject
+    public GemBuildWorker(final GemBuildPlan plan) {
+        this.plan = plan;
+    }
+
+    @Override
+    public void run() {
+        final GemBuildPlan plan = this.plan;
+        final Path gemPath = plan.getGemFile().toPath();
+
+        final PhaseMetrics metrics = new PhaseMetrics(plan.getTaskPath()).attribute("builder", Gem.BUILDER_JAVA);
+        try {
+            this.build(gemPath, metrics);
+        } catch (final IOException ex) {
+            try {
+                Files.deleteIfExists(gemPath);
+            } catch (final IOException ignored) {
+                // Pass-through to throw the original exception.
+            }
+            throw new GradleException("Failed to build the gem file: " + gemPath.toString(), ex);
+        } finally {
+            if (plan.getMetricsReportFile() != null) {
+                metrics.writeReport(plan.getMetricsReportFile().toPath(), logger);
+            }
+        }
+
+        logger.lifecycle("Built {} in-process.", plan.getProjectDirectory().toPath().relativize(gemPath));
+    }
+
+    private void build(final Path gemPath, final PhaseMetrics metrics) throws IOException {
+        final GemBuildPlan plan = this.plan;
+
+        final ArrayList<String> files = new ArrayList<>();
+        final GemSegmentCache segmentCache = (plan.getSegmentCacheDirectory() != null)
+                ? new GemSegmentCache(plan.getSegmentCacheDirectory().toPath())
+                : null;
+        try (final GemWriter writer = GemWriter.open(
+                gemPath, plan.getBuildEpochSecond(), plan.getCompression(), plan.getCompressionThreads())) {
+            try (final PhaseMetrics.Phase phase = metrics.start("contents")) {
+                if (segmentCache != null) {
+                    this.addContentsIncrementally(writer, segmentCache, files, phase);
+                } else {
+                    this.addContents(writer, files, phase);
+                    logContentsStatistics(writer);
+                }
+                phase.written(writer.getContentsCompressedBytes());
+            }
+            try (final PhaseMetrics.Phase phase = metrics.start("metadata")) {
+                writer.addMetadata(plan.getSpecification().withFiles(files));
+                phase.written(writer.getLastEntrySize()).file();
+            }
+        }
+
+        if (segmentCache != null) {
+            try {
+                segmentCache.removeUnused();
+            } catch (final IOException ex) {
+                logger.warn("Failed to clean up the gem segment cache at: " + plan.getSegmentCacheDirectory().toString(), ex);
+            }
+            logger.lifecycle(
+                    "Reused {} entries from the cache, and compressed {} entries ({} bytes) in \"{}\" compression.",
+                    segmentCache.getHits(),
+                    segmentCache.getMisses(),
+                    segmentCache.getCompressedBytes(),
+                    plan.getCompression().getName());
+        }
+    }
+
+    private static void logContentsStatistics(final GemWriter writer) {
+        final double seconds = writer.getContentsNanos() / 1_000_000_000.0;
+        final double megabytes = writer.getContentsUncompressedBytes() / (1024.0 * 1024.0);
+        final long uncompressed = writer.getContentsUncompressedBytes();
+        logger.lifecycle(String.format(
+                "Compressed data.tar.gz from %d bytes to %d bytes (%.1f%%) in %.3f s (%.1f MiB/s) "
+                        + "in \"%s\" compression with %d thread(s).",
+                uncompressed,
+                writer.getContentsCompressedBytes(),
+                (uncompressed > 0) ? 100.0 * writer.getContentsCompressedBytes() / uncompressed : 0.0,
+                seconds,
+                (seconds > 0) ? megabytes / seconds : 0.0,
+                writer.getCompression().getName(),
+                writer.getCompressionThreads()));
+    }
+
+    private void addContents(
+            final GemWriter writer, final List<String> files, final PhaseMetrics.Phase phase) throws IOException {
+        writer.addContents(tar -> {
+            for (final GemBuildPlan.Entry entry : this.plan.getEntries()) {
+                try (final InputStream in = entry.open()) {
+                    tar.addFile(entry.getPath(), entry.getMode(), entry.getMtime(), entry.getSize(), in);
+                }
+                phase.read(entry.getSize()).file();
+                files.add(entry.getPath());
+            }
+        });
+    }
+
+    private void addContentsIncrementally(
+            final GemWriter writer,
+            final GemSegmentCache segmentCache,
+            final List<String> files,
+            final PhaseMetrics.Phase phase) throws IOException {
+        final GemCompression compression = this.plan.getCompression();
+        writer.addSegmentedContents(gzip -> {
+            for (final GemBuildPlan.Entry entry : this.plan.getEntries()) {
+                // The header is compressed in every build. It is small, and has the modification time.
+                gzip.write(SegmentedGzipWriter.compress(compression, new ByteArrayInputStream(
+                        TarWriter.createHeader(entry.getPath(), entry.getMode(), entry.getMtime(), entry.getSize()))));
+
+                // A source file unchanged since the last build is not read at all.
+                final File source = entry.getSource();
+                SegmentedGzipWriter.Segment content = (source != null) ? segmentCache.find(source, compression) : null;
+                if (content == null) {
+                    final byte[] bytes = entry.read();
+                    phase.read(bytes.length);
+                    final String key = GemSegmentCache.key(bytes.length, GemSegmentCache.sha256(bytes), compression);
+                    content = segmentCache.get(key, source, compression, () -> compressTarContent(compression, bytes));
+                }
+                if (content.getLength() != entry.getSize() + TarWriter.padding(entry.getSize())) {
+                    throw new IOException("File \"" + entry.getPath() + "\" is not in its expected size: " + entry.getSize());
+                }
+                gzip.write(content);
+                phase.file();
+                files.add(entry.getPath());
+            }
+        });
+    }
+
+    /**
+     * Compresses the content of a tar entry and its padding into a segment.
+     */
+    private static SegmentedGzipWriter.Segment compressTarContent(
+            final GemCompression compression, final byte[] bytes) throws IOException {
+        return SegmentedGzipWriter.compress(
+                compression,
+                new ByteArrayInputStream(bytes),
+                new ByteArrayInputStream(new byte[TarWriter.padding(bytes.length)]));
+    }
+
+    private static final Logger logger = Logging.getLogger(GemBuildWorker.class);
+
+    private final GemBuildPlan plan;
+}
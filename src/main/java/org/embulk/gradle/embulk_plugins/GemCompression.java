@@ -0,0 +1,91 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.zip.Deflater;
+
+/**
+ * Compression profiles of gems, which configure the deflate level and strategy of the gzipped entries in a gem.
+ *
+ * <ul>
+ * <li>{@code "fastest"}: Huffman coding only. Most of a gem is usually JAR files already deflated, from which
+ *     string matching gains little. It is for snapshot builds.
+ * <li>{@code "balanced"}: the default level of zlib.
+ * <li>{@code "smallest"}: the best compression, as {@code gem build} does. It is the default.
+ * </ul>
+ */
+enum GemCompression {
+    FASTEST("fastest", Deflater.BEST_SPEED, Deflater.HUFFMAN_ONLY),
+    BALANCED("balanced", Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY),
+    SMALLEST("smallest", Deflater.BEST_COMPRESSION, Deflater.DEFAULT_STRATEGY),
+    ;
+
+    private GemCompression(final String name, final int level, final int strategy) {
+        this.name = name;
+        this.level = level;
+        this.strategy = strategy;
+    }
+
+    static GemCompression of(final String name) {
+        for (final GemCompression compression : values()) {
+            if (compression.name.equals(name)) {
+                return compression;
+            }
+        }
+        throw new IllegalArgumentException("Unknown compression: " + name);
+    }
+
+    static List<String> names() {
+        return Arrays.stream(values()).map(GemCompression::getName).collect(Collectors.toList());
+    }
+
+    String getName() {
+        return this.name;
+    }
+
+    int getLevel() {
+        return this.level;
+    }
+
+    int getStrategy() {
+        return this.strategy;
+    }
+
+    /**
+     * Creates a new {@link Deflater} configured with the level and the strategy.
+     */
+    Deflater newDeflater(final boolean nowrap) {
+        final Deflater deflater = new Deflater(this.level, nowrap);
+        deflater.setStrategy(this.strategy);
+        return deflater;
+    }
+
+    /**
+     * Configures an existing {@link Deflater}, such as the one in {@link java.util.zip.GZIPOutputStream}.
+     */
+    void configure(final Deflater deflater) {
+        deflater.setLevel(this.level);
+        deflater.setStrategy(this.strategy);
+    }
+
+    private final String name;
+    private final int level;
+    private final int strategy;
+}
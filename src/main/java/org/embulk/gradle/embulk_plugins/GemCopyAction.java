@@ -16,50 +16,370 @@
 
 package org.embulk.gradle.embulk_plugins;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Map;
 import org.gradle.api.GradleException;
-import org.gradle.api.Project;
 import org.gradle.api.internal.file.copy.CopyAction;
 import org.gradle.api.internal.file.copy.CopyActionProcessingStream;
+import org.gradle.api.internal.file.copy.FileCopyDetailsInternal;
+import org.gradle.api.file.FileCollection;
 import org.gradle.api.file.RegularFile;
 import org.gradle.api.logging.Logger;
 import org.gradle.api.tasks.WorkResult;
 import org.gradle.api.tasks.WorkResults;
 import org.gradle.api.provider.Provider;
+import org.gradle.workers.IsolationMode;
+import org.gradle.workers.WorkerExecutor;
 
+/**
+ * Builds a gem from the files in {@link CopyActionProcessingStream}, as {@code ZipCopyAction} and {@code TarCopyAction} do.
+ *
+ * <p>With the {@code "java"} builder, the files are listed here, and written into the gem archive by
+ * {@link GemBuildWorker} through the Worker API.
+ * With the {@code "jruby"} builder, the files are copied into the working directory to run {@code gem build} there
+ * in a JRuby worker daemon.
+ */
 class GemCopyAction implements CopyAction {
     public GemCopyAction(
-            final Path sourceGemFilePath,
             final Provider<RegularFile> destinationGemFile,
-            final Project project) {
-        this.sourceGemFilePath = sourceGemFilePath;
+            final GemSpecification specification,
+            final Instant buildTime,
+            final boolean preserveFileTimestamps,
+            final boolean incremental,
+            final Path segmentCacheDirectory,
+            final Path stagingDirectory,
+            final GemCompression compression,
+            final int compressionThreads,
+            final String bootstrapPath,
+            final String bootstrap,
+            final boolean classpathIndex,
+            final boolean classpathList,
+            final String builder,
+            final FileCollection jrubyClasspath,
+            final Path workingDirectory,
+            final Path projectDirectory,
+            final WorkerExecutor workerExecutor,
+            final String taskPath,
+            final Path metricsReportPath,
+            final Logger logger) {
         this.destinationGemFile = destinationGemFile;
-        this.project = project;
+        this.specification = specification;
+        this.buildTime = buildTime;
+        this.preserveFileTimestamps = preserveFileTimestamps;
+        this.incremental = incremental;
+        this.segmentCacheDirectory = segmentCacheDirectory;
+        this.stagingDirectory = stagingDirectory;
+        this.compression = compression;
+        this.compressionThreads = compressionThreads;
+        this.bootstrapPath = bootstrapPath;
+        this.bootstrap = bootstrap;
+        this.classpathIndex = classpathIndex;
+        this.classpathList = classpathList;
+        this.builder = builder;
+        this.jrubyClasspath = jrubyClasspath;
+        this.workingDirectory = workingDirectory;
+        this.projectDirectory = projectDirectory;
+        this.workerExecutor = workerExecutor;
+        this.taskPath = taskPath;
+        this.metricsReportPath = metricsReportPath;
+        this.logger = logger;
     }
 
     @Override
-    public WorkResult execute(final CopyActionProcessingStream dummy) {
+    public WorkResult execute(final CopyActionProcessingStream stream) {
         final Path destinationGemFilePath = this.destinationGemFile.get().getAsFile().toPath();
 
         try {
             Files.createDirectories(destinationGemFilePath.getParent());
             Files.deleteIfExists(destinationGemFilePath);
-            Files.move(this.sourceGemFilePath, destinationGemFilePath);
+        } catch (final IOException ex) {
+            throw new GradleException("Failed to prepare for the gem file at: " + destinationGemFilePath.toString(), ex);
+        }
+
+        if (!this.builder.equals(Gem.BUILDER_JRUBY)) {
+            // The metrics are recorded, and written into the report, in the worker.
+            this.submitInProcess(stream, destinationGemFilePath);
+            return WorkResults.didWork(true);
+        }
+
+        final PhaseMetrics metrics = new PhaseMetrics(this.taskPath).attribute("builder", this.builder);
+        try {
+            this.buildWithJRuby(stream, destinationGemFilePath, metrics);
+        } finally {
+            if (this.metricsReportPath != null) {
+                metrics.writeReport(this.metricsReportPath, this.logger);
+            }
+        }
+
+        return WorkResults.didWork(true);
+    }
+
+    /**
+     * Lists the files in the gem from the stream, and submits the gem to be built in-process by {@link GemBuildWorker}
+     * through the Worker API, instead of executing `gem build` on JRuby.
+     *
+     * <p>The task does not wait for the worker here. Gradle can run other tasks meanwhile, for example the
+     * {@code "gem"} tasks of other projects with {@code --parallel}, bounded by {@code --max-workers}. Gradle still
+     * waits for the worker before finishing the task, and before taking the gem as the output of the task.
+     *
+     * <p>A file whose content is transformed by the copy spec, for example with {@code filter} or {@code expand},
+     * has no source file as it is. It is copied into the staging directory, then.
+     *
+     * <p>Unless {@code preserveFileTimestamps}, the timestamps of all entries are fixed to the build time, and the
+     * permissions are normalized to {@code 0644} or {@code 0755} so that the gem is reproducible. Note that
+     * {@link java.util.zip.GZIPOutputStream} always writes zero as the modification time in the gzip header.
+     */
+    private void submitInProcess(final CopyActionProcessingStream stream, final Path destinationGemFilePath) {
+        cleanIfExists(this.stagingDirectory);
+
+        final long buildEpochSecond = this.buildTime.getEpochSecond();
+        final ArrayList<GemBuildPlan.Entry> entries = new ArrayList<>();
+        final ClasspathFiles classpathFiles = new ClasspathFiles(this.classpathIndex, this.classpathList);
+        stream.process(details -> {
+            if (details.isDirectory()) {
+                return;
+            }
+            final String path = details.getRelativePath().getPathString();
+            File source;
+            try {
+                source = details.getFile();
+            } catch (final UnsupportedOperationException ex) {
+                source = details.getRelativePath().getFile(this.stagingDirectory.toFile());
+                details.copyTo(source);
+            }
+            try {
+                classpathFiles.add(path, source);
+            } catch (final IOException ex) {
+                throw new GradleException("Failed to read the JAR file: " + source.toString(), ex);
+            }
+            entries.add(GemBuildPlan.Entry.ofFile(
+                    path, this.getMode(details), this.getMtime(details, buildEpochSecond), details.getSize(), source));
+        });
+        for (final Map.Entry<String, byte[]> generated : classpathFiles.toFiles().entrySet()) {
+            entries.add(GemBuildPlan.Entry.ofBytes(generated.getKey(), 0644, buildEpochSecond, generated.getValue()));
+        }
+        entries.add(GemBuildPlan.Entry.ofBytes(
+                this.bootstrapPath, 0644, buildEpochSecond, this.bootstrap.getBytes(StandardCharsets.UTF_8)));
+
+        final GemBuildPlan plan = new GemBuildPlan(
+                this.taskPath,
+                destinationGemFilePath.toFile(),
+                this.specification,
+                buildEpochSecond,
+                this.compression,
+                this.compressionThreads,
+                this.incremental ? this.segmentCacheDirectory.toFile() : null,
+                entries,
+                (this.metricsReportPath != null) ? this.metricsReportPath.toFile() : null,
+                this.projectDirectory.toFile());
+        this.workerExecutor.submit(GemBuildWorker.class, config -> {
+            config.setIsolationMode(IsolationMode.NONE);
+            config.setDisplayName("gem " + destinationGemFilePath.getFileName());
+            config.params(plan);
+        });
+    }
+
+    private int getMode(final FileCopyDetailsInternal details) {
+        return modeOf(details, this.preserveFileTimestamps);
+    }
+
+    private long getMtime(final FileCopyDetailsInternal details, final long buildEpochSecond) {
+        return mtimeOf(details, this.preserveFileTimestamps, buildEpochSecond);
+    }
+
+    static int modeOf(final FileCopyDetailsInternal details, final boolean preserveFileTimestamps) {
+        if (preserveFileTimestamps) {
+            return details.getMode();
+        }
+        return ((details.getMode() & 0111) != 0) ? 0755 : 0644;
+    }
+
+    static long mtimeOf(
+            final FileCopyDetailsInternal details, final boolean preserveFileTimestamps, final long buildEpochSecond) {
+        if (preserveFileTimestamps) {
+            return details.getLastModified() / 1000;
+        }
+        return buildEpochSecond;
+    }
+
+    private void buildWithJRuby(
+            final CopyActionProcessingStream stream, final Path destinationGemFilePath, final PhaseMetrics metrics) {
+        final Logger logger = this.logger;
+
+        try (final PhaseMetrics.Phase phase = metrics.start("clean")) {
+            cleanIfExists(this.workingDirectory);
+        }
+
+        // Copying the source files into the working directory. Note that the Gem task should not have top-level `into`
+        // because AbstractArchiveTask#into represents a destination directory *inside* the archive for the files.
+        // https://docs.gradle.org/5.5.1/javadoc/org/gradle/api/tasks/bundling/AbstractArchiveTask.html#into-java.lang.Object-
+        final ArrayList<String> files = new ArrayList<>();
+        final ClasspathFiles classpathFiles = new ClasspathFiles(this.classpathIndex, this.classpathList);
+        try (final PhaseMetrics.Phase phase = metrics.start("copy")) {
+            stream.process(details -> {
+                if (details.isDirectory()) {
+                    return;
+                }
+                final File file = details.getRelativePath().getFile(this.workingDirectory.toFile());
+                details.copyTo(file);
+                phase.read(details.getSize()).written(details.getSize()).file();
+                final String path = details.getRelativePath().getPathString();
+                try {
+                    classpathFiles.add(path, file);
+                } catch (final IOException ex) {
+                    throw new GradleException("Failed to read the JAR file: " + file.toString(), ex);
+                }
+                files.add(path);
+            });
+        }
+        if (!classpathFiles.isEmpty()) {
+            try (final PhaseMetrics.Phase phase = metrics.start("classpathFiles")) {
+                for (final Map.Entry<String, byte[]> generated : classpathFiles.toFiles().entrySet()) {
+                    final Path generatedPath = this.workingDirectory.resolve(generated.getKey());
+                    try {
+                        Files.createDirectories(generatedPath.getParent());
+                        Files.write(generatedPath, generated.getValue(), StandardOpenOption.CREATE_NEW);
+                    } catch (final IOException ex) {
+                        throw new GradleException("Failed to create/write to: " + generatedPath.toString(), ex);
+                    }
+                    phase.written(generated.getValue().length).file();
+                    files.add(generated.getKey());
+                }
+            }
+        }
+        try (final PhaseMetrics.Phase phase = metrics.start("bootstrap")) {
+            this.createBootstrap();
+            phase.written(this.bootstrap.getBytes(StandardCharsets.UTF_8).length).file();
+        }
+        files.add(this.bootstrapPath);
+
+        final String gemspecFileName = this.specification.getName() + ".gemspec";
+        try (final PhaseMetrics.Phase phase = metrics.start("gemspec")) {
+            this.createGemspec(gemspecFileName, this.specification.withFiles(files));
+            phase.written(sizeOf(this.workingDirectory.resolve(gemspecFileName))).file();
+        }
+
+        final ArrayList<String> args = new ArrayList<>();
+        args.add("build");
+        args.add(gemspecFileName);
+
+        JRubyGemWorker.execute(this.workerExecutor, logger, resolveJRuby(this.jrubyClasspath, metrics), args,
+                               this.workingDirectory, metrics);
+
+        logger.lifecycle("Executing `gem build` finished successfully.");
+
+        final Path sourceGemFilePath = this.workingDirectory.resolve(
+                this.specification.getName() + "-" + this.specification.getVersion() + "-java.gem");
+        try (final PhaseMetrics.Phase phase = metrics.start("move")) {
+            Files.move(sourceGemFilePath, destinationGemFilePath);
+            phase.written(sizeOf(destinationGemFilePath)).file();
         } catch (final IOException ex) {
             throw new GradleException("Failed to locate the generated gem file at: " + destinationGemFilePath.toString(), ex);
         }
 
-        this.project.getLogger().lifecycle(
+        logger.lifecycle(
                 "Moved {} to {}.",
-                project.getProjectDir().toPath().relativize(this.sourceGemFilePath),
-                project.getProjectDir().toPath().relativize(destinationGemFilePath));
+                this.projectDirectory.relativize(sourceGemFilePath),
+                this.projectDirectory.relativize(destinationGemFilePath));
+    }
 
-        return WorkResults.didWork(true);
+    /**
+     * Resolves the JRuby classpath in its own phase so that the resolution is not counted in the execution.
+     */
+    static FileCollection resolveJRuby(final FileCollection jrubyClasspath, final PhaseMetrics metrics) {
+        try (final PhaseMetrics.Phase phase = metrics.start("jrubyResolution")) {
+            for (final File file : jrubyClasspath.getFiles()) {
+                phase.read(file.length()).file();
+            }
+        }
+        return jrubyClasspath;
+    }
+
+    private static long sizeOf(final Path path) {
+        try {
+            return Files.size(path);
+        } catch (final IOException ex) {
+            return 0;
+        }
+    }
+
+    private static void cleanIfExists(final Path root) {
+        if (!Files.exists(root)) {
+            return;
+        }
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+                    Files.delete(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(final Path dir, final IOException exc) throws IOException {
+                    Files.delete(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (final IOException ex) {
+            throw new GradleException("Failed to clean the target directory: " + root.toString(), ex);
+        }
+    }
+
+    private void createBootstrap() {
+        final Path filePath = this.workingDirectory.resolve(this.bootstrapPath);
+        try {
+            Files.createDirectories(filePath.getParent());
+        } catch (final IOException ex) {
+            throw new GradleException("Failed to create the directory: " + filePath.getParent().toString(), ex);
+        }
+
+        try {
+            Files.write(filePath, this.bootstrap.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW);
+        } catch (final IOException ex) {
+            throw new GradleException("Failed to create/write to the bootstrap Ruby file: " + filePath.toString(), ex);
+        }
+    }
+
+    private void createGemspec(final String gemspecFileName, final GemSpecification specification) {
+        final Path gemspecPath = this.workingDirectory.resolve(gemspecFileName);
+        try (final PrintWriter writer = new PrintWriter(Files.newOutputStream(gemspecPath, StandardOpenOption.CREATE_NEW))) {
+            specification.dumpRuby(writer);
+        } catch (final IOException ex) {
+            throw new GradleException("Failed to create/write to the gemspec file: " + gemspecPath.toString(), ex);
+        }
     }
 
-    private final Path sourceGemFilePath;
     private final Provider<RegularFile> destinationGemFile;
-    private final Project project;
+    private final GemSpecification specification;
+    private final Instant buildTime;
+    private final boolean preserveFileTimestamps;
+    private final boolean incremental;
+    private final Path segmentCacheDirectory;
+    private final Path stagingDirectory;
+    private final GemCompression compression;
+    private final int compressionThreads;
+    private final String bootstrapPath;
+    private final String bootstrap;
+    private final boolean classpathIndex;
+    private final boolean classpathList;
+    private final String builder;
+    private final FileCollection jrubyClasspath;
+    private final Path workingDirectory;
+    private final Path projectDirectory;
+    private final WorkerExecutor workerExecutor;
+    private final String taskPath;
+    private final Path metricsReportPath;
+    private final Logger logger;
 }
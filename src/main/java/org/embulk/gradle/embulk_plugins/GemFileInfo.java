@@ -0,0 +1,167 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The name, the version, and the platform of a gem file read from its {@code metadata.gz}, with the SHA-256 of
+ * the whole gem file, as RubyGems.org reports in {@code "sha"} of its versions API.
+ */
+final class GemFileInfo {
+    private GemFileInfo(final String name, final String version, final String platform, final String sha256) {
+        this.name = name;
+        this.version = version;
+        this.platform = platform;
+        this.sha256 = sha256;
+    }
+
+    static GemFileInfo read(final Path gemPath) throws IOException {
+        final String metadata = readMetadata(gemPath);
+        final String sha256;
+        try (final InputStream in = Files.newInputStream(gemPath)) {
+            sha256 = GemSegmentCache.sha256(in);
+        }
+        return new GemFileInfo(
+                find(metadata, NAME, gemPath),
+                find(metadata, VERSION, gemPath),
+                find(metadata, PLATFORM, gemPath),
+                sha256);
+    }
+
+    String getName() {
+        return this.name;
+    }
+
+    String getVersion() {
+        return this.version;
+    }
+
+    String getPlatform() {
+        return this.platform;
+    }
+
+    String getSha256() {
+        return this.sha256;
+    }
+
+    @Override
+    public String toString() {
+        return this.name + " (" + this.version + "-" + this.platform + ")";
+    }
+
+    /**
+     * Reads the YAML in {@code metadata.gz} in the tar archive of a gem.
+     */
+    private static String readMetadata(final Path gemPath) throws IOException {
+        try (final InputStream in = new BufferedInputStream(Files.newInputStream(gemPath))) {
+            final byte[] header = new byte[TarWriter.BLOCK_SIZE];
+            while (readFully(in, header) && header[0] != 0) {
+                final String entryName = readString(header, 0, 100);
+                final long size = Long.parseLong(readString(header, 124, 12).trim(), 8);
+                if (entryName.equals("metadata.gz")) {
+                    final byte[] compressed = new byte[(int) size];
+                    if (!readFully(in, compressed)) {
+                        break;
+                    }
+                    try (final InputStream gzip = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+                        return readAll(gzip);
+                    }
+                }
+                skipFully(in, size + TarWriter.padding(size));
+            }
+        }
+        throw new IOException("metadata.gz is not found in the gem file: " + gemPath.toString());
+    }
+
+    private static String find(final String metadata, final Pattern pattern, final Path gemPath) throws IOException {
+        final Matcher matcher = pattern.matcher(metadata);
+        if (!matcher.find()) {
+            throw new IOException("Unexpected metadata.gz in the gem file: " + gemPath.toString());
+        }
+        final String value = matcher.group(1).trim();
+        if (value.length() >= 2 && (value.startsWith("\"") || value.startsWith("'"))) {
+            return value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+
+    private static String readString(final byte[] header, final int offset, final int length) {
+        int end = offset;
+        while (end < offset + length && header[end] != 0) {
+            end++;
+        }
+        return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private static boolean readFully(final InputStream in, final byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            final int read = in.read(buffer, offset, buffer.length - offset);
+            if (read < 0) {
+                return false;
+            }
+            offset += read;
+        }
+        return true;
+    }
+
+    private static void skipFully(final InputStream in, final long bytes) throws IOException {
+        long remaining = bytes;
+        while (remaining > 0) {
+            final long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new IOException("Unexpected end of the gem file.");
+                }
+                remaining--;
+            } else {
+                remaining -= skipped;
+            }
+        }
+    }
+
+    private static String readAll(final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    // Top-level attributes in the YAML of Gem::Specification. "version" is a nested Gem::Version object.
+    private static final Pattern NAME = Pattern.compile("^name: (.+)$", Pattern.MULTILINE);
+    private static final Pattern VERSION = Pattern.compile("^version: .*\\n\\s+version: (.+)$", Pattern.MULTILINE);
+    private static final Pattern PLATFORM = Pattern.compile("^platform: (.+)$", Pattern.MULTILINE);
+
+    private final String name;
+    private final String version;
+    private final String platform;
+    private final String sha256;
+}
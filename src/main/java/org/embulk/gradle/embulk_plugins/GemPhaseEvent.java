@@ -0,0 +1,166 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Emits the JFR event {@code org.embulk.gradle.GemPhase} of a phase recorded by {@link PhaseMetrics}.
+ *
+ * <p>The event type is defined at runtime through {@code jdk.jfr.EventFactory}, and the events are emitted
+ * reflectively, so that this plugin compiles with {@code --release 8}, and runs on a JVM without JFR. It is a no-op
+ * if JFR is not available in the JVM. The event type is the same as the one declared below:
+ *
+ * <pre>{@code @Name("org.embulk.gradle.GemPhase")
+ * @Label("Embulk Gem Phase")
+ * @Category({ "Embulk", "Gradle" })
+ * class GemPhaseEvent extends Event {
+ *     @Label("Task") String task;
+ *     @Label("Phase") String phase;
+ *     @Label("Bytes Read") @DataAmount long bytesRead;
+ *     @Label("Bytes Written") @DataAmount long bytesWritten;
+ *     @Label("Files") long files;
+ * }}</pre>
+ */
+final class GemPhaseEvent {
+    private GemPhaseEvent(
+            final Object factory,
+            final Method newEvent,
+            final Method begin,
+            final Method end,
+            final Method shouldCommit,
+            final Method set,
+            final Method commit) {
+        this.factory = factory;
+        this.newEvent = newEvent;
+        this.begin = begin;
+        this.end = end;
+        this.shouldCommit = shouldCommit;
+        this.set = set;
+        this.commit = commit;
+    }
+
+    /**
+     * Begins an event, or returns {@code null} if JFR is not available.
+     */
+    static Object beginEvent() {
+        if (INSTANCE == null) {
+            return null;
+        }
+        try {
+            final Object event = INSTANCE.newEvent.invoke(INSTANCE.factory);
+            INSTANCE.begin.invoke(event);
+            return event;
+        } catch (final IllegalAccessException | InvocationTargetException ex) {
+            return null;
+        }
+    }
+
+    static void commitEvent(
+            final Object event,
+            final String task,
+            final String phase,
+            final long bytesRead,
+            final long bytesWritten,
+            final long files) {
+        if (INSTANCE == null || event == null) {
+            return;
+        }
+        try {
+            INSTANCE.end.invoke(event);
+            if ((Boolean) INSTANCE.shouldCommit.invoke(event)) {
+                // The indices are in the order of the fields defined in load().
+                INSTANCE.set.invoke(event, 0, task);
+                INSTANCE.set.invoke(event, 1, phase);
+                INSTANCE.set.invoke(event, 2, bytesRead);
+                INSTANCE.set.invoke(event, 3, bytesWritten);
+                INSTANCE.set.invoke(event, 4, files);
+                INSTANCE.commit.invoke(event);
+            }
+        } catch (final IllegalAccessException | InvocationTargetException ex) {
+            // The metrics are best-effort. The event is just dropped.
+        }
+    }
+
+    /**
+     * Defines the event type through {@code jdk.jfr.EventFactory}, or returns {@code null} if JFR is not available.
+     */
+    private static GemPhaseEvent load() {
+        try {
+            final ClassLoader classLoader = GemPhaseEvent.class.getClassLoader();
+            final Class<?> eventClass = Class.forName("jdk.jfr.Event", false, classLoader);
+            final Class<?> eventFactoryClass = Class.forName("jdk.jfr.EventFactory", true, classLoader);
+            final Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement", true, classLoader);
+            final Class<?> valueDescriptorClass = Class.forName("jdk.jfr.ValueDescriptor", true, classLoader);
+            final Class<?> nameClass = Class.forName("jdk.jfr.Name", false, classLoader);
+            final Class<?> labelClass = Class.forName("jdk.jfr.Label", false, classLoader);
+            final Class<?> categoryClass = Class.forName("jdk.jfr.Category", false, classLoader);
+            final Class<?> dataAmountClass = Class.forName("jdk.jfr.DataAmount", false, classLoader);
+
+            final Constructor<?> annotationElement = annotationElementClass.getConstructor(Class.class, Object.class);
+            final Constructor<?> valueDescriptor = valueDescriptorClass.getConstructor(Class.class, String.class, List.class);
+
+            final List<Object> annotations = Arrays.asList(
+                    annotationElement.newInstance(nameClass, "org.embulk.gradle.GemPhase"),
+                    annotationElement.newInstance(labelClass, "Embulk Gem Phase"),
+                    annotationElement.newInstance(categoryClass, new String[] { "Embulk", "Gradle" }));
+
+            final Object bytes = annotationElement.newInstance(dataAmountClass, "BYTES");
+            final ArrayList<Object> fields = new ArrayList<>();
+            fields.add(valueDescriptor.newInstance(String.class, "task", Collections.singletonList(
+                    annotationElement.newInstance(labelClass, "Task"))));
+            fields.add(valueDescriptor.newInstance(String.class, "phase", Collections.singletonList(
+                    annotationElement.newInstance(labelClass, "Phase"))));
+            fields.add(valueDescriptor.newInstance(long.class, "bytesRead", Arrays.asList(
+                    annotationElement.newInstance(labelClass, "Bytes Read"), bytes)));
+            fields.add(valueDescriptor.newInstance(long.class, "bytesWritten", Arrays.asList(
+                    annotationElement.newInstance(labelClass, "Bytes Written"), bytes)));
+            fields.add(valueDescriptor.newInstance(long.class, "files", Collections.singletonList(
+                    annotationElement.newInstance(labelClass, "Files"))));
+
+            final Object factory = eventFactoryClass.getMethod("create", List.class, List.class)
+                    .invoke(null, annotations, fields);
+            return new GemPhaseEvent(
+                    factory,
+                    eventFactoryClass.getMethod("newEvent"),
+                    eventClass.getMethod("begin"),
+                    eventClass.getMethod("end"),
+                    eventClass.getMethod("shouldCommit"),
+                    eventClass.getMethod("set", int.class, Object.class),
+                    eventClass.getMethod("commit"));
+        } catch (final ReflectiveOperationException | LinkageError | RuntimeException ex) {
+            // JFR is not available in the JVM, for example Java 8 before 8u262.
+            return null;
+        }
+    }
+
+    private static final GemPhaseEvent INSTANCE = load();
+
+    private final Object factory;
+    private final Method newEvent;
+    private final Method begin;
+    private final Method end;
+    private final Method shouldCommit;
+    private final Method set;
+    private final Method commit;
+}
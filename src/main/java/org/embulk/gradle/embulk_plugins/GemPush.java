@@ -17,39 +17,80 @@
 package org.embulk.gradle.embulk_plugins;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.stream.Collectors;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.inject.Inject;
 import org.gradle.api.DefaultTask;
 import org.gradle.api.GradleException;
 import org.gradle.api.Project;
-import org.gradle.api.artifacts.Configuration;
-import org.gradle.api.artifacts.Dependency;
+import org.gradle.api.file.ConfigurableFileCollection;
 import org.gradle.api.file.FileCollection;
 import org.gradle.api.file.FileType;
 import org.gradle.api.file.RegularFileProperty;
 import org.gradle.api.logging.Logger;
 import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.MapProperty;
 import org.gradle.api.provider.Property;
 import org.gradle.api.tasks.InputFile;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.Optional;
+import org.gradle.api.tasks.OutputFile;
 import org.gradle.api.tasks.TaskAction;
 import org.gradle.work.ChangeType;
 import org.gradle.work.FileChange;
 import org.gradle.work.Incremental;
 import org.gradle.work.InputChanges;
-import org.gradle.process.ExecResult;
+import org.gradle.workers.WorkerExecutor;
 
 /**
  * A Gradle task to push (publish) a gem.
  *
  * <p>Configuration example:
  *
+ * <p>The gem is pushed in-process through the RubyGems.org API. The API key is taken from {@code apiKey},
+ * the environment variable {@code GEM_HOST_API_KEY}, or {@code ~/.gem/credentials} in this order.
+ *
  * <pre>{@code gemPush {
  *   host = "https://rubygems.org"
  *
- *   // JRuby artifact to execute `gem push`.
+ *   // Optional. Not recommended to write the API key directly in build.gradle.
+ *   apiKey = project.findProperty("rubygemsApiKey")
+ *
+ *   // Optional. Timeouts of the connection in seconds, and the number of retries on failures.
+ *   // Transient failures are retried with exponential backoff.
+ *   connectTimeoutSeconds = 30
+ *   readTimeoutSeconds = 300
+ *   maxRetries = 3
+ *
+ *   // A gem already pushed to a host with the same SHA-256 is skipped. A different one fails without uploading.
+ *
+ *   // Optional. More gems, and more hosts to push all the gems to, with API keys for each host.
+ *   // Each gem is pushed to each host concurrently, up to maxParallelUploads at a time (4 by default).
+ *   gems.from(project(":embulk-input-other").tasks.named("gem"))
+ *   hosts = [ "https://rubygems.org", "https://gems.example.com" ]
+ *   apiKeys = [ "https://gems.example.com": project.findProperty("mirrorApiKey") ]
+ *   maxParallelUploads = 4
+ *
+ *   // How to push the gem: "java" (default) or "jruby".
+ *   // "java" pushes the gem in-process. "jruby" executes `gem push` in a JRuby worker as a fallback.
+ *   pusher = "jruby"
+ *
+ *   // JRuby artifact to execute `gem push` when `pusher` is "jruby".
  *   // NOTE: Not recommended for users to configure it because this Gradle plugin expects a fixed version of JRuby.
  *   // For example, a certain version of `gem` would be required for command line options specified.
  *   // This option is here just for a quick hack or debugging.
@@ -61,21 +102,71 @@ abstract class GemPush extends DefaultTask {
     public GemPush() {
         super();
 
-        final ObjectFactory objectFactory = this.getProject().getObjects();
+        final Project project = this.getProject();
+        final ObjectFactory objectFactory = project.getObjects();
+        this.gems = objectFactory.fileCollection();
+        // The absent "gem" is just ignored so that only "gems" can be configured.
+        this.gemFiles = project.files(
+                (Callable<Object>) () -> this.getGem().isPresent() ? this.getGem() : Collections.emptyList(),
+                this.gems);
+
         this.host = objectFactory.property(String.class);
+        this.hosts = objectFactory.listProperty(String.class);
+        this.apiKey = objectFactory.property(String.class);
+        this.apiKeys = objectFactory.mapProperty(String.class, String.class);
+        this.connectTimeoutSeconds = objectFactory.property(Integer.class);
+        this.connectTimeoutSeconds.set((int) RubyGemsClient.DEFAULT_CONNECT_TIMEOUT.getSeconds());
+        this.readTimeoutSeconds = objectFactory.property(Integer.class);
+        this.readTimeoutSeconds.set((int) RubyGemsClient.DEFAULT_READ_TIMEOUT.getSeconds());
+        this.maxRetries = objectFactory.property(Integer.class);
+        this.maxRetries.set(RubyGemsClient.DEFAULT_MAX_RETRIES);
+        this.maxParallelUploads = objectFactory.property(Integer.class);
+        this.maxParallelUploads.set(DEFAULT_MAX_PARALLEL_UPLOADS);
 
+        this.pusher = objectFactory.property(String.class);
+        this.pusher.set(PUSHER_JAVA);
         this.jruby = objectFactory.property(Object.class);
         this.jruby.set(EmbulkPluginsPlugin.DEFAULT_JRUBY);
+        // Created at configuration time so that the task action does not touch the project.
+        // The JRuby classpath is resolved once in the build, and shared with other tasks in other projects.
+        this.jrubyClasspath = JRubyToolchains.of(project).classpath(project, this.jruby);
+        // Unset by default. A declared output would let Gradle run the task non-incrementally when it is deleted.
+        this.metricsReportFile = objectFactory.fileProperty();
     }
 
+    /**
+     * Property to configure the gem to push. It is the gem built by the {@code "gem"} task by default.
+     *
+     * <p>It is declared as an input by itself, too. Changes are read through {@link #getGemFiles()} which contains it.
+     */
     @Incremental
+    @Optional
     @InputFile
     abstract RegularFileProperty getGem();
 
+    /**
+     * Property to configure more gems to push in addition to {@code gem}.
+     */
+    @Internal
+    public ConfigurableFileCollection getGems() {
+        return this.gems;
+    }
+
+    /**
+     * Returns all the gems to push as a task input so that only changed gems are pushed again.
+     */
+    @Incremental
+    @InputFiles
+    FileCollection getGemFiles() {
+        return this.gemFiles;
+    }
+
+    @Inject
+    abstract WorkerExecutor getWorkerExecutor();
+
     @TaskAction
     public void exec(final InputChanges inputChanges) {
-        final Project project = this.getProject();
-        final Logger logger = project.getLogger();
+        final Logger logger = this.getLogger();
 
         if (inputChanges.isIncremental()) {
             logger.info("Executing incrementally.");
@@ -84,7 +175,7 @@ abstract class GemPush extends DefaultTask {
         }
 
         final ArrayList<File> gemFiles = new ArrayList<>();
-        for (final FileChange change : inputChanges.getFileChanges(this.getGem())) {
+        for (final FileChange change : inputChanges.getFileChanges(this.getGemFiles())) {
             if (change.getFileType() == FileType.DIRECTORY) {
                 throw new GradleException("Unexpected with a directory for \"gemPush\".");
             }
@@ -98,83 +189,329 @@ abstract class GemPush extends DefaultTask {
             logger.lifecycle("Up-to-date.");
             return;
         }
-        if (gemFiles.size() > 1) {
-            throw new GradleException("Unexpected with multiple files for \"gemPush\".");
+
+        if (!PUSHERS.contains(this.pusher.get())) {
+            throw new GradleException(
+                    "Failed to configure \"gemPush\" because \"pusher\" must be one of: [ "
+                    + String.join(", ", PUSHERS) + " ]");
+        }
+        final List<String> rubygemsHosts = this.findHosts();
+
+        final PhaseMetrics metrics = new PhaseMetrics(this.getPath());
+        try {
+            if (PUSHER_JRUBY.equals(this.pusher.get())) {
+                metrics.attribute("pusher", PUSHER_JRUBY);
+                for (final File archiveFile : gemFiles) {
+                    for (final String rubygemsHost : rubygemsHosts) {
+                        this.pushWithJRuby(logger, archiveFile, rubygemsHost, metrics);
+                    }
+                }
+            } else {
+                metrics.attribute("pusher", PUSHER_JAVA);
+                this.pushInProcess(logger, gemFiles, rubygemsHosts, metrics);
+            }
+        } finally {
+            if (this.metricsReportFile.isPresent()) {
+                metrics.writeReport(this.metricsReportFile.get().getAsFile().toPath(), logger);
+            }
+        }
+    }
+
+    /**
+     * Returns {@code hosts} if configured, or {@code host} otherwise.
+     */
+    private List<String> findHosts() {
+        final ArrayList<String> rubygemsHosts = new ArrayList<>();
+        for (final String rubygemsHost : this.hosts.getOrElse(Collections.emptyList())) {
+            if (rubygemsHost != null && !rubygemsHost.isEmpty() && !rubygemsHosts.contains(rubygemsHost)) {
+                rubygemsHosts.add(rubygemsHost);
+            }
+        }
+        if (rubygemsHosts.isEmpty() && this.getHost().isPresent() && !this.getHost().get().isEmpty()) {
+            rubygemsHosts.add(this.getHost().get());
+        }
+        if (rubygemsHosts.isEmpty()) {
+            throw new GradleException("`host` or `hosts` must be specified in `gemPush`.");
+        }
+        return Collections.unmodifiableList(rubygemsHosts);
+    }
+
+    /**
+     * Pushes each gem to each host in-process, up to {@code maxParallelUploads} uploads at a time.
+     *
+     * <p>All the uploads are tried even if some of them fail. The task fails after all, with a summary.
+     */
+    private void pushInProcess(
+            final Logger logger, final List<File> gemFiles, final List<String> rubygemsHosts, final PhaseMetrics metrics) {
+        if (this.maxParallelUploads.get() < 1) {
+            throw new GradleException("Failed to configure \"gemPush\" because \"maxParallelUploads\" must be positive.");
+        }
+
+        // Clients are built before any upload so that a missing API key fails before pushing anything.
+        final ArrayList<RubyGemsClient> clients = new ArrayList<>();
+        for (final String rubygemsHost : rubygemsHosts) {
+            clients.add(RubyGemsClient.builder()
+                    .host(rubygemsHost)
+                    .apiKey(this.findApiKey(rubygemsHost))
+                    .connectTimeout(Duration.ofSeconds(this.connectTimeoutSeconds.get()))
+                    .readTimeout(Duration.ofSeconds(this.readTimeoutSeconds.get()))
+                    .maxRetries(this.maxRetries.get())
+                    .build());
+        }
+
+        final ArrayList<Upload> uploads = new ArrayList<>();
+        for (final File archiveFile : gemFiles) {
+            final GemFileInfo gem;
+            try {
+                gem = GemFileInfo.read(archiveFile.toPath());
+            } catch (final IOException ex) {
+                throw new GradleException("Failed to read the gem file: " + archiveFile.toString(), ex);
+            }
+            for (final RubyGemsClient client : clients) {
+                uploads.add(new Upload(archiveFile, gem, client));
+            }
+        }
+
+        final int threads = Math.min(this.maxParallelUploads.get(), uploads.size());
+        logger.lifecycle("Pushing {} gem(s) to {} host(s) with {} parallel upload(s).",
+                         gemFiles.size(), clients.size(), threads);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (final Upload upload : uploads) {
+                upload.future = executor.submit(() -> {
+                    try (final PhaseMetrics.Phase phase = metrics.start(
+                            "upload:" + upload.client.getHost() + "/" + upload.archiveFile.getName())) {
+                        final RubyGemsClient.PushResult result =
+                                upload.client.pushUnlessPushed(upload.archiveFile.toPath(), upload.gem);
+                        phase.read(result.getBytes()).written(result.getBytes()).file();
+                        logger.lifecycle("{} {} to {}: {}",
+                                         result.isSkipped() ? "Skipped pushing" : "Pushed",
+                                         upload.archiveFile.getName(), upload.client.getHost(), result.getMessage());
+                        return result;
+                    }
+                });
+            }
+
+            int failures = 0;
+            for (final Upload upload : uploads) {
+                try {
+                    upload.result = upload.future.get();
+                } catch (final ExecutionException ex) {
+                    upload.failure = ex.getCause();
+                    failures++;
+                    logger.error("Failed to push " + upload.archiveFile.getName() + " to " + upload.client.getHost() + ".",
+                                 ex.getCause());
+                } catch (final InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new GradleException("Interrupted while pushing gems.", ex);
+                }
+            }
+
+            logSummary(logger, uploads);
+            if (failures > 0) {
+                throw new GradleException("Failed to push " + failures + " of " + uploads.size() + " upload(s).");
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void logSummary(final Logger logger, final List<Upload> uploads) {
+        final StringBuilder summary = new StringBuilder("Summary of uploads:");
+        for (final Upload upload : uploads) {
+            if (upload.result != null && upload.result.isSkipped()) {
+                summary.append(String.format(
+                        "%n  %s -> %s: SKIPPED (already pushed)",
+                        upload.archiveFile.getName(),
+                        upload.client.getHost()));
+            } else if (upload.result != null) {
+                final RubyGemsClient.PushResult result = upload.result;
+                final double seconds = result.getElapsed().toNanos() / 1_000_000_000.0;
+                summary.append(String.format(
+                        "%n  %s -> %s: %d bytes in %.3f s (%.2f MiB/s) with %d attempt(s)",
+                        upload.archiveFile.getName(),
+                        upload.client.getHost(),
+                        result.getBytes(),
+                        seconds,
+                        (seconds > 0) ? result.getBytes() / (1024.0 * 1024.0) / seconds : 0.0,
+                        result.getAttempts()));
+            } else {
+                summary.append(String.format(
+                        "%n  %s -> %s: FAILED (%s)",
+                        upload.archiveFile.getName(),
+                        upload.client.getHost(),
+                        upload.failure.getMessage()));
+            }
         }
+        logger.lifecycle(summary.toString());
+    }
 
-        final File archiveFile = gemFiles.get(0);
+    /**
+     * A push of a gem to a host.
+     */
+    private static final class Upload {
+        Upload(final File archiveFile, final GemFileInfo gem, final RubyGemsClient client) {
+            this.archiveFile = archiveFile;
+            this.gem = gem;
+            this.client = client;
+        }
+
+        private final File archiveFile;
+        private final GemFileInfo gem;
+        private final RubyGemsClient client;
 
-        if ((!this.getHost().isPresent()) || this.getHost().get().isEmpty()) {
-            throw new GradleException("`host` must be specified in `gemPush`.");
+        private Future<RubyGemsClient.PushResult> future;
+        private RubyGemsClient.PushResult result;
+        private Throwable failure;
+    }
+
+    /**
+     * Finds the RubyGems API key from {@code apiKeys}, {@code apiKey}, {@code GEM_HOST_API_KEY}, and
+     * {@code ~/.gem/credentials} in order.
+     */
+    private String findApiKey(final String rubygemsHost) {
+        final String fromApiKeys = this.apiKeys.getOrElse(Collections.emptyMap()).get(rubygemsHost);
+        if (fromApiKeys != null && !fromApiKeys.isEmpty()) {
+            return fromApiKeys;
         }
-        final String rubygemsHost = this.getHost().get();
 
+        if (this.apiKey.isPresent() && !this.apiKey.get().isEmpty()) {
+            return this.apiKey.get();
+        }
+
+        final String fromEnvironment = System.getenv("GEM_HOST_API_KEY");
+        if (fromEnvironment != null && !fromEnvironment.isEmpty()) {
+            return fromEnvironment;
+        }
+
+        final Path credentialsPath = Paths.get(System.getProperty("user.home"), ".gem", "credentials");
+        if (Files.isRegularFile(credentialsPath)) {
+            final String fromCredentials;
+            try {
+                fromCredentials = RubyGemsClient.findApiKeyInCredentials(
+                        Files.readAllLines(credentialsPath, StandardCharsets.UTF_8), rubygemsHost);
+            } catch (final IOException ex) {
+                throw new GradleException("Failed to read the RubyGems credentials: " + credentialsPath.toString(), ex);
+            }
+            if (fromCredentials != null && !fromCredentials.isEmpty()) {
+                return fromCredentials;
+            }
+        }
+
+        throw new GradleException(
+                "RubyGems API key is not found for " + rubygemsHost + ". "
+                + "Set `apiKey` in `gemPush`, GEM_HOST_API_KEY, or ~/.gem/credentials.");
+    }
+
+    private void pushWithJRuby(
+            final Logger logger, final File archiveFile, final String rubygemsHost, final PhaseMetrics metrics) {
+        // The RubyGems host is given by `--host` instead of RUBYGEMS_HOST because the JRuby worker is shared.
         final ArrayList<String> args = new ArrayList<>();
-        args.add("-rjars/setup");
-        args.add("-S");
-        args.add("gem");
         args.add("push");
         args.add(archiveFile.toString());
         args.add("--verbose");
+        args.add("--host");
+        args.add(rubygemsHost);
 
         final Path workingDirectory = archiveFile.toPath().getParent();
 
-        final Configuration jrubyConfiguration = project.getConfigurations().detachedConfiguration();
-        final Dependency jrubyDependency = project.getDependencies().create(this.jruby.get());
-        jrubyConfiguration.withDependencies(dependencies -> {
-            dependencies.add(jrubyDependency);
-        });
+        JRubyGemWorker.execute(this.getWorkerExecutor(), logger, GemCopyAction.resolveJRuby(this.jrubyClasspath, metrics),
+                               args, workingDirectory, metrics);
 
-        final FileCollection jrubyFiles = (FileCollection) jrubyConfiguration;
-        if (logger.isLifecycleEnabled()) {
-            logger.lifecycle(
-                    "Executing: `java org.jruby.Main " + String.join(" ", args) + "`\n"
-                    + "    with working directory at: " + workingDirectory.toString() + "\n"
-                    + "    with classpath: "
-                    + jrubyFiles.getFiles().stream().map(File::getPath).collect(Collectors.joining(", ", "[ ", " ]")));
-        }
+        logger.lifecycle("Executing `gem push` finished successfully.");
+    }
 
-        final ExecResult execResult = project.javaexec(javaExecSpec -> {
-            javaExecSpec.setWorkingDir(workingDirectory.toFile());
-            javaExecSpec.setClasspath(jrubyFiles);
-            javaExecSpec.setMain("org.jruby.Main");
-            javaExecSpec.setArgs(args);
+    public Property<String> getHost() {
+        return this.host;
+    }
 
-            javaExecSpec.setIgnoreExitValue(false);
+    /**
+     * Property to configure hosts to push the gems to. {@code host} is used if it is empty.
+     */
+    public ListProperty<String> getHosts() {
+        return this.hosts;
+    }
 
-            final HashMap<String, Object> environments = new HashMap<>();
-            environments.putAll(System.getenv());
-            environments.putAll(javaExecSpec.getEnvironment());
+    public Property<String> getApiKey() {
+        return this.apiKey;
+    }
 
-            // Clearing GEM_HOME and GEM_PATH so that user environment variables do not affect the gem execution.
-            environments.remove("GEM_HOME");
-            environments.remove("GEM_PATH");
+    /**
+     * Property to configure API keys for each host, which take precedence over {@code apiKey}.
+     */
+    public MapProperty<String, String> getApiKeys() {
+        return this.apiKeys;
+    }
 
-            // JARS_LOCK, JARS_HOME, and JARS_SKIP are for "jar-dependencies".
-            // https://github.com/mkristian/jar-dependencies/wiki/Jars.lock#jarslock-filename
-            environments.remove("JARS_LOCK");
-            // https://github.com/mkristian/jar-dependencies/blob/0.4.0/Readme.md#configuration
-            environments.remove("JARS_HOME");
-            environments.put("JARS_SKIP", "true");
+    public Property<Integer> getConnectTimeoutSeconds() {
+        return this.connectTimeoutSeconds;
+    }
 
-            // https://github.com/mkristian/jbundler/wiki/Configuration
-            environments.put("JBUNDLE_SKIP", "true");
+    public Property<Integer> getReadTimeoutSeconds() {
+        return this.readTimeoutSeconds;
+    }
 
-            // Set the RubyGems host for sure.
-            environments.put("RUBYGEMS_HOST", rubygemsHost);
+    public Property<Integer> getMaxRetries() {
+        return this.maxRetries;
+    }
 
-            javaExecSpec.setEnvironment(environments);
-        });
-        execResult.assertNormalExitValue();
+    /**
+     * Property to configure the maximum number of uploads at a time.
+     */
+    public Property<Integer> getMaxParallelUploads() {
+        return this.maxParallelUploads;
+    }
 
-        logger.lifecycle("Executing `gem push` finished successfully.");
+    /**
+     * Property to configure the JSON report of the metrics of the push, for example
+     * {@code file("${buildDir}/reports/embulk/gemPush.json")}. It is unset, and the report is not written, by default.
+     *
+     * <p>It is opt-in because it is an output of the task. Once the report is removed, all the gems are pushed again
+     * non-incrementally, although gems already pushed are skipped after confirming them in the hosts.
+     */
+    @Optional
+    @OutputFile
+    public RegularFileProperty getMetricsReportFile() {
+        return this.metricsReportFile;
     }
 
-    public Property<String> getHost() {
-        return this.host;
+    /**
+     * Property to configure how to push the gem: {@code "java"} (default) or {@code "jruby"}.
+     */
+    @Internal
+    public Property<String> getPusher() {
+        return this.pusher;
+    }
+
+    /**
+     * Property to configure a dependency notation for JRuby to run `gem push` when {@code pusher} is {@code "jruby"}.
+     */
+    @Internal
+    public Property<Object> getJruby() {
+        return this.jruby;
     }
 
+    private final ConfigurableFileCollection gems;
+    private final FileCollection gemFiles;
+
     private final Property<String> host;
+    private final ListProperty<String> hosts;
+    private final Property<String> apiKey;
+    private final MapProperty<String, String> apiKeys;
+    private final Property<Integer> connectTimeoutSeconds;
+    private final Property<Integer> readTimeoutSeconds;
+    private final Property<Integer> maxRetries;
+    private final Property<Integer> maxParallelUploads;
 
+    private final Property<String> pusher;
     private final Property<Object> jruby;
+    private final FileCollection jrubyClasspath;
+    private final RegularFileProperty metricsReportFile;
+
+    private static final int DEFAULT_MAX_PARALLEL_UPLOADS = 4;
+
+    static final String PUSHER_JAVA = "java";
+    static final String PUSHER_JRUBY = "jruby";
+
+    private static final List<String> PUSHERS = Collections.unmodifiableList(Arrays.asList(PUSHER_JAVA, PUSHER_JRUBY));
 }
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Caches compressed contents of tar entries of {@code data.tar.gz} on the local disk to rebuild a gem incrementally.
+ *
+ * <p>The content of each entry, with its padding, is cached as a {@link SegmentedGzipWriter.Segment} in a file
+ * named by its key. The key is a hash of everything which affects the segment: the size and the content hash of the
+ * file, and the compression profile. The tar header, which has the path, the mode, and the modification time, is not
+ * cached. It is compressed in every build as a separate small segment so that a file only touched, or regenerated
+ * with the same content, is not compressed again.
+ *
+ * <p>The key of a source file is also recorded in an index by the path, the size, and the last-modified time of the
+ * source file. A source file unchanged since the last build is found in the index without reading it at all.
+ * Cache files which are not used in a build are removed after the build so that the cache does not grow.
+ */
+class GemSegmentCache {
+    GemSegmentCache(final Path directory) {
+        this.directory = directory;
+        this.index = null;
+        this.usedIndex = new TreeMap<>();
+        this.usedKeys = new HashSet<>();
+        this.hits = 0;
+        this.misses = 0;
+        this.compressedBytes = 0;
+    }
+
+    /**
+     * Computes a cache key of the content of a tar entry.
+     */
+    static String key(final long size, final String contentSha256, final GemCompression compression) {
+        final String joined = String.join("\0",
+                Long.toString(size), contentSha256, compression.getName(), Integer.toString(FORMAT));
+        final MessageDigest digest = newSha256();
+        digest.update(joined.getBytes(StandardCharsets.UTF_8));
+        return GemWriter.toHex(digest.digest());
+    }
+
+    /**
+     * Computes the SHA-256 of the content.
+     */
+    static String sha256(final byte[] content) {
+        final MessageDigest digest = newSha256();
+        digest.update(content);
+        return GemWriter.toHex(digest.digest());
+    }
+
+    /**
+     * Computes the SHA-256 of the content.
+     */
+    static String sha256(final InputStream in) throws IOException {
+        final MessageDigest digest = newSha256();
+        final byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            digest.update(buffer, 0, read);
+        }
+        return GemWriter.toHex(digest.digest());
+    }
+
+    interface SegmentCompressor {
+        SegmentedGzipWriter.Segment compress() throws IOException;
+    }
+
+    /**
+     * Returns the cached segment of the source file if it is unchanged since it is recorded, or {@code null}.
+     *
+     * <p>It does not read the source file. It is unchanged if its path, size, and last-modified time are the same.
+     */
+    SegmentedGzipWriter.Segment find(final File source, final GemCompression compression) throws IOException {
+        final String stat = statOf(source, compression);
+        final String key = this.loadIndex().get(stat);
+        if (key == null) {
+            return null;
+        }
+        final SegmentedGzipWriter.Segment cached = this.load(key);
+        if (cached == null) {
+            return null;
+        }
+        this.usedIndex.put(stat, key);
+        this.usedKeys.add(key);
+        this.hits++;
+        return cached;
+    }
+
+    /**
+     * Returns the cached segment for the key, or compresses and caches a new segment if not cached.
+     *
+     * @param source  the source file to record in the index, or {@code null} if the content is not from a file
+     */
+    SegmentedGzipWriter.Segment get(
+            final String key,
+            final File source,
+            final GemCompression compression,
+            final SegmentCompressor compressor) throws IOException {
+        this.usedKeys.add(key);
+        if (source != null) {
+            this.usedIndex.put(statOf(source, compression), key);
+        }
+
+        final SegmentedGzipWriter.Segment cached = this.load(key);
+        if (cached != null) {
+            this.hits++;
+            return cached;
+        }
+
+        final SegmentedGzipWriter.Segment segment = compressor.compress();
+        this.store(key, segment);
+        this.misses++;
+        this.compressedBytes += segment.getLength();
+        return segment;
+    }
+
+    /**
+     * Removes cache files which have not been used since this instance is created, and writes the index of the
+     * source files used.
+     */
+    void removeUnused() throws IOException {
+        if (!Files.isDirectory(this.directory)) {
+            return;
+        }
+        try (final DirectoryStream<Path> files = Files.newDirectoryStream(this.directory)) {
+            for (final Path file : files) {
+                final String name = file.getFileName().toString();
+                if (!name.equals(INDEX_FILE_NAME) && !this.usedKeys.contains(name)) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+
+        final ArrayList<String> lines = new ArrayList<>();
+        for (final Map.Entry<String, String> entry : this.usedIndex.entrySet()) {
+            lines.add(entry.getValue() + " " + entry.getKey());
+        }
+        final Path temporary = Files.createTempFile(this.directory, INDEX_FILE_NAME, ".tmp");
+        try {
+            Files.write(temporary, lines, StandardCharsets.UTF_8);
+            Files.move(temporary, this.directory.resolve(INDEX_FILE_NAME), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    int getHits() {
+        return this.hits;
+    }
+
+    int getMisses() {
+        return this.misses;
+    }
+
+    /**
+     * Returns the number of uncompressed bytes compressed in this build, excluding the bytes reused from the cache.
+     */
+    long getCompressedBytes() {
+        return this.compressedBytes;
+    }
+
+    private Map<String, String> loadIndex() throws IOException {
+        if (this.index != null) {
+            return this.index;
+        }
+        this.index = new HashMap<>();
+        final List<String> lines;
+        try {
+            lines = Files.readAllLines(this.directory.resolve(INDEX_FILE_NAME), StandardCharsets.UTF_8);
+        } catch (final NoSuchFileException ex) {
+            return this.index;
+        }
+        for (final String line : lines) {
+            final int separator = line.indexOf(' ');
+            if (separator > 0) {
+                this.index.put(line.substring(separator + 1), line.substring(0, separator));
+            }
+        }
+        return this.index;
+    }
+
+    private static String statOf(final File source, final GemCompression compression) {
+        // Tabs are not expected in paths. The line would just never match if a path contains a tab.
+        return String.join("\t",
+                source.getAbsolutePath(),
+                Long.toString(source.length()),
+                Long.toString(source.lastModified()),
+                compression.getName());
+    }
+
+    private SegmentedGzipWriter.Segment load(final String key) throws IOException {
+        final Path file = this.directory.resolve(key);
+        try (final DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            final long length = in.readLong();
+            final int crc = in.readInt();
+            final int deflatedLength = in.readInt();
+            final byte[] deflated = new byte[deflatedLength];
+            in.readFully(deflated);
+            return new SegmentedGzipWriter.Segment(deflated, crc, length);
+        } catch (final NoSuchFileException ex) {
+            return null;
+        } catch (final IOException ex) {
+            // A broken cache file is just discarded.
+            Files.deleteIfExists(file);
+            return null;
+        }
+    }
+
+    private void store(final String key, final SegmentedGzipWriter.Segment segment) throws IOException {
+        Files.createDirectories(this.directory);
+        final Path temporary = Files.createTempFile(this.directory, key, ".tmp");
+        try {
+            try (final OutputStream fileOut = Files.newOutputStream(temporary);
+                 final DataOutputStream out = new DataOutputStream(fileOut)) {
+                out.writeLong(segment.getLength());
+                out.writeInt(segment.getCrc());
+                out.writeInt(segment.getDeflated().length);
+                out.write(segment.getDeflated());
+            }
+            Files.move(temporary, this.directory.resolve(key), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("Message digest SHA-256 is unavailable.", ex);
+        }
+    }
+
+    // Bumped when the format of segments or cache files changes.
+    private static final int FORMAT = 1;
+
+    private static final String INDEX_FILE_NAME = "index";
+
+    private final Path directory;
+    private final TreeMap<String, String> usedIndex;
+    private final Set<String> usedKeys;
+
+    private Map<String, String> index;
+
+    private int hits;
+    private int misses;
+    private long compressedBytes;
+}
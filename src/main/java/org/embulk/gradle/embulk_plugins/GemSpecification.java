@@ -0,0 +1,398 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import java.io.PrintWriter;
+import java.io.Serializable;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+/**
+ * Attributes of a gem, corresponding to Ruby's {@code Gem::Specification}.
+ *
+ * <p>It renders the same attributes in two forms: a Ruby {@code .gemspec} for {@code gem build} on JRuby,
+ * and YAML for {@code metadata.gz} in a gem archive built in-process.
+ *
+ * <p>It is serializable to be passed to a worker of the Worker API.
+ *
+ * @see <a href="https://guides.rubygems.org/specification-reference/">Specification Reference</a>
+ */
+final class GemSpecification implements Serializable {
+    private GemSpecification(
+            final String name,
+            final String version,
+            final List<String> authors,
+            final String summary,
+            final String description,
+            final List<String> email,
+            final String homepage,
+            final List<String> licenses,
+            final Map<String, String> metadata,
+            final List<String> files,
+            final Instant date) {
+        this.name = name;
+        this.version = version;
+        this.authors = authors;
+        this.summary = summary;
+        this.description = description;
+        this.email = email;
+        this.homepage = homepage;
+        this.licenses = licenses;
+        this.metadata = metadata;
+        this.files = files;
+        this.date = date;
+    }
+
+    static class Builder {
+        private Builder() {
+            this.authors = new ArrayList<>();
+            this.email = new ArrayList<>();
+            this.licenses = new ArrayList<>();
+            this.metadata = new LinkedHashMap<>();
+            this.files = new ArrayList<>();
+            this.date = Instant.now();
+        }
+
+        Builder name(final String name) {
+            this.name = name;
+            return this;
+        }
+
+        Builder version(final String version) {
+            this.version = version;
+            return this;
+        }
+
+        Builder authors(final List<String> authors) {
+            this.authors.addAll(authors);
+            return this;
+        }
+
+        Builder summary(final String summary) {
+            this.summary = summary;
+            return this;
+        }
+
+        Builder description(final String description) {
+            this.description = description;
+            return this;
+        }
+
+        Builder email(final List<String> email) {
+            this.email.addAll(email);
+            return this;
+        }
+
+        Builder homepage(final String homepage) {
+            this.homepage = homepage;
+            return this;
+        }
+
+        Builder licenses(final List<String> licenses) {
+            this.licenses.addAll(licenses);
+            return this;
+        }
+
+        Builder metadata(final Map<String, String> metadata) {
+            this.metadata.putAll(metadata);
+            return this;
+        }
+
+        Builder files(final List<String> files) {
+            this.files.addAll(files);
+            return this;
+        }
+
+        Builder date(final Instant date) {
+            this.date = date;
+            return this;
+        }
+
+        GemSpecification build() {
+            return new GemSpecification(
+                    this.name,
+                    this.version,
+                    Collections.unmodifiableList(new ArrayList<>(this.authors)),
+                    this.summary,
+                    this.description,
+                    Collections.unmodifiableList(new ArrayList<>(this.email)),
+                    this.homepage,
+                    Collections.unmodifiableList(new ArrayList<>(this.licenses)),
+                    Collections.unmodifiableMap(new LinkedHashMap<>(this.metadata)),
+                    sortedFiles(this.files),
+                    this.date);
+        }
+
+        private String name;
+        private String version;
+        private final ArrayList<String> authors;
+        private String summary;
+        private String description;
+        private final ArrayList<String> email;
+        private String homepage;
+        private final ArrayList<String> licenses;
+        private final LinkedHashMap<String, String> metadata;
+        private final ArrayList<String> files;
+        private Instant date;
+    }
+
+    static Builder builder() {
+        return new Builder();
+    }
+
+    String getName() {
+        return this.name;
+    }
+
+    String getVersion() {
+        return this.version;
+    }
+
+    List<String> getFiles() {
+        return this.files;
+    }
+
+    /**
+     * Returns a copy of the specification with {@code files} replaced. The files are sorted.
+     */
+    GemSpecification withFiles(final List<String> files) {
+        return new GemSpecification(
+                this.name,
+                this.version,
+                this.authors,
+                this.summary,
+                this.description,
+                this.email,
+                this.homepage,
+                this.licenses,
+                this.metadata,
+                sortedFiles(files),
+                this.date);
+    }
+
+    /**
+     * Dumps the specification as a Ruby {@code .gemspec} to be built by {@code gem build}.
+     */
+    // https://guides.rubygems.org/specification-reference/
+    // https://maven.apache.org/ref/3.6.0/maven-model/apidocs/org/apache/maven/model/Model.html
+    void dumpRuby(final PrintWriter writer) {
+        writer.println("Gem::Specification.new do |spec|");
+
+        // REQUIRED GEMSPEC ATTRIBUTES
+        writer.println("    spec.authors       = [" + renderList(this.authors) + "]");
+        writer.println("    spec.files         = [");
+        for (final String file : this.files) {
+            writer.println("        \"" + file + "\",");
+        }
+        writer.println("    ]");
+        writer.println("    spec.name          = \"" + this.name + "\"");
+        writer.println("    spec.summary       = \"" + this.summary + "\"");
+        writer.println("    spec.version       = \"" + this.version + "\"");
+
+        // RECOMMENDED GEMSPEC ATTRIBUTES
+        if (this.description != null && !this.description.isEmpty()) {
+            writer.println("    spec.description   = \"" + this.description + "\"");
+        }
+        if (!this.email.isEmpty()) {
+            writer.println("    spec.email         = [" + renderList(this.email) + "]");
+        }
+        if (this.homepage != null) {
+            writer.println("    spec.homepage      = \"" + this.homepage + "\"");
+        }
+        if (!this.licenses.isEmpty()) {
+            writer.println("    spec.licenses      = [" + renderList(this.licenses) + "]");
+        }
+        if (!this.metadata.isEmpty()) {
+            writer.println("    spec.metadata      = {");
+            for (final Map.Entry<String, String> entry : this.metadata.entrySet()) {
+                writer.println("        \"" + entry.getKey() + "\" => \"" + entry.getValue() + "\",");
+            }
+            writer.println("    }");
+        }
+
+        // OPTIONAL GEMSPEC ATTRIBUTES
+        // add_development_dependency
+        // add_runtime_dependency
+        // author=
+        // bindir
+        // cert_chain
+        // executables
+        // extensions
+        // extra_rdoc_files
+        writer.println("    spec.platform      = \"java\"");
+        // post_install_message
+        // rdoc_options
+        writer.println("    spec.require_paths = [ \"lib\" ]");
+        // required_ruby_version
+        // required_ruby_version=
+        // required_rubygems_version
+        // required_rubygems_version=
+        // requirements
+        // rubygems_version
+        // signing_key
+        writer.println("end");
+    }
+
+    /**
+     * Dumps the specification as YAML in the same layout as {@code Gem::Specification#to_yaml}.
+     *
+     * <p>{@code name}, {@code version}, and {@code platform} come first, and the other attributes follow
+     * in the alphabetical order as {@code Gem::Specification#encode_with} does. All strings are double-quoted.
+     *
+     * @see <a href="https://github.com/rubygems/rubygems/blob/v2.7.9/lib/rubygems/specification.rb">Gem::Specification</a>
+     */
+    void dumpYaml(final PrintWriter writer) {
+        writer.print("--- !ruby/object:Gem::Specification\n");
+        writer.print("name: " + quote(this.name) + "\n");
+        writer.print("version: !ruby/object:Gem::Version\n");
+        writer.print("  version: " + quote(this.version) + "\n");
+        writer.print("platform: java\n");
+        writer.print("authors:" + renderYamlList(this.authors));
+        writer.print("autorequire:\n");
+        writer.print("bindir: bin\n");
+        writer.print("cert_chain: []\n");
+        writer.print("date: " + DATE_FORMATTER.format(this.date.truncatedTo(ChronoUnit.DAYS)) + "\n");
+        writer.print("dependencies: []\n");
+        writer.print("description:" + renderYamlScalar(this.description));
+        writer.print("email:" + (this.email.isEmpty() ? "\n" : renderYamlList(this.email)));
+        writer.print("executables: []\n");
+        writer.print("extensions: []\n");
+        writer.print("extra_rdoc_files: []\n");
+        writer.print("files:" + renderYamlList(this.files));
+        writer.print("homepage:" + renderYamlScalar(this.homepage));
+        writer.print("licenses:" + renderYamlList(this.licenses));
+        if (this.metadata.isEmpty()) {
+            writer.print("metadata: {}\n");
+        } else {
+            writer.print("metadata:\n");
+            for (final Map.Entry<String, String> entry : this.metadata.entrySet()) {
+                writer.print("  " + quote(entry.getKey()) + ": " + quote(entry.getValue()) + "\n");
+            }
+        }
+        writer.print("post_install_message:\n");
+        writer.print("rdoc_options: []\n");
+        writer.print("require_paths:\n");
+        writer.print("- lib\n");
+        writer.print("required_ruby_version: !ruby/object:Gem::Requirement\n");
+        writer.print("  requirements:\n");
+        writer.print("  - - \">=\"\n");
+        writer.print("    - !ruby/object:Gem::Version\n");
+        writer.print("      version: '0'\n");
+        writer.print("required_rubygems_version: !ruby/object:Gem::Requirement\n");
+        writer.print("  requirements:\n");
+        writer.print("  - - \">=\"\n");
+        writer.print("    - !ruby/object:Gem::Version\n");
+        writer.print("      version: '0'\n");
+        writer.print("requirements: []\n");
+        writer.print("rubyforge_project:\n");
+        writer.print("rubygems_version: " + RUBYGEMS_VERSION + "\n");
+        writer.print("signing_key:\n");
+        writer.print("specification_version: 4\n");
+        writer.print("summary:" + renderYamlScalar(this.summary));
+        writer.print("test_files: []\n");
+        writer.flush();
+    }
+
+    /**
+     * Sorts and deduplicates files as {@code Gem::Specification#files} does, so that the specification is stable
+     * regardless of the order in which files are collected.
+     */
+    private static List<String> sortedFiles(final List<String> files) {
+        return Collections.unmodifiableList(new ArrayList<>(new TreeSet<>(files)));
+    }
+
+    private static String renderList(final List<String> strings) {
+        return String.join(", ", strings.stream().map(s -> "\"" + s + "\"").collect(Collectors.toList()));
+    }
+
+    private static String renderYamlScalar(final String value) {
+        if (value == null || value.isEmpty()) {
+            return "\n";
+        }
+        return " " + quote(value) + "\n";
+    }
+
+    private static String renderYamlList(final List<String> values) {
+        if (values.isEmpty()) {
+            return " []\n";
+        }
+        return "\n" + values.stream().map(value -> "- " + quote(value) + "\n").collect(Collectors.joining(""));
+    }
+
+    /**
+     * Quotes a string as a double-quoted YAML scalar.
+     */
+    static String quote(final String value) {
+        final StringBuilder builder = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c == 0x7f) {
+                        builder.append(String.format("\\x%02x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+        return builder.append('"').toString();
+    }
+
+    // The version of RubyGems embedded in JRuby 9.2.7.0 (DEFAULT_JRUBY), whose gem format is followed.
+    static final String RUBYGEMS_VERSION = "2.7.9";
+
+    private static final DateTimeFormatter DATE_FORMATTER =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSSSSSSSS 'Z'").withZone(ZoneOffset.UTC);
+
+    private static final long serialVersionUID = 1L;
+
+    private final String name;
+    private final String version;
+    private final List<String> authors;
+    private final String summary;
+    private final String description;
+    private final List<String> email;
+    private final String homepage;
+    private final List<String> licenses;
+    private final Map<String, String> metadata;
+    private final List<String> files;
+    private final Instant date;
+}
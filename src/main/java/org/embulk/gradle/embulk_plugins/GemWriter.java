@@ -0,0 +1,367 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a gem archive in-process in the same format as RubyGems' {@code Gem::Package#build}.
+ *
+ * <p>A gem is an uncompressed tar archive that contains:
+ *
+ * <ul>
+ * <li>{@code metadata.gz}: the gzipped YAML of {@code Gem::Specification}
+ * <li>{@code data.tar.gz}: the gzipped tar archive of the files in the gem
+ * <li>{@code checksums.yaml.gz}: the gzipped YAML of SHA256 and SHA512 checksums of the two above
+ * </ul>
+ *
+ * <p>The size of {@code data.tar.gz} is unknown until it is compressed. Its tar header is reserved at first,
+ * and then overwritten after its content is written, as {@code TarWriter#add_file} does in RubyGems.
+ *
+ * @see <a href="https://github.com/rubygems/rubygems/blob/v2.7.9/lib/rubygems/package.rb">Gem::Package</a>
+ */
+class GemWriter implements Closeable {
+    private GemWriter(
+            final FileChannel channel,
+            final long mtime,
+            final GemCompression compression,
+            final int compressionThreads) {
+        this.channel = channel;
+        this.mtime = mtime;
+        this.compression = compression;
+        this.compressionThreads = compressionThreads;
+        this.contentsUncompressedBytes = 0;
+        this.contentsCompressedBytes = 0;
+        this.contentsNanos = 0;
+        this.checksums = new LinkedHashMap<>();
+        this.checksums.put("SHA256", new LinkedHashMap<>());
+        this.checksums.put("SHA512", new LinkedHashMap<>());
+    }
+
+    interface ContentsWriter {
+        void write(TarWriter tar) throws IOException;
+    }
+
+    interface SegmentsWriter {
+        void write(SegmentedGzipWriter gzip) throws IOException;
+    }
+
+    interface EntryWriter {
+        void write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Opens a new gem file to write.
+     *
+     * @param gemPath  the path of the gem file to be created, or overwritten
+     * @param mtime  the modification time of the top-level entries, in seconds since the epoch
+     */
+    static GemWriter open(final Path gemPath, final long mtime) throws IOException {
+        return open(gemPath, mtime, GemCompression.SMALLEST, 1);
+    }
+
+    /**
+     * Opens a new gem file to write, with {@code data.tar.gz} compressed in multiple threads if more than one.
+     *
+     * @param gemPath  the path of the gem file to be created, or overwritten
+     * @param mtime  the modification time of the top-level entries, in seconds since the epoch
+     * @param compression  the compression profile of the gzipped entries
+     * @param compressionThreads  the number of threads to compress {@code data.tar.gz}
+     */
+    static GemWriter open(
+            final Path gemPath,
+            final long mtime,
+            final GemCompression compression,
+            final int compressionThreads) throws IOException {
+        if (compressionThreads < 1) {
+            throw new IllegalArgumentException("compressionThreads must be positive: " + compressionThreads);
+        }
+        return new GemWriter(
+                FileChannel.open(gemPath,
+                                 StandardOpenOption.CREATE,
+                                 StandardOpenOption.TRUNCATE_EXISTING,
+                                 StandardOpenOption.WRITE),
+                mtime,
+                compression,
+                compressionThreads);
+    }
+
+    /**
+     * Adds {@code metadata.gz} as {@code Gem::Package#add_metadata} does.
+     */
+    void addMetadata(final GemSpecification specification) throws IOException {
+        this.addEntry("metadata.gz", out -> {
+            try (final GZIPOutputStream gzip = newGzipOutputStream(out);
+                 final PrintWriter writer = new PrintWriter(new OutputStreamWriter(gzip, StandardCharsets.UTF_8))) {
+                specification.dumpYaml(writer);
+            }
+        });
+    }
+
+    /**
+     * Adds {@code data.tar.gz} as {@code Gem::Package#add_contents} does.
+     *
+     * <p>It is compressed by {@link ParallelGzipOutputStream} if {@code compressionThreads} is more than one.
+     */
+    void addContents(final ContentsWriter contentsWriter) throws IOException {
+        final long startNanos = System.nanoTime();
+        this.addEntry("data.tar.gz", out -> {
+            if (this.compressionThreads > 1) {
+                final ExecutorService executor = Executors.newFixedThreadPool(this.compressionThreads);
+                try (final ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(
+                             out, this.compression, executor, this.compressionThreads)) {
+                    this.writeTar(gzip, contentsWriter);
+                } finally {
+                    executor.shutdownNow();
+                }
+            } else {
+                try (final GZIPOutputStream gzip = newGzipOutputStream(out)) {
+                    this.writeTar(gzip, contentsWriter);
+                }
+            }
+        });
+        this.contentsCompressedBytes = this.lastEntrySize;
+        this.contentsNanos = System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Returns the uncompressed size of {@code data.tar.gz} added by {@link #addContents}.
+     */
+    long getContentsUncompressedBytes() {
+        return this.contentsUncompressedBytes;
+    }
+
+    /**
+     * Returns the compressed size of {@code data.tar.gz} added by {@link #addContents}.
+     */
+    long getContentsCompressedBytes() {
+        return this.contentsCompressedBytes;
+    }
+
+    /**
+     * Returns the time in nanoseconds taken by {@link #addContents}.
+     */
+    long getContentsNanos() {
+        return this.contentsNanos;
+    }
+
+    /**
+     * Returns the size of the entry added last, such as {@code metadata.gz} just after {@link #addMetadata}.
+     */
+    long getLastEntrySize() {
+        return this.lastEntrySize;
+    }
+
+    GemCompression getCompression() {
+        return this.compression;
+    }
+
+    int getCompressionThreads() {
+        return this.compressionThreads;
+    }
+
+    private void writeTar(final OutputStream gzip, final ContentsWriter contentsWriter) throws IOException {
+        final CountingOutputStream counting = new CountingOutputStream(gzip);
+        try (final TarWriter tar = new TarWriter(counting)) {
+            contentsWriter.write(tar);
+        }
+        this.contentsUncompressedBytes = counting.getCount();
+    }
+
+    /**
+     * Adds {@code data.tar.gz} from compressed segments of tar entries, and terminates the tar archive.
+     *
+     * <p>Each segment must be compressed from a whole tar entry: its header, content, and padding.
+     *
+     * @see SegmentedGzipWriter
+     */
+    void addSegmentedContents(final SegmentsWriter segmentsWriter) throws IOException {
+        this.addEntry("data.tar.gz", out -> {
+            try (final SegmentedGzipWriter gzip = new SegmentedGzipWriter(out)) {
+                segmentsWriter.write(gzip);
+                gzip.write(SegmentedGzipWriter.compress(
+                        this.compression, new ByteArrayInputStream(new byte[TarWriter.BLOCK_SIZE * 2])));
+            }
+        });
+        this.contentsCompressedBytes = this.lastEntrySize;
+    }
+
+    /**
+     * Adds {@code checksums.yaml.gz}, and terminates the archive.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            final Map<String, Map<String, String>> checksums = this.checksums;
+            this.addEntry("checksums.yaml.gz", out -> {
+                try (final GZIPOutputStream gzip = newGzipOutputStream(out);
+                     final PrintWriter writer = new PrintWriter(new OutputStreamWriter(gzip, StandardCharsets.UTF_8))) {
+                    writer.print("---\n");
+                    for (final Map.Entry<String, Map<String, String>> algorithm : checksums.entrySet()) {
+                        writer.print(algorithm.getKey() + ":\n");
+                        for (final Map.Entry<String, String> checksum : algorithm.getValue().entrySet()) {
+                            writer.print("  " + checksum.getKey() + ": " + checksum.getValue() + "\n");
+                        }
+                    }
+                }
+            });
+            writeFully(this.channel, ByteBuffer.wrap(new byte[TarWriter.BLOCK_SIZE * 2]));
+        } finally {
+            this.channel.close();
+        }
+    }
+
+    private void addEntry(final String name, final EntryWriter entryWriter) throws IOException {
+        final long headerPosition = this.channel.position();
+        writeFully(this.channel, ByteBuffer.wrap(new byte[TarWriter.BLOCK_SIZE]));
+
+        final MessageDigest sha256 = newMessageDigest("SHA-256");
+        final MessageDigest sha512 = newMessageDigest("SHA-512");
+        final OutputStream out = new DigestOutputStream(new DigestOutputStream(
+                new BufferedOutputStream(new UnclosableOutputStream(Channels.newOutputStream(this.channel))), sha256), sha512);
+        entryWriter.write(out);
+        out.flush();
+
+        final long size = this.channel.position() - headerPosition - TarWriter.BLOCK_SIZE;
+        this.lastEntrySize = size;
+        writeFully(this.channel, ByteBuffer.wrap(new byte[TarWriter.padding(size)]));
+
+        final ByteBuffer header = ByteBuffer.wrap(TarWriter.createHeader(name, 0444, this.mtime, size));
+        long position = headerPosition;
+        while (header.hasRemaining()) {
+            position += this.channel.write(header, position);
+        }
+
+        this.checksums.get("SHA256").put(name, toHex(sha256.digest()));
+        this.checksums.get("SHA512").put(name, toHex(sha512.digest()));
+    }
+
+    /**
+     * Creates a gzip stream in the compression profile. {@code "smallest"} is {@code Zlib::BEST_COMPRESSION}
+     * as {@code Gem::Package#gzip_to} does.
+     */
+    private GZIPOutputStream newGzipOutputStream(final OutputStream out) throws IOException {
+        final GemCompression compression = this.compression;
+        return new GZIPOutputStream(out, 64 * 1024) {
+            {
+                compression.configure(this.def);
+            }
+        };
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static MessageDigest newMessageDigest(final String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (final NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("Message digest " + algorithm + " is unavailable.", ex);
+        }
+    }
+
+    static String toHex(final byte[] bytes) {
+        final StringBuilder builder = new StringBuilder();
+        for (final byte b : bytes) {
+            builder.append(String.format("%02x", b & 0xff));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Counts bytes written through.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        CountingOutputStream(final OutputStream out) {
+            super(out);
+            this.count = 0;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            this.out.write(b);
+            this.count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            this.out.write(b, off, len);
+            this.count += len;
+        }
+
+        long getCount() {
+            return this.count;
+        }
+
+        private long count;
+    }
+
+    /**
+     * Keeps the underlying {@link FileChannel} open when a stream for an entry is closed.
+     */
+    private static class UnclosableOutputStream extends FilterOutputStream {
+        UnclosableOutputStream(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            this.out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.flush();
+        }
+    }
+
+    private final FileChannel channel;
+    private final long mtime;
+    private final GemCompression compression;
+    private final int compressionThreads;
+
+    private long contentsUncompressedBytes;
+    private long contentsCompressedBytes;
+    private long contentsNanos;
+    private long lastEntrySize;
+
+    private final LinkedHashMap<String, Map<String, String>> checksums;
+}
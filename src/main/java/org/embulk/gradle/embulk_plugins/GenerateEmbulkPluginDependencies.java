@@ -0,0 +1,157 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.inject.Inject;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.Project;
+import org.gradle.api.artifacts.Configuration;
+import org.gradle.api.artifacts.ModuleVersionIdentifier;
+import org.gradle.api.artifacts.ResolvedArtifact;
+import org.gradle.api.artifacts.component.ProjectComponentIdentifier;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.TaskAction;
+
+/**
+ * A Gradle task to generate the list of the resolved dependencies of an Embulk plugin into its main JAR file:
+ * {@code "generateEmbulkPluginDependencies"}.
+ *
+ * <p>It is used with {@code dependencyList = true} in {@code embulkPlugin}. The artifacts of
+ * {@code "embulkPluginRuntime"} are listed with their coordinates, SHA-256, and sizes in
+ * {@code META-INF/embulk/dependencies.list} of the main JAR file, which is pointed from
+ * {@code Embulk-Plugin-Dependencies} in the manifest. A Maven-style plugin loader can fetch and verify exactly the
+ * artifacts listed, without resolving the POM of the plugin again.
+ *
+ * <pre>{@code # SHA-256 size group:module:version[:classifier][@extension]
+ * 5b9f1d2e... 2256213 com.google.guava:guava:19.0
+ * }</pre>
+ *
+ * <p>The artifacts are sorted by their coordinates so that the list is reproducible.
+ *
+ * <p>Artifacts of project dependencies, such as {@code compile project(":embulk-util-example")}, are not in any Maven
+ * repository, so a loader cannot fetch them by their coordinates. They are still listed, but marked as comments which
+ * start with {@code "# project "} so that a loader does not try to fetch them. Such a plugin needs the projects
+ * published, or needs to be loaded from its gem.
+ *
+ * <pre>{@code # project 1a2b3c4d... 12345 org.embulk.example:embulk-util-example:0.1.0
+ * }</pre>
+ */
+class GenerateEmbulkPluginDependencies extends DefaultTask {
+    @Inject
+    public GenerateEmbulkPluginDependencies() {
+        super();
+
+        final Project project = this.getProject();
+        final ObjectFactory objectFactory = project.getObjects();
+        this.alternativeRuntimeConfiguration = null;
+        this.runtimeClasspath = objectFactory.fileCollection();
+        this.destinationDirectory = objectFactory.directoryProperty();
+        this.destinationDirectory.set(project.getLayout().getBuildDirectory().dir("embulkPluginDependencies"));
+    }
+
+    /**
+     * Returns the artifacts of {@code "embulkPluginRuntime"}, whose names include their versions.
+     */
+    @InputFiles
+    @PathSensitive(PathSensitivity.NAME_ONLY)
+    public ConfigurableFileCollection getRuntimeClasspath() {
+        return this.runtimeClasspath;
+    }
+
+    /**
+     * Returns the directory where {@code META-INF/embulk/dependencies.list} is generated, to be included in the
+     * main JAR file.
+     */
+    @OutputDirectory
+    public DirectoryProperty getDestinationDirectory() {
+        return this.destinationDirectory;
+    }
+
+    @TaskAction
+    public void generate() {
+        final TreeMap<String, String> lines = new TreeMap<>();
+        for (final ResolvedArtifact artifact : this.alternativeRuntimeConfiguration.getResolvedConfiguration().getResolvedArtifacts()) {
+            final String coordinates = coordinatesOf(artifact);
+            final boolean fromProject = artifact.getId().getComponentIdentifier() instanceof ProjectComponentIdentifier;
+            try (final InputStream in = Files.newInputStream(artifact.getFile().toPath())) {
+                lines.put(coordinates, (fromProject ? PROJECT_PREFIX : "")
+                          + GemSegmentCache.sha256(in) + " " + artifact.getFile().length() + " " + coordinates);
+            } catch (final IOException ex) {
+                throw new GradleException("Failed to read the artifact: " + artifact.getFile().toString(), ex);
+            }
+        }
+
+        final StringBuilder builder = new StringBuilder();
+        builder.append("# SHA-256 size group:module:version[:classifier][@extension]\n");
+        for (final Map.Entry<String, String> line : lines.entrySet()) {
+            builder.append(line.getValue()).append('\n');
+        }
+
+        final Path listPath = this.destinationDirectory.get().getAsFile().toPath().resolve(PATH);
+        try {
+            Files.createDirectories(listPath.getParent());
+            Files.write(listPath, builder.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (final IOException ex) {
+            throw new GradleException("Failed to create/write to the dependency list: " + listPath.toString(), ex);
+        }
+        this.getLogger().info("Listed {} dependencies in: {}", lines.size(), listPath);
+    }
+
+    void setConfiguration(final Configuration alternativeRuntimeConfiguration) {
+        this.alternativeRuntimeConfiguration = alternativeRuntimeConfiguration;
+        this.runtimeClasspath.setFrom(alternativeRuntimeConfiguration);
+    }
+
+    static String coordinatesOf(final ResolvedArtifact artifact) {
+        final ModuleVersionIdentifier id = artifact.getModuleVersion().getId();
+        final StringBuilder builder = new StringBuilder();
+        builder.append(id.getGroup()).append(':').append(id.getName()).append(':').append(id.getVersion());
+        if (artifact.getClassifier() != null && !artifact.getClassifier().isEmpty()) {
+            builder.append(':').append(artifact.getClassifier());
+        }
+        if (artifact.getExtension() != null && !artifact.getExtension().equals("jar")) {
+            builder.append('@').append(artifact.getExtension());
+        }
+        return builder.toString();
+    }
+
+    // The path of the list in the main JAR file.
+    static final String PATH = "META-INF/embulk/dependencies.list";
+
+    static final String MANIFEST_ATTRIBUTE = "Embulk-Plugin-Dependencies";
+
+    // The prefix of artifacts of project dependencies, which are not to be fetched from Maven repositories.
+    static final String PROJECT_PREFIX = "# project ";
+
+    private Configuration alternativeRuntimeConfiguration;
+    private final ConfigurableFileCollection runtimeClasspath;
+    private final DirectoryProperty destinationDirectory;
+}
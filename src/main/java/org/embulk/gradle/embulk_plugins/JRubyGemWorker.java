@@ -0,0 +1,178 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.Collectors;
+import javax.inject.Inject;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.logging.Logger;
+import org.gradle.workers.IsolationMode;
+import org.gradle.workers.WorkerExecutor;
+
+/**
+ * Runs a {@code gem} command on JRuby in a Gradle worker daemon, instead of forking a new JVM for each command.
+ *
+ * <p>Gradle keeps a worker daemon alive, and reuses it for later work with the same classpath and fork options.
+ * A JRuby runtime is initialized only once in a worker daemon with {@code jars/setup} and RubyGems loaded, and it
+ * is reused by later {@code gem build} and {@code gem push} from any project in the build. Each worker daemon runs
+ * one {@code gem} command at a time, and the number of worker daemons is bounded by Gradle's {@code --max-workers}.
+ *
+ * <p>JRuby is accessed through reflection because it is on the classpath only in the worker daemon.
+ *
+ * @see <a href="https://docs.gradle.org/5.5.1/userguide/custom_tasks.html#worker_api">The Worker API</a>
+ */
+public class JRubyGemWorker implements Runnable {
+    @Inject
+    public JRubyGemWorker(final ArrayList<String> args, final File workingDirectory) {
+        this.args = args;
+        this.workingDirectory = workingDirectory;
+    }
+
+    /**
+     * Submits a {@code gem} command to a JRuby worker daemon, and waits for its completion.
+     */
+    static void execute(
+            final WorkerExecutor workerExecutor,
+            final Logger logger,
+            final FileCollection jrubyFiles,
+            final List<String> args,
+            final Path workingDirectory,
+            final PhaseMetrics metrics) {
+        if (logger.isLifecycleEnabled()) {
+            logger.lifecycle(
+                    "Executing: `gem " + String.join(" ", args) + "` in a JRuby worker\n"
+                    + "    with working directory at: " + workingDirectory.toString() + "\n"
+                    + "    with classpath: "
+                    + jrubyFiles.getFiles().stream().map(File::getPath).collect(Collectors.joining(", ", "[ ", " ]")));
+        }
+
+        // The phase covers the submission too, which may start a new worker daemon.
+        final PhaseMetrics.Phase phase = metrics.start("jrubyExec");
+        workerExecutor.submit(JRubyGemWorker.class, config -> {
+            config.setIsolationMode(IsolationMode.PROCESS);
+            config.setDisplayName("gem " + (args.isEmpty() ? "" : args.get(0)));
+            config.classpath(jrubyFiles);
+            config.forkOptions(forkOptions -> {
+                final HashMap<String, Object> environments = new HashMap<>();
+                environments.putAll(System.getenv());
+                environments.putAll(forkOptions.getEnvironment());
+
+                // Clearing GEM_HOME and GEM_PATH so that user environment variables do not affect the gem execution.
+                environments.remove("GEM_HOME");
+                environments.remove("GEM_PATH");
+
+                // JARS_LOCK, JARS_HOME, and JARS_SKIP are for "jar-dependencies".
+                // https://github.com/mkristian/jar-dependencies/wiki/Jars.lock#jarslock-filename
+                environments.remove("JARS_LOCK");
+                // https://github.com/mkristian/jar-dependencies/blob/0.4.0/Readme.md#configuration
+                environments.remove("JARS_HOME");
+                environments.put("JARS_SKIP", "true");
+
+                // https://github.com/mkristian/jbundler/wiki/Configuration
+                environments.put("JBUNDLE_SKIP", "true");
+
+                // RUBYGEMS_HOST is not inherited from the Gradle daemon. It is to be configured per command.
+                environments.remove("RUBYGEMS_HOST");
+
+                forkOptions.setEnvironment(environments);
+            });
+            config.params(new ArrayList<>(args), workingDirectory.toFile());
+        });
+        try {
+            workerExecutor.await();
+        } finally {
+            phase.close();
+        }
+    }
+
+    @Override
+    public void run() {
+        synchronized (JRubyGemWorker.class) {
+            try {
+                final Object container = getContainer();
+                final Class<?> containerClass = container.getClass();
+                containerClass.getMethod("setCurrentDirectory", String.class)
+                        .invoke(container, this.workingDirectory.getAbsolutePath());
+                containerClass.getMethod("put", String.class, Object.class)
+                        .invoke(container, "$embulk_gem_args", this.args);
+                final Object exitCode = containerClass.getMethod("runScriptlet", String.class)
+                        .invoke(container, RUN_SCRIPT);
+                if (!(exitCode instanceof Number) || ((Number) exitCode).intValue() != 0) {
+                    throw new GradleException(
+                            "`gem " + String.join(" ", this.args) + "` failed with exit code: " + exitCode);
+                }
+            } catch (final InvocationTargetException ex) {
+                throw new GradleException("`gem " + String.join(" ", this.args) + "` failed.", ex.getCause());
+            } catch (final ReflectiveOperationException ex) {
+                throw new GradleException("Failed to access JRuby in the worker.", ex);
+            }
+        }
+    }
+
+    /**
+     * Returns the JRuby runtime of this worker daemon, which is initialized at the first call.
+     */
+    private static Object getContainer() throws ReflectiveOperationException {
+        if (container == null) {
+            final ClassLoader classLoader = JRubyGemWorker.class.getClassLoader();
+            final Class<?> containerClass = Class.forName("org.jruby.embed.ScriptingContainer", true, classLoader);
+            final Class<?> scopeClass = Class.forName("org.jruby.embed.LocalContextScope", true, classLoader);
+            final Class<?> behaviorClass = Class.forName("org.jruby.embed.LocalVariableBehavior", true, classLoader);
+            final Object newContainer = containerClass.getConstructor(scopeClass, behaviorClass).newInstance(
+                    scopeClass.getField("SINGLETHREAD").get(null),
+                    behaviorClass.getField("TRANSIENT").get(null));
+            final Method runScriptlet = containerClass.getMethod("runScriptlet", String.class);
+            runScriptlet.invoke(newContainer, SETUP_SCRIPT);
+            container = newContainer;
+        }
+        return container;
+    }
+
+    // Corresponds to `java org.jruby.Main -rjars/setup -S gem`.
+    private static final String SETUP_SCRIPT =
+            "require 'jars/setup'\n"
+            + "require 'rubygems'\n"
+            + "require 'rubygems/gem_runner'\n"
+            + "require 'rubygems/exceptions'\n";
+
+    // Gem::Specification.load caches a gemspec by its path. The cache is cleared so that a gemspec regenerated
+    // at the same path is loaded again in the reused runtime.
+    private static final String RUN_SCRIPT =
+            "Gem::Specification::LOAD_CACHE.clear if defined?(Gem::Specification::LOAD_CACHE)\n"
+            + "begin\n"
+            + "  Gem::GemRunner.new.run($embulk_gem_args.to_a.map(&:to_s))\n"
+            + "  0\n"
+            + "rescue Gem::SystemExitException => e\n"
+            + "  e.exit_code\n"
+            + "rescue SystemExit => e\n"
+            + "  e.status\n"
+            + "end\n";
+
+    // The JRuby runtime, which lives as long as the worker daemon.
+    private static Object container = null;
+
+    private final ArrayList<String> args;
+    private final File workingDirectory;
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.Callable;
+import org.gradle.api.Project;
+import org.gradle.api.artifacts.Configuration;
+import org.gradle.api.artifacts.ConfigurationContainer;
+import org.gradle.api.artifacts.dsl.DependencyHandler;
+import org.gradle.api.artifacts.dsl.RepositoryHandler;
+import org.gradle.api.artifacts.repositories.ArtifactRepository;
+import org.gradle.api.artifacts.repositories.FlatDirectoryArtifactRepository;
+import org.gradle.api.artifacts.repositories.IvyArtifactRepository;
+import org.gradle.api.artifacts.repositories.MavenArtifactRepository;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.provider.Provider;
+
+/**
+ * A build-wide registry of JRuby classpaths to run {@code gem} commands, shared by all {@code "gem"} and
+ * {@code "gemPush"} tasks in all projects of the build.
+ *
+ * <p>Each JRuby dependency notation is resolved only once in a build for each set of repositories, by the first
+ * project which requires it with the repositories. Later tasks in projects with the same repositories reuse the
+ * resolved files. A project with different repositories resolves the notation by itself so that the files are always
+ * what the project would resolve. Hits and misses are logged in the info level.
+ *
+ * <p>It is registered as an extension of the root project so that it lives as long as the build, not longer.
+ */
+class JRubyToolchains {
+    public JRubyToolchains() {
+        this.resolved = new HashMap<>();
+        this.hits = 0;
+        this.misses = 0;
+    }
+
+    /**
+     * Returns the registry of the build, which is created in the root project at the first call.
+     */
+    static JRubyToolchains of(final Project project) {
+        final Project rootProject = project.getRootProject();
+        synchronized (JRubyToolchains.class) {
+            final JRubyToolchains existing = rootProject.getExtensions().findByType(JRubyToolchains.class);
+            if (existing != null) {
+                return existing;
+            }
+            return rootProject.getExtensions().create(EXTENSION_NAME, JRubyToolchains.class);
+        }
+    }
+
+    /**
+     * Returns a lazy classpath of JRuby for a task in the project.
+     *
+     * <p>The project's configuration container and dependency handler are captured here at configuration time.
+     * The notation is read, and resolved if not yet in the build, only when the classpath is iterated.
+     */
+    FileCollection classpath(final Project project, final Provider<Object> jruby) {
+        final ConfigurationContainer configurations = project.getConfigurations();
+        final DependencyHandler dependencies = project.getDependencies();
+        final RepositoryHandler repositories = project.getRepositories();
+        final Logger logger = project.getLogger();
+        final String projectPath = project.getPath();
+        return project.files((Callable<Set<File>>) () -> {
+            if (!jruby.isPresent()) {
+                return Collections.emptySet();
+            }
+            return this.resolve(jruby.get(), repositories, configurations, dependencies, logger, projectPath);
+        });
+    }
+
+    synchronized int getHits() {
+        return this.hits;
+    }
+
+    synchronized int getMisses() {
+        return this.misses;
+    }
+
+    private synchronized Set<File> resolve(
+            final Object notation,
+            final RepositoryHandler repositories,
+            final ConfigurationContainer configurations,
+            final DependencyHandler dependencies,
+            final Logger logger,
+            final String projectPath) {
+        // A notation other than a string is keyed by its toString as Gem#getJrubyNotation does.
+        final String key = notation.toString() + " from " + keyOf(repositories);
+        final Set<File> cached = this.resolved.get(key);
+        if (cached != null) {
+            this.hits++;
+            logger.info("JRuby toolchain cache hit for {} in project {} ({} hit(s), {} miss(es) in the build).",
+                        key, projectPath, this.hits, this.misses);
+            return cached;
+        }
+
+        this.misses++;
+        logger.info("JRuby toolchain cache miss for {} in project {}. Resolving. ({} hit(s), {} miss(es) in the build).",
+                    key, projectPath, this.hits, this.misses);
+        final Configuration jrubyConfiguration = configurations.detachedConfiguration(dependencies.create(notation));
+        final Set<File> files = Collections.unmodifiableSet(new LinkedHashSet<>(jrubyConfiguration.getFiles()));
+        this.resolved.put(key, files);
+        return files;
+    }
+
+    /**
+     * Returns a key of the repositories in order, which identifies where a notation is resolved from.
+     */
+    static String keyOf(final RepositoryHandler repositories) {
+        final StringJoiner joiner = new StringJoiner(", ", "[ ", " ]");
+        for (final ArtifactRepository repository : repositories) {
+            if (repository instanceof MavenArtifactRepository) {
+                final MavenArtifactRepository maven = (MavenArtifactRepository) repository;
+                joiner.add(maven.getName() + "=" + maven.getUrl() + maven.getArtifactUrls());
+            } else if (repository instanceof IvyArtifactRepository) {
+                final IvyArtifactRepository ivy = (IvyArtifactRepository) repository;
+                joiner.add(ivy.getName() + "=" + ivy.getUrl());
+            } else if (repository instanceof FlatDirectoryArtifactRepository) {
+                final FlatDirectoryArtifactRepository flatDir = (FlatDirectoryArtifactRepository) repository;
+                joiner.add(flatDir.getName() + "=" + flatDir.getDirs());
+            } else {
+                joiner.add(repository.getName());
+            }
+        }
+        return joiner.toString();
+    }
+
+    private static final String EXTENSION_NAME = "embulkPluginsJRubyToolchains";
+
+    // Keyed by the notation and the repositories.
+    private final HashMap<String, Set<File>> resolved;
+
+    private int hits;
+    private int misses;
+}
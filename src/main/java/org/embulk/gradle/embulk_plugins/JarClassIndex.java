@@ -0,0 +1,85 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * The classes in a JAR file with the CRC-32 of each class file, taken from the central directory of the JAR file.
+ *
+ * <p>It is not cached. Reading the central directory costs less than hashing the whole JAR file to look up a cache.
+ */
+final class JarClassIndex {
+    private JarClassIndex(final File jarFile, final Map<String, Long> classes) {
+        this.jarFile = jarFile;
+        this.classes = Collections.unmodifiableMap(classes);
+    }
+
+    static JarClassIndex load(final File jarFile) throws IOException {
+        return new JarClassIndex(jarFile, scan(jarFile));
+    }
+
+    File getJarFile() {
+        return this.jarFile;
+    }
+
+    /**
+     * Returns the classes in the JAR file, from class names like {@code "com/example/Foo"} to CRC-32 of the class files.
+     */
+    Map<String, Long> getClasses() {
+        return this.classes;
+    }
+
+    /**
+     * Returns the package of a class name like {@code "com/example/Foo"}: {@code "com/example"}.
+     */
+    static String packageOf(final String className) {
+        final int lastSlash = className.lastIndexOf('/');
+        return (lastSlash < 0) ? "" : className.substring(0, lastSlash);
+    }
+
+    /**
+     * Lists the class files in the JAR file. Classes for specific Java versions under {@code META-INF/} of a
+     * multi-release JAR file, and {@code module-info} and {@code package-info}, are not classes to load.
+     */
+    private static TreeMap<String, Long> scan(final File jarFile) throws IOException {
+        final TreeMap<String, Long> classes = new TreeMap<>();
+        try (final ZipFile zipFile = new ZipFile(jarFile)) {
+            final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                final String name = entry.getName();
+                if (entry.isDirectory() || !name.endsWith(".class") || name.startsWith("META-INF/")
+                        || name.endsWith("module-info.class") || name.endsWith("package-info.class")) {
+                    continue;
+                }
+                classes.put(name.substring(0, name.length() - ".class".length()), entry.getCrc());
+            }
+        }
+        return classes;
+    }
+
+    private final File jarFile;
+    private final Map<String, Long> classes;
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import javax.inject.Inject;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.Project;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.TaskAction;
+
+/**
+ * A Gradle task to merge the main JAR file and the JAR files of {@code "embulkPluginRuntime"} into a single JAR file:
+ * {@code "mergeEmbulkPluginClasspath"}.
+ *
+ * <p>It is used by {@link Gem} with {@code classpathLayout = "merged"} so that Embulk opens only one {@code JarFile}
+ * per plugin, instead of one for every dependency, and keeps only one central directory in memory.
+ *
+ * <p>The JAR files are merged in the order of the classpath, the main JAR file first, with the rules below.
+ *
+ * <ul>
+ * <li>{@code META-INF/MANIFEST.MF} is taken only from the main JAR file so that {@code Embulk-Plugin-*} is kept.
+ * <li>{@code META-INF/services/*} are concatenated. Duplicate providers and comments are removed.
+ * <li>Signature files ({@code META-INF/*.SF}, {@code *.DSA}, {@code *.RSA}, {@code *.EC}, {@code SIG-*}),
+ *     {@code META-INF/INDEX.LIST}, and {@code module-info.class} are dropped as they are invalid in the merged JAR.
+ * <li>For any other file in more than one JAR file, the first one wins. A warning is logged if their bytes differ.
+ * </ul>
+ *
+ * <p>The entries are written with a fixed timestamp so that the merged JAR file is reproducible.
+ */
+class MergeEmbulkPluginClasspath extends DefaultTask {
+    @Inject
+    public MergeEmbulkPluginClasspath() {
+        super();
+
+        final Project project = this.getProject();
+        final ObjectFactory objectFactory = project.getObjects();
+        this.classpath = objectFactory.fileCollection();
+        this.mergedJar = objectFactory.fileProperty();
+    }
+
+    /**
+     * Returns the JAR files to merge in order. The first one is the main JAR file.
+     */
+    @Classpath
+    public ConfigurableFileCollection getClasspath() {
+        return this.classpath;
+    }
+
+    @OutputFile
+    public RegularFileProperty getMergedJar() {
+        return this.mergedJar;
+    }
+
+    @TaskAction
+    public void merge() {
+        final Logger logger = this.getLogger();
+
+        final ArrayList<File> jars = new ArrayList<>();
+        for (final File file : this.classpath) {
+            if (file.isFile() && file.getName().endsWith(".jar")) {
+                jars.add(file);
+            }
+        }
+
+        final Path mergedPath = this.mergedJar.get().getAsFile().toPath();
+        final MergedJar merged;
+        try {
+            Files.createDirectories(mergedPath.getParent());
+            merged = MergedJar.merge(jars, mergedPath);
+        } catch (final IOException ex) {
+            throw new GradleException("Failed to merge the JAR files into: " + mergedPath.toString(), ex);
+        }
+
+        for (final Map.Entry<String, List<String>> conflict : merged.getConflicts().entrySet()) {
+            logger.warn("\"{}\" differs in {}. The first one is taken.",
+                        conflict.getKey(), String.join(", ", conflict.getValue()));
+        }
+        logger.lifecycle(
+                "Merged {} JAR file(s) into {} with {} entries: {} service file(s) merged, {} file(s) dropped, "
+                        + "and {} conflicting file(s).",
+                jars.size(),
+                mergedPath.getFileName(),
+                merged.getEntries(),
+                merged.getServices(),
+                merged.getDropped(),
+                merged.getConflicts().size());
+    }
+
+    /**
+     * A JAR file merged from JAR files, with statistics of the merge.
+     */
+    static final class MergedJar {
+        private MergedJar() {
+            this.conflicts = new TreeMap<>();
+        }
+
+        static MergedJar merge(final List<File> jars, final Path output) throws IOException {
+            final MergedJar merged = new MergedJar();
+
+            final HashSet<String> directories = new HashSet<>();
+            // Entry names to their CRC-32 and the JAR file which the entry is taken from.
+            final HashMap<String, Long> crcs = new HashMap<>();
+            final HashMap<String, String> origins = new HashMap<>();
+            final TreeMap<String, LinkedHashSet<String>> services = new TreeMap<>();
+
+            try (final OutputStream out = Files.newOutputStream(output);
+                    final ZipOutputStream zip = new ZipOutputStream(out)) {
+                boolean isMainJar = true;
+                for (final File jar : jars) {
+                    try (final ZipFile zipFile = new ZipFile(jar)) {
+                        // The manifest must be the first entry for JarInputStream.
+                        final ZipEntry manifest = zipFile.getEntry(MANIFEST);
+                        if (isMainJar && manifest != null) {
+                            try (final InputStream in = zipFile.getInputStream(manifest)) {
+                                merged.put(zip, MANIFEST, in);
+                            }
+                            crcs.put(MANIFEST, manifest.getCrc());
+                            origins.put(MANIFEST, jar.getName());
+                        }
+
+                        final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                        while (entries.hasMoreElements()) {
+                            final ZipEntry entry = entries.nextElement();
+                            final String name = entry.getName();
+                            if (name.equalsIgnoreCase(MANIFEST)) {
+                                continue;
+                            }
+                            if (entry.isDirectory()) {
+                                if (directories.add(name)) {
+                                    merged.put(zip, name, null);
+                                }
+                                continue;
+                            }
+                            if (isDropped(name)) {
+                                merged.dropped++;
+                                continue;
+                            }
+                            if (name.startsWith(SERVICES) && name.indexOf('/', SERVICES.length()) < 0) {
+                                try (final InputStream in = zipFile.getInputStream(entry)) {
+                                    readProviders(in, services.computeIfAbsent(name, key -> new LinkedHashSet<>()));
+                                }
+                                continue;
+                            }
+
+                            final Long crc = crcs.get(name);
+                            if (crc == null) {
+                                try (final InputStream in = zipFile.getInputStream(entry)) {
+                                    merged.put(zip, name, in);
+                                }
+                                crcs.put(name, entry.getCrc());
+                                origins.put(name, jar.getName());
+                            } else if (crc != entry.getCrc()) {
+                                final List<String> jarNames = merged.conflicts.computeIfAbsent(name, key -> {
+                                    final ArrayList<String> first = new ArrayList<>();
+                                    first.add(origins.get(name));
+                                    return first;
+                                });
+                                jarNames.add(jar.getName());
+                            }
+                        }
+                    }
+                    isMainJar = false;
+                }
+
+                for (final Map.Entry<String, LinkedHashSet<String>> service : services.entrySet()) {
+                    final StringBuilder builder = new StringBuilder();
+                    for (final String provider : service.getValue()) {
+                        builder.append(provider).append('\n');
+                    }
+                    final byte[] bytes = builder.toString().getBytes(StandardCharsets.UTF_8);
+                    merged.put(zip, service.getKey(), new ByteArrayInputStream(bytes));
+                    merged.services++;
+                }
+            }
+            return merged;
+        }
+
+        int getEntries() {
+            return this.entries;
+        }
+
+        int getServices() {
+            return this.services;
+        }
+
+        int getDropped() {
+            return this.dropped;
+        }
+
+        /**
+         * Returns files with different bytes in more than one JAR file, to the JAR files. The first one is taken.
+         */
+        Map<String, List<String>> getConflicts() {
+            return this.conflicts;
+        }
+
+        private void put(final ZipOutputStream zip, final String name, final InputStream in) throws IOException {
+            final ZipEntry entry = new ZipEntry(name);
+            entry.setTime(CONSTANT_TIME_FOR_ZIP_ENTRIES);
+            zip.putNextEntry(entry);
+            if (in != null) {
+                final byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    zip.write(buffer, 0, read);
+                }
+            }
+            zip.closeEntry();
+            this.entries++;
+        }
+
+        private final TreeMap<String, List<String>> conflicts;
+        private int entries;
+        private int services;
+        private int dropped;
+    }
+
+    /**
+     * Returns {@code true} if the entry is a signature file, which is invalid in a JAR file modified.
+     */
+    static boolean isSignature(final String name) {
+        return SIGNATURE.matcher(name.toUpperCase(Locale.ROOT)).matches();
+    }
+
+    private static boolean isDropped(final String name) {
+        return isSignature(name)
+                || name.equalsIgnoreCase("META-INF/INDEX.LIST")
+                || name.equals("module-info.class")
+                || (name.startsWith("META-INF/versions/") && name.endsWith("/module-info.class"));
+    }
+
+    /**
+     * Reads the providers in a service file, without comments and blank lines, as {@link java.util.ServiceLoader} does.
+     */
+    static void readProviders(final InputStream in, final Set<String> providers) throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            final int comment = line.indexOf('#');
+            final String provider = ((comment < 0) ? line : line.substring(0, comment)).trim();
+            if (!provider.isEmpty()) {
+                providers.add(provider);
+            }
+        }
+    }
+
+    private static final String MANIFEST = "META-INF/MANIFEST.MF";
+
+    private static final String SERVICES = "META-INF/services/";
+
+    private static final Pattern SIGNATURE = Pattern.compile("META-INF/([^/]+\\.(SF|DSA|RSA|EC)|SIG-[^/]+)");
+
+    // The same as ZipCopyAction.CONSTANT_TIME_FOR_ZIP_ENTRIES of Gradle: 1980-02-01 00:00:00 in the local time zone.
+    private static final long CONSTANT_TIME_FOR_ZIP_ENTRIES = new GregorianCalendar(1980, 1, 1, 0, 0, 0).getTimeInMillis();
+
+    private final ConfigurableFileCollection classpath;
+    private final RegularFileProperty mergedJar;
+}
@@ -0,0 +1,464 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import javax.inject.Inject;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.Project;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.TaskAction;
+
+/**
+ * A Gradle task to remove classes unreachable from the Embulk plugin from the JAR files of its dependencies:
+ * {@code "minimizeEmbulkPluginClasspath"}.
+ *
+ * <p>It is used by {@link Gem} with {@code minimize = true} in {@code embulkPlugin}. The classes reachable from the
+ * roots below are kept, and the other classes are removed from the JAR files of {@code "embulkPluginRuntime"}.
+ * Resources other than classes are all kept. The main JAR file is not modified.
+ *
+ * <ul>
+ * <li>{@code mainClass} of {@code embulkPlugin}, and all the classes in the main JAR file.
+ * <li>Classes matching {@code keep}: {@code "com.example.Foo"} for a class and its nested classes,
+ *     {@code "com.example.*"} for classes in a package, and {@code "com.example.**"} for classes in a package
+ *     and its subpackages.
+ * <li>Providers in {@code META-INF/services/*} of all the JAR files, unless {@code keepServices = false}.
+ * </ul>
+ *
+ * <p>Classes are reached through their constant pools as {@link ClassReferences} reads. A string constant naming a
+ * class is taken as a reference so that simple {@code Class.forName} works. Classes loaded by names built at
+ * runtime, or named in resource files, are not reached. Add them to {@code keep}.
+ *
+ * <p>A JAR file with classes removed is written without its signature files. The removed classes are listed in
+ * {@code build/reports/embulk/minimize.txt}.
+ *
+ * <pre>{@code minimizeEmbulkPluginClasspath {
+ *   keep = [ "com.amazonaws.services.s3.model.**" ]
+ *   keepServices = true  // true by default.
+ * }}</pre>
+ */
+class MinimizeEmbulkPluginClasspath extends DefaultTask {
+    @Inject
+    public MinimizeEmbulkPluginClasspath() {
+        super();
+
+        final Project project = this.getProject();
+        final ObjectFactory objectFactory = project.getObjects();
+        this.mainClasspath = objectFactory.fileCollection();
+        this.classpath = objectFactory.fileCollection();
+        this.mainClass = objectFactory.property(String.class);
+        this.keep = objectFactory.listProperty(String.class);
+        this.keep.empty();
+        this.keepServices = objectFactory.property(Boolean.class);
+        this.keepServices.set(true);
+        this.destinationDirectory = objectFactory.directoryProperty();
+        this.destinationDirectory.set(project.getLayout().getBuildDirectory().dir("embulkPluginMinimized"));
+        this.reportFile = objectFactory.fileProperty();
+        this.reportFile.set(project.getLayout().getBuildDirectory().file("reports/embulk/minimize.txt"));
+    }
+
+    /**
+     * Returns the main JAR file of the plugin, which is not minimized.
+     */
+    @Classpath
+    public ConfigurableFileCollection getMainClasspath() {
+        return this.mainClasspath;
+    }
+
+    /**
+     * Returns the JAR files of the dependencies to minimize.
+     */
+    @Classpath
+    public ConfigurableFileCollection getClasspath() {
+        return this.classpath;
+    }
+
+    @Input
+    public Property<String> getMainClass() {
+        return this.mainClass;
+    }
+
+    /**
+     * Property to configure classes to keep even if they are not reached.
+     */
+    @Input
+    public ListProperty<String> getKeep() {
+        return this.keep;
+    }
+
+    /**
+     * Property to configure whether to keep the providers in {@code META-INF/services/*}.
+     */
+    @Input
+    public Property<Boolean> getKeepServices() {
+        return this.keepServices;
+    }
+
+    /**
+     * Returns the directory where the minimized JAR files are written, in the same names as the original ones.
+     */
+    @OutputDirectory
+    public DirectoryProperty getDestinationDirectory() {
+        return this.destinationDirectory;
+    }
+
+    @OutputFile
+    public RegularFileProperty getReportFile() {
+        return this.reportFile;
+    }
+
+    @TaskAction
+    public void minimize() {
+        final Logger logger = this.getLogger();
+
+        final List<ScannedJar> mainJars;
+        final List<ScannedJar> jars;
+        final ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            final List<Future<ScannedJar>> mainFutures = submitAll(executor, this.mainClasspath);
+            final List<Future<ScannedJar>> futures = submitAll(executor, this.classpath);
+            mainJars = getAll(mainFutures);
+            jars = getAll(futures);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        final Set<String> reachable = findReachable(
+                mainJars,
+                jars,
+                this.mainClass.get().replace('.', '/'),
+                this.keep.get(),
+                this.keepServices.get());
+
+        final Path destination = this.destinationDirectory.get().getAsFile().toPath();
+        final Path reportPath = this.reportFile.get().getAsFile().toPath();
+        long classesBefore = 0;
+        long classesRemoved = 0;
+        long bytesBefore = 0;
+        long bytesAfter = 0;
+        try {
+            cleanDirectory(destination);
+            Files.createDirectories(reportPath.getParent());
+            try (final PrintWriter report = new PrintWriter(Files.newBufferedWriter(reportPath, StandardCharsets.UTF_8))) {
+                final HashSet<String> jarNames = new HashSet<>();
+                for (final ScannedJar jar : jars) {
+                    final String jarName = jar.getJarFile().getName();
+                    if (!jarNames.add(jarName)) {
+                        throw new GradleException("Failed to minimize because more than one JAR file is named: " + jarName);
+                    }
+                    final TreeSet<String> removed = new TreeSet<>(jar.getReferences().keySet());
+                    removed.removeAll(reachable);
+
+                    final Path output = destination.resolve(jarName);
+                    if (removed.isEmpty()) {
+                        Files.copy(jar.getJarFile().toPath(), output);
+                    } else {
+                        writeWithout(jar.getJarFile(), removed, output);
+                    }
+
+                    final long before = jar.getJarFile().length();
+                    final long after = Files.size(output);
+                    classesBefore += jar.getReferences().size();
+                    classesRemoved += removed.size();
+                    bytesBefore += before;
+                    bytesAfter += after;
+
+                    report.println(String.format("%s: removed %d of %d classes, %d bytes to %d bytes",
+                                                 jarName, removed.size(), jar.getReferences().size(), before, after));
+                    for (final String className : removed) {
+                        report.println("  " + className.replace('/', '.'));
+                    }
+                }
+            }
+        } catch (final IOException ex) {
+            throw new GradleException("Failed to write the minimized JAR files into: " + destination.toString(), ex);
+        }
+
+        logger.lifecycle(
+                "Minimized {} JAR file(s): removed {} of {} classes, and {} of {} bytes. See: {}",
+                jars.size(), classesRemoved, classesBefore, bytesBefore - bytesAfter, bytesBefore, reportPath);
+    }
+
+    /**
+     * Classes in a JAR file with names of classes possibly referenced from each, and service providers in it.
+     */
+    static final class ScannedJar {
+        private ScannedJar(final File jarFile, final Map<String, Set<String>> references, final Set<String> services) {
+            this.jarFile = jarFile;
+            this.references = Collections.unmodifiableMap(references);
+            this.services = Collections.unmodifiableSet(services);
+        }
+
+        static ScannedJar scan(final File jarFile) throws IOException {
+            final HashMap<String, Set<String>> references = new HashMap<>();
+            final HashSet<String> services = new HashSet<>();
+            try (final ZipFile zipFile = new ZipFile(jarFile)) {
+                final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                while (entries.hasMoreElements()) {
+                    final ZipEntry entry = entries.nextElement();
+                    if (entry.isDirectory()) {
+                        continue;
+                    }
+                    final String name = entry.getName();
+                    if (name.startsWith(SERVICES) && name.indexOf('/', SERVICES.length()) < 0) {
+                        try (final InputStream in = zipFile.getInputStream(entry)) {
+                            MergeEmbulkPluginClasspath.readProviders(in, services);
+                        }
+                        continue;
+                    }
+                    final String className = classNameOf(name);
+                    if (className != null) {
+                        // A class for a specific Java version in a multi-release JAR file references for its base class.
+                        try (final InputStream in = zipFile.getInputStream(entry)) {
+                            references.computeIfAbsent(className, key -> new HashSet<>()).addAll(ClassReferences.read(in));
+                        }
+                    }
+                }
+            }
+            return new ScannedJar(jarFile, references, services);
+        }
+
+        File getJarFile() {
+            return this.jarFile;
+        }
+
+        /**
+         * Returns the classes in the JAR file, from class names like {@code "com/example/Foo"} to names of classes
+         * possibly referenced from the class.
+         */
+        Map<String, Set<String>> getReferences() {
+            return this.references;
+        }
+
+        Set<String> getServices() {
+            return this.services;
+        }
+
+        private final File jarFile;
+        private final Map<String, Set<String>> references;
+        private final Set<String> services;
+    }
+
+    /**
+     * Finds the classes reachable from the roots, in class names like {@code "com/example/Foo"}.
+     */
+    static Set<String> findReachable(
+            final List<ScannedJar> mainJars,
+            final List<ScannedJar> jars,
+            final String mainClass,
+            final Collection<String> keep,
+            final boolean keepServices) {
+        final HashMap<String, List<Set<String>>> graph = new HashMap<>();
+        final ArrayList<ScannedJar> allJars = new ArrayList<>(mainJars);
+        allJars.addAll(jars);
+        for (final ScannedJar jar : allJars) {
+            for (final Map.Entry<String, Set<String>> entry : jar.getReferences().entrySet()) {
+                graph.computeIfAbsent(entry.getKey(), key -> new ArrayList<>()).add(entry.getValue());
+            }
+        }
+
+        final HashSet<String> reachable = new HashSet<>();
+        final ArrayDeque<String> queue = new ArrayDeque<>();
+        enqueue(mainClass, graph, reachable, queue);
+        for (final ScannedJar jar : mainJars) {
+            for (final String className : jar.getReferences().keySet()) {
+                enqueue(className, graph, reachable, queue);
+            }
+        }
+        for (final ScannedJar jar : allJars) {
+            if (keepServices) {
+                for (final String provider : jar.getServices()) {
+                    enqueue(provider.replace('.', '/'), graph, reachable, queue);
+                }
+            }
+            for (final String className : jar.getReferences().keySet()) {
+                for (final String pattern : keep) {
+                    if (matches(pattern, className)) {
+                        enqueue(className, graph, reachable, queue);
+                        break;
+                    }
+                }
+            }
+        }
+
+        while (!queue.isEmpty()) {
+            for (final Set<String> references : graph.get(queue.poll())) {
+                for (final String reference : references) {
+                    enqueue(reference, graph, reachable, queue);
+                }
+            }
+        }
+        return reachable;
+    }
+
+    /**
+     * Returns {@code true} if a class name like {@code "com/example/Foo"} matches a keep rule.
+     */
+    static boolean matches(final String pattern, final String className) {
+        final String path = pattern.replace('.', '/');
+        if (path.endsWith("/**")) {
+            return className.startsWith(path.substring(0, path.length() - 2));
+        }
+        if (path.endsWith("/*")) {
+            final String prefix = path.substring(0, path.length() - 1);
+            return className.startsWith(prefix) && className.indexOf('/', prefix.length()) < 0;
+        }
+        return className.equals(path) || className.startsWith(path + "$");
+    }
+
+    private static void enqueue(
+            final String className,
+            final Map<String, List<Set<String>>> graph,
+            final Set<String> reachable,
+            final ArrayDeque<String> queue) {
+        if (graph.containsKey(className) && reachable.add(className)) {
+            queue.add(className);
+        }
+    }
+
+    /**
+     * Returns the class name like {@code "com/example/Foo"} of a class file entry, or {@code null} for an entry to
+     * be kept always, such as a resource, {@code module-info}, and {@code package-info}.
+     */
+    private static String classNameOf(final String entryName) {
+        if (!entryName.endsWith(".class")
+                || entryName.endsWith("module-info.class") || entryName.endsWith("package-info.class")) {
+            return null;
+        }
+        String name = entryName.substring(0, entryName.length() - ".class".length());
+        if (name.startsWith(VERSIONS)) {
+            final int slash = name.indexOf('/', VERSIONS.length());
+            if (slash < 0) {
+                return null;
+            }
+            name = name.substring(slash + 1);
+        }
+        return name;
+    }
+
+    private static void writeWithout(final File jarFile, final Set<String> removed, final Path output) throws IOException {
+        try (final ZipFile zipFile = new ZipFile(jarFile);
+                final OutputStream out = Files.newOutputStream(output);
+                final ZipOutputStream zip = new ZipOutputStream(out)) {
+            final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                final String className = classNameOf(entry.getName());
+                if ((className != null && removed.contains(className))
+                        || MergeEmbulkPluginClasspath.isSignature(entry.getName())) {
+                    continue;
+                }
+                final ZipEntry copied = new ZipEntry(entry.getName());
+                copied.setTime(entry.getTime());
+                zip.putNextEntry(copied);
+                if (!entry.isDirectory()) {
+                    try (final InputStream in = zipFile.getInputStream(entry)) {
+                        final byte[] buffer = new byte[8192];
+                        int read;
+                        while ((read = in.read(buffer)) >= 0) {
+                            zip.write(buffer, 0, read);
+                        }
+                    }
+                }
+                zip.closeEntry();
+            }
+        }
+    }
+
+    private static void cleanDirectory(final Path directory) throws IOException {
+        Files.createDirectories(directory);
+        try (final Stream<Path> files = Files.list(directory)) {
+            for (final Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private static List<Future<ScannedJar>> submitAll(final ExecutorService executor, final Iterable<File> files) {
+        final ArrayList<Future<ScannedJar>> futures = new ArrayList<>();
+        for (final File file : files) {
+            if (file.isFile() && file.getName().endsWith(".jar")) {
+                futures.add(executor.submit(() -> ScannedJar.scan(file)));
+            }
+        }
+        return futures;
+    }
+
+    private static List<ScannedJar> getAll(final List<Future<ScannedJar>> futures) {
+        final ArrayList<ScannedJar> jars = new ArrayList<>();
+        for (final Future<ScannedJar> future : futures) {
+            try {
+                jars.add(future.get());
+            } catch (final ExecutionException ex) {
+                throw new GradleException("Failed to scan a JAR file.", ex.getCause());
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new GradleException("Interrupted while scanning JAR files.", ex);
+            }
+        }
+        return jars;
+    }
+
+    private static final String SERVICES = "META-INF/services/";
+
+    private static final String VERSIONS = "META-INF/versions/";
+
+    private final ConfigurableFileCollection mainClasspath;
+    private final ConfigurableFileCollection classpath;
+    private final Property<String> mainClass;
+    private final ListProperty<String> keep;
+    private final Property<Boolean> keepServices;
+    private final DirectoryProperty destinationDirectory;
+    private final RegularFileProperty reportFile;
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Compresses a stream into one gzip member with multiple threads, in the same manner as pigz.
+ *
+ * <p>The input is split into blocks of {@link #BLOCK_SIZE}. The blocks are compressed independently in parallel,
+ * each with the last 32 KiB of its previous block as a preset dictionary, and then written in order through
+ * {@link SegmentedGzipWriter}. The number of blocks in flight is bounded to keep memory usage constant.
+ *
+ * @see <a href="https://zlib.net/pigz/">pigz</a>
+ */
+class ParallelGzipOutputStream extends OutputStream {
+    ParallelGzipOutputStream(
+            final OutputStream out,
+            final GemCompression compression,
+            final ExecutorService executor,
+            final int threads) throws IOException {
+        this.gzip = new SegmentedGzipWriter(out);
+        this.compression = compression;
+        this.executor = executor;
+        this.maxPending = Math.max(2, threads * 2);
+        this.pending = new ArrayDeque<>();
+        this.block = new byte[BLOCK_SIZE];
+        this.blockLength = 0;
+        this.dictionary = null;
+        this.closed = false;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        this.write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        if (this.closed) {
+            throw new IOException("Closed ParallelGzipOutputStream");
+        }
+        int offset = off;
+        int remaining = len;
+        while (remaining > 0) {
+            final int copied = Math.min(remaining, this.block.length - this.blockLength);
+            System.arraycopy(b, offset, this.block, this.blockLength, copied);
+            this.blockLength += copied;
+            offset += copied;
+            remaining -= copied;
+            if (this.blockLength == this.block.length) {
+                this.submitBlock();
+            }
+        }
+    }
+
+    /**
+     * Compresses all the remaining blocks, and writes the gzip trailer. It does not close the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        try {
+            if (this.blockLength > 0) {
+                this.submitBlock();
+            }
+            while (!this.pending.isEmpty()) {
+                this.writeOldest();
+            }
+            this.gzip.close();
+        } finally {
+            for (final Future<SegmentedGzipWriter.Segment> future : this.pending) {
+                future.cancel(true);
+            }
+            this.pending.clear();
+            this.closed = true;
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        final byte[] submitted = this.block;
+        final int submittedLength = this.blockLength;
+        final byte[] submittedDictionary = this.dictionary;
+        this.pending.addLast(this.executor.submit(
+                () -> SegmentedGzipWriter.compress(this.compression, submittedDictionary, submitted, 0, submittedLength)));
+
+        this.dictionary = Arrays.copyOfRange(submitted, Math.max(0, submittedLength - DICTIONARY_SIZE), submittedLength);
+        this.block = new byte[BLOCK_SIZE];
+        this.blockLength = 0;
+
+        while (this.pending.size() >= this.maxPending) {
+            this.writeOldest();
+        }
+    }
+
+    private void writeOldest() throws IOException {
+        final Future<SegmentedGzipWriter.Segment> oldest = this.pending.removeFirst();
+        try {
+            this.gzip.write(oldest.get());
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            final InterruptedIOException interrupted = new InterruptedIOException("Interrupted while compressing.");
+            interrupted.initCause(ex);
+            throw interrupted;
+        } catch (final ExecutionException ex) {
+            throw new IOException("Failed to compress a block.", ex.getCause());
+        }
+    }
+
+    // The same default block size as pigz.
+    static final int BLOCK_SIZE = 128 * 1024;
+
+    // The maximum window size of deflate.
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private final SegmentedGzipWriter gzip;
+    private final GemCompression compression;
+    private final ExecutorService executor;
+    private final int maxPending;
+    private final ArrayDeque<Future<SegmentedGzipWriter.Segment>> pending;
+
+    private byte[] block;
+    private int blockLength;
+    private byte[] dictionary;
+    private boolean closed;
+}
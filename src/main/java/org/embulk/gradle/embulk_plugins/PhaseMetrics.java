@@ -0,0 +1,228 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.gradle.api.logging.Logger;
+
+/**
+ * Records the wall time, bytes read and written, and the number of files of each phase of a task, such as copying
+ * files, generating a gemspec, executing JRuby, and uploading.
+ *
+ * <p>The metrics are written into a JSON report, for example {@code build/reports/embulk/gem.json}, to be tracked
+ * by CI. Each phase is also emitted as a JFR event {@code org.embulk.gradle.GemPhase} when JFR is available in the
+ * JVM. The event is recorded only while a flight recording is running in the Gradle daemon, for example with
+ * {@code org.gradle.jvmargs=-XX:StartFlightRecording}.
+ *
+ * <pre>{@code {
+ *   "task": ":gem",
+ *   "startedAt": "2019-07-01T00:00:00Z",
+ *   "wallNanos": 1234567890,
+ *   "attributes": { "builder": "java" },
+ *   "phases": [
+ *     { "name": "contents", "wallNanos": 1000000000, "bytesRead": 44599296, "bytesWritten": 33798348, "files": 120 },
+ *     ...
+ *   ]
+ * }}</pre>
+ */
+final class PhaseMetrics {
+    PhaseMetrics(final String taskPath) {
+        this.taskPath = taskPath;
+        this.startedAt = Instant.now();
+        this.startNanos = System.nanoTime();
+        this.attributes = new LinkedHashMap<>();
+        this.phases = new ArrayList<>();
+    }
+
+    /**
+     * A phase in progress, or finished when closed.
+     */
+    final class Phase implements AutoCloseable {
+        private Phase(final String name) {
+            this.name = name;
+            // null if JFR is not available in the JVM.
+            this.event = GemPhaseEvent.beginEvent();
+            this.startNanos = System.nanoTime();
+            this.wallNanos = -1;
+        }
+
+        Phase read(final long bytes) {
+            this.bytesRead += bytes;
+            return this;
+        }
+
+        Phase written(final long bytes) {
+            this.bytesWritten += bytes;
+            return this;
+        }
+
+        Phase file() {
+            this.files++;
+            return this;
+        }
+
+        Phase files(final long count) {
+            this.files += count;
+            return this;
+        }
+
+        String getName() {
+            return this.name;
+        }
+
+        long getWallNanos() {
+            return this.wallNanos;
+        }
+
+        long getBytesRead() {
+            return this.bytesRead;
+        }
+
+        long getBytesWritten() {
+            return this.bytesWritten;
+        }
+
+        long getFiles() {
+            return this.files;
+        }
+
+        @Override
+        public void close() {
+            if (this.wallNanos >= 0) {
+                return;
+            }
+            this.wallNanos = System.nanoTime() - this.startNanos;
+            if (this.event != null) {
+                GemPhaseEvent.commitEvent(this.event, taskPath, this.name, this.bytesRead, this.bytesWritten, this.files);
+            }
+            synchronized (phases) {
+                phases.add(this);
+            }
+        }
+
+        private final String name;
+        private final long startNanos;
+        private final Object event;
+
+        private long wallNanos;
+        private long bytesRead;
+        private long bytesWritten;
+        private long files;
+    }
+
+    Phase start(final String name) {
+        return new Phase(name);
+    }
+
+    PhaseMetrics attribute(final String key, final String value) {
+        this.attributes.put(key, value);
+        return this;
+    }
+
+    List<Phase> getPhases() {
+        synchronized (this.phases) {
+            return Collections.unmodifiableList(new ArrayList<>(this.phases));
+        }
+    }
+
+    /**
+     * Writes the JSON report. A failure to write is only logged because the report must not fail the build.
+     */
+    void writeReport(final Path reportPath, final Logger logger) {
+        final long wallNanos = System.nanoTime() - this.startNanos;
+        try {
+            Files.createDirectories(reportPath.getParent());
+            try (final PrintWriter writer = new PrintWriter(Files.newBufferedWriter(reportPath, StandardCharsets.UTF_8))) {
+                writer.print("{\n");
+                writer.print("  \"task\": " + quote(this.taskPath) + ",\n");
+                writer.print("  \"startedAt\": " + quote(this.startedAt.toString()) + ",\n");
+                writer.print("  \"wallNanos\": " + wallNanos + ",\n");
+                writer.print("  \"attributes\": {");
+                String delimiter = " ";
+                for (final Map.Entry<String, String> attribute : this.attributes.entrySet()) {
+                    writer.print(delimiter + quote(attribute.getKey()) + ": " + quote(attribute.getValue()));
+                    delimiter = ", ";
+                }
+                writer.print(this.attributes.isEmpty() ? "},\n" : " },\n");
+                writer.print("  \"phases\": [");
+                delimiter = "\n";
+                for (final Phase phase : this.getPhases()) {
+                    writer.print(delimiter);
+                    writer.print("    { \"name\": " + quote(phase.getName())
+                                 + ", \"wallNanos\": " + phase.getWallNanos()
+                                 + ", \"bytesRead\": " + phase.getBytesRead()
+                                 + ", \"bytesWritten\": " + phase.getBytesWritten()
+                                 + ", \"files\": " + phase.getFiles() + " }");
+                    delimiter = ",\n";
+                }
+                writer.print("\n  ]\n");
+                writer.print("}\n");
+            }
+        } catch (final IOException ex) {
+            logger.warn("Failed to write the metrics report at: " + reportPath.toString(), ex);
+            return;
+        }
+        logger.info("Wrote the metrics report at: {}", reportPath);
+    }
+
+    static String quote(final String value) {
+        final StringBuilder builder = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+        return builder.append('"').toString();
+    }
+
+    private final String taskPath;
+    private final Instant startedAt;
+    private final long startNanos;
+    private final LinkedHashMap<String, String> attributes;
+    private final ArrayList<Phase> phases;
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import org.gradle.api.artifacts.Configuration;
+
+/**
+ * The flattened dependency graphs of a project, each of which is computed at most once in the project.
+ *
+ * <p>It is created per project by {@link EmbulkPluginsPlugin}, and passed to both the flattening of {@code "runtime"}
+ * into {@code "embulkPluginRuntime"} and {@link CheckEmbulkPluginDependencies} so that they share the same flattened
+ * graph of {@code "runtime"} when {@code "embulkPluginRuntime"} is flattened from it. It is held by the plugin and
+ * the task, not in a static field, so that it is not retained in the Gradle daemon after the build.
+ */
+final class ProjectDependencyGraphs {
+    ProjectDependencyGraphs(
+            final Configuration runtimeConfiguration,
+            final Configuration alternativeRuntimeConfiguration,
+            final Configuration compileOnlyConfiguration) {
+        this.runtimeConfiguration = runtimeConfiguration;
+        this.alternativeRuntimeConfiguration = alternativeRuntimeConfiguration;
+        this.compileOnlyConfiguration = compileOnlyConfiguration;
+        this.alternativeRuntimeFlattenedFromRuntime = false;
+        this.runtime = null;
+        this.alternativeRuntime = null;
+        this.compileOnly = null;
+    }
+
+    /**
+     * Marks that {@code "embulkPluginRuntime"} is flattened from {@code "runtime"}, which is when {@code "mainJar"}
+     * is not configured.
+     */
+    synchronized void setAlternativeRuntimeFlattenedFromRuntime() {
+        this.alternativeRuntimeFlattenedFromRuntime = true;
+    }
+
+    /**
+     * Returns the flattened graph of {@code "runtime"}, which is the origin of {@code "embulkPluginRuntime"}.
+     */
+    synchronized FlattenedDependencies getRuntime() {
+        if (this.runtime == null) {
+            this.runtime = FlattenedDependencies.of(this.runtimeConfiguration);
+        }
+        return this.runtime;
+    }
+
+    /**
+     * Returns the flattened graph of {@code "embulkPluginRuntime"}, which is packaged into the gem.
+     *
+     * <p>It is the graph of {@code "runtime"} shared with the flattening if {@code "embulkPluginRuntime"} is flattened
+     * from {@code "runtime"}. Otherwise, when {@code "mainJar"} is configured (ex. to {@code "shadowJar"}), developers
+     * configure {@code "embulkPluginRuntime"} by themselves. It is then resolved and flattened by itself.
+     */
+    synchronized FlattenedDependencies getAlternativeRuntime() {
+        if (this.alternativeRuntimeFlattenedFromRuntime) {
+            return this.getRuntime();
+        }
+        if (this.alternativeRuntime == null) {
+            this.alternativeRuntime = FlattenedDependencies.of(this.alternativeRuntimeConfiguration);
+        }
+        return this.alternativeRuntime;
+    }
+
+    /**
+     * Returns the flattened graph of {@code "compileOnly"}, which is provided by Embulk's core at runtime.
+     */
+    synchronized FlattenedDependencies getCompileOnly() {
+        if (this.compileOnly == null) {
+            this.compileOnly = FlattenedDependencies.of(this.compileOnlyConfiguration);
+        }
+        return this.compileOnly;
+    }
+
+    private final Configuration runtimeConfiguration;
+    private final Configuration alternativeRuntimeConfiguration;
+    private final Configuration compileOnlyConfiguration;
+
+    private boolean alternativeRuntimeFlattenedFromRuntime;
+    private FlattenedDependencies runtime;
+    private FlattenedDependencies alternativeRuntime;
+    private FlattenedDependencies compileOnly;
+}
@@ -0,0 +1,547 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import groovy.json.JsonException;
+import groovy.json.JsonSlurper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A client of the RubyGems.org API to push a gem in-process, instead of {@code gem push} on JRuby.
+ *
+ * <p>The gem file is streamed into the request body in the fixed-length streaming mode so that it is not buffered
+ * on memory. The response is always drained so that {@link HttpURLConnection} can reuse the keep-alive connection
+ * for later requests to the same host.
+ *
+ * @see <a href="https://guides.rubygems.org/rubygems-org-api/#gem-methods">RubyGems.org API: Gem Methods</a>
+ * @see <a href="https://github.com/rubygems/rubygems/blob/v2.7.9/lib/rubygems/commands/push_command.rb">Gem::Commands::PushCommand</a>
+ */
+final class RubyGemsClient {
+    private RubyGemsClient(
+            final String host,
+            final String apiKey,
+            final Duration connectTimeout,
+            final Duration readTimeout,
+            final int maxRetries,
+            final Duration retryInterval) {
+        this.host = host;
+        this.apiKey = apiKey;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.maxRetries = maxRetries;
+        this.retryInterval = retryInterval;
+    }
+
+    static class Builder {
+        private Builder() {
+            this.connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+            this.readTimeout = DEFAULT_READ_TIMEOUT;
+            this.maxRetries = DEFAULT_MAX_RETRIES;
+            this.retryInterval = DEFAULT_RETRY_INTERVAL;
+        }
+
+        Builder host(final String host) {
+            this.host = host;
+            return this;
+        }
+
+        Builder apiKey(final String apiKey) {
+            this.apiKey = apiKey;
+            return this;
+        }
+
+        Builder connectTimeout(final Duration connectTimeout) {
+            this.connectTimeout = connectTimeout;
+            return this;
+        }
+
+        Builder readTimeout(final Duration readTimeout) {
+            this.readTimeout = readTimeout;
+            return this;
+        }
+
+        Builder maxRetries(final int maxRetries) {
+            this.maxRetries = maxRetries;
+            return this;
+        }
+
+        Builder retryInterval(final Duration retryInterval) {
+            this.retryInterval = retryInterval;
+            return this;
+        }
+
+        RubyGemsClient build() {
+            if (this.host == null || this.host.isEmpty()) {
+                throw new IllegalStateException("RubyGems host is not specified.");
+            }
+            if (this.apiKey == null || this.apiKey.isEmpty()) {
+                throw new IllegalStateException("RubyGems API key is not specified.");
+            }
+            if (this.maxRetries < 0) {
+                throw new IllegalStateException("maxRetries must not be negative.");
+            }
+            return new RubyGemsClient(
+                    stripTrailingSlashes(this.host),
+                    this.apiKey,
+                    this.connectTimeout,
+                    this.readTimeout,
+                    this.maxRetries,
+                    this.retryInterval);
+        }
+
+        private String host;
+        private String apiKey;
+        private Duration connectTimeout;
+        private Duration readTimeout;
+        private int maxRetries;
+        private Duration retryInterval;
+    }
+
+    static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * The result of a successful push.
+     */
+    static final class PushResult {
+        private PushResult(
+                final long bytes, final Duration elapsed, final int attempts, final String message, final boolean skipped) {
+            this.bytes = bytes;
+            this.elapsed = elapsed;
+            this.attempts = attempts;
+            this.message = message;
+            this.skipped = skipped;
+        }
+
+        long getBytes() {
+            return this.bytes;
+        }
+
+        Duration getElapsed() {
+            return this.elapsed;
+        }
+
+        int getAttempts() {
+            return this.attempts;
+        }
+
+        String getMessage() {
+            return this.message;
+        }
+
+        /**
+         * Returns {@code true} if the upload is skipped because the same gem is already pushed.
+         */
+        boolean isSkipped() {
+            return this.skipped;
+        }
+
+        private final long bytes;
+        private final Duration elapsed;
+        private final int attempts;
+        private final String message;
+        private final boolean skipped;
+    }
+
+    /**
+     * A version of a gem already pushed to the host.
+     */
+    static final class PushedVersion {
+        private PushedVersion(final String number, final String platform, final String sha256) {
+            this.number = number;
+            this.platform = platform;
+            this.sha256 = sha256;
+        }
+
+        String getNumber() {
+            return this.number;
+        }
+
+        String getPlatform() {
+            return this.platform;
+        }
+
+        /**
+         * Returns the SHA-256 of the gem file, or {@code null} if the host does not report it.
+         */
+        String getSha256() {
+            return this.sha256;
+        }
+
+        private final String number;
+        private final String platform;
+        private final String sha256;
+    }
+
+    /**
+     * Thrown when the server rejects a request.
+     */
+    static final class ResponseException extends IOException {
+        ResponseException(final int statusCode, final String message) {
+            super("HTTP " + statusCode + ": " + message);
+            this.statusCode = statusCode;
+        }
+
+        int getStatusCode() {
+            return this.statusCode;
+        }
+
+        private static final long serialVersionUID = 1L;
+
+        private final int statusCode;
+    }
+
+    String getHost() {
+        return this.host;
+    }
+
+    /**
+     * Pushes a gem file as {@code POST /api/v1/gems}.
+     *
+     * <p>It is the same as {@link #push(Path, GemFileInfo)} without the information of the gem. It does not retry
+     * once the request body is sent because it cannot confirm whether the host has accepted the gem.
+     */
+    PushResult push(final Path gemPath) throws IOException {
+        return this.push(gemPath, null);
+    }
+
+    /**
+     * Pushes a gem file as {@code POST /api/v1/gems}. It is safe to push concurrently from multiple threads.
+     *
+     * <p>The push is not idempotent. It retries with exponential backoff only when the host has not accepted the gem
+     * for sure: on connection failures before the request body is sent completely, and on {@code 429 Too Many Requests}.
+     *
+     * <p>On {@code 5xx}, or on a failure to read the response, the host may have accepted the gem already. Then, the
+     * host is asked for the gem by {@link #findPushedVersion} before retrying. It succeeds without retrying if the host
+     * has the gem with the same SHA-256, and fails if the host has a different one. It fails without retrying if
+     * {@code gem} is {@code null}. Other {@code 4xx} responses, such as an already-pushed version, fail immediately.
+     *
+     * @param gem  the gem to confirm after an ambiguous failure, or {@code null}
+     */
+    PushResult push(final Path gemPath, final GemFileInfo gem) throws IOException {
+        final long size = Files.size(gemPath);
+        final long startNanos = System.nanoTime();
+
+        IOException lastException = null;
+        for (int attempt = 0; attempt <= this.maxRetries; attempt++) {
+            if (attempt > 0) {
+                this.sleepBeforeRetry(attempt, lastException);
+            }
+
+            final HttpURLConnection connection;
+            try {
+                connection = this.sendPost("/api/v1/gems", gemPath, size);
+            } catch (final IOException ex) {
+                // The host has not received the whole gem.
+                lastException = ex;
+                continue;
+            }
+
+            try {
+                final String message = readResponse(connection);
+                return new PushResult(size, Duration.ofNanos(System.nanoTime() - startNanos), attempt + 1, message, false);
+            } catch (final ResponseException ex) {
+                if (ex.getStatusCode() != 429 && ex.getStatusCode() < 500) {
+                    throw ex;
+                }
+                lastException = ex;
+                if (ex.getStatusCode() == 429) {
+                    continue;
+                }
+            } catch (final IOException ex) {
+                lastException = ex;
+            }
+
+            // The host may have accepted the gem in spite of the failure.
+            if (gem == null) {
+                throw new IOException(
+                        "Failed to confirm whether " + gemPath.getFileName() + " is pushed to " + this.host
+                        + ". Not retried so as not to push it twice.", lastException);
+            }
+            final PushedVersion pushed = this.findPushedVersion(gem.getName(), gem.getVersion(), gem.getPlatform());
+            if (pushed != null) {
+                if (pushed.getSha256() == null || pushed.getSha256().equalsIgnoreCase(gem.getSha256())) {
+                    return new PushResult(
+                            size,
+                            Duration.ofNanos(System.nanoTime() - startNanos),
+                            attempt + 1,
+                            gem.toString() + " is found pushed after: " + lastException.getMessage(),
+                            false);
+                }
+                throw new IOException(
+                        "A different " + gem.toString() + " is found pushed to " + this.host
+                        + " with SHA-256: " + pushed.getSha256() + ", while the local one is: " + gem.getSha256(),
+                        lastException);
+            }
+        }
+        throw lastException;
+    }
+
+    /**
+     * Pushes a gem file unless the same gem is already pushed, so that a retried release does not upload it again.
+     *
+     * <p>The host is asked for the version and the platform of the gem first, as {@code GET /api/v1/versions/<name>.json}.
+     * The upload is skipped if the host has it with the same SHA-256. It fails without uploading if the host has it
+     * with a different SHA-256. The gem is pushed if the host does not have it, or does not report its SHA-256.
+     */
+    PushResult pushUnlessPushed(final Path gemPath, final GemFileInfo gem) throws IOException {
+        final long startNanos = System.nanoTime();
+
+        final PushedVersion pushed = this.findPushedVersion(gem.getName(), gem.getVersion(), gem.getPlatform());
+        if (pushed != null && pushed.getSha256() != null) {
+            if (pushed.getSha256().equalsIgnoreCase(gem.getSha256())) {
+                return new PushResult(
+                        0,
+                        Duration.ofNanos(System.nanoTime() - startNanos),
+                        0,
+                        gem.toString() + " is already pushed with the same SHA-256: " + gem.getSha256(),
+                        true);
+            }
+            throw new IOException(
+                    "A different " + gem.toString() + " is already pushed to " + this.host
+                    + " with SHA-256: " + pushed.getSha256() + ", while the local one is: " + gem.getSha256());
+        }
+        return this.push(gemPath, gem);
+    }
+
+    /**
+     * Finds a version of a gem pushed to the host, as {@code GET /api/v1/versions/<name>.json}.
+     *
+     * @return the version, or {@code null} if not found
+     */
+    PushedVersion findPushedVersion(final String name, final String version, final String platform) throws IOException {
+        final String body;
+        try {
+            body = this.sendWithRetries(attempts -> this.get("/api/v1/versions/" + URLEncoder.encode(name, "UTF-8") + ".json"));
+        } catch (final ResponseException ex) {
+            if (ex.getStatusCode() == 404) {
+                return null;
+            }
+            throw ex;
+        }
+
+        final Object versions;
+        try {
+            versions = new JsonSlurper().parseText(body);
+        } catch (final JsonException ex) {
+            throw new IOException("Unexpected response from " + this.host + " for versions of " + name + ".", ex);
+        }
+        if (!(versions instanceof List)) {
+            throw new IOException("Unexpected response from " + this.host + " for versions of " + name + ".");
+        }
+        for (final Object versionObject : (List<?>) versions) {
+            if (!(versionObject instanceof Map)) {
+                continue;
+            }
+            final Map<?, ?> map = (Map<?, ?>) versionObject;
+            final Object number = map.get("number");
+            // "platform" is "ruby" for a pure Ruby gem.
+            final Object platformObject = map.containsKey("platform") ? map.get("platform") : "ruby";
+            if (version.equals(String.valueOf(number)) && platform.equals(String.valueOf(platformObject))) {
+                final Object sha = map.get("sha");
+                return new PushedVersion(version, platform, (sha == null) ? null : sha.toString());
+            }
+        }
+        return null;
+    }
+
+    private interface Request<T> {
+        T send(int attempts) throws IOException;
+    }
+
+    /**
+     * Sends an idempotent request. It retries on connection failures, {@code 429}, and {@code 5xx} with exponential
+     * backoff.
+     */
+    private <T> T sendWithRetries(final Request<T> request) throws IOException {
+        IOException lastException = null;
+        for (int attempt = 0; attempt <= this.maxRetries; attempt++) {
+            if (attempt > 0) {
+                this.sleepBeforeRetry(attempt, lastException);
+            }
+            try {
+                return request.send(attempt + 1);
+            } catch (final ResponseException ex) {
+                if (!isRetryable(ex.getStatusCode())) {
+                    throw ex;
+                }
+                lastException = ex;
+            } catch (final IOException ex) {
+                lastException = ex;
+            }
+        }
+        throw lastException;
+    }
+
+    private String get(final String path) throws IOException {
+        final HttpURLConnection connection = this.openConnection(path);
+        connection.setRequestMethod("GET");
+        return readResponse(connection);
+    }
+
+    /**
+     * Sends a request with the file as its body, and returns the connection to read the response from.
+     */
+    private HttpURLConnection sendPost(final String path, final Path bodyPath, final long size) throws IOException {
+        final HttpURLConnection connection = this.openConnection(path);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(size);
+        connection.setRequestProperty("Content-Type", "application/octet-stream");
+
+        try (final OutputStream out = connection.getOutputStream()) {
+            Files.copy(bodyPath, out);
+        }
+        return connection;
+    }
+
+    private HttpURLConnection openConnection(final String path) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(this.host + path).openConnection();
+        connection.setConnectTimeout((int) this.connectTimeout.toMillis());
+        connection.setReadTimeout((int) this.readTimeout.toMillis());
+        connection.setUseCaches(false);
+        connection.setInstanceFollowRedirects(false);
+        connection.setRequestProperty("Authorization", this.apiKey);
+        connection.setRequestProperty("Accept", "*/*");
+        connection.setRequestProperty("User-Agent", USER_AGENT);
+        return connection;
+    }
+
+    /**
+     * Reads the whole response body, and then throws {@link ResponseException} unless the status is {@code 2xx}.
+     */
+    private static String readResponse(final HttpURLConnection connection) throws IOException {
+        final int statusCode = connection.getResponseCode();
+        final InputStream in = (statusCode >= 400) ? connection.getErrorStream() : connection.getInputStream();
+        final String body;
+        if (in == null) {
+            body = "";
+        } else {
+            try (final InputStream closed = in) {
+                body = readAll(closed);
+            }
+        }
+        if (statusCode / 100 != 2) {
+            throw new ResponseException(statusCode, body.isEmpty() ? connection.getResponseMessage() : body.trim());
+        }
+        return body.trim();
+    }
+
+    private void sleepBeforeRetry(final int attempt, final IOException cause) throws IOException {
+        // Jittered between the half and the full of the backoff so that concurrent uploads do not retry all at once.
+        final long backoff = this.retryInterval.toMillis() << Math.min(attempt - 1, 10);
+        final long millis = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        try {
+            Thread.sleep(millis);
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            final IOException interrupted = new IOException("Interrupted while waiting for retry.", ex);
+            interrupted.addSuppressed(cause);
+            throw interrupted;
+        }
+    }
+
+    private static boolean isRetryable(final int statusCode) {
+        return statusCode == 429 || statusCode >= 500;
+    }
+
+    private static String readAll(final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Finds an API key for the host in a RubyGems credentials file, usually {@code ~/.gem/credentials}.
+     *
+     * <p>The file is a flat YAML map. A key for a specific host is looked up by the host URL, and the default key
+     * {@code :rubygems_api_key} is used otherwise, as {@code Gem::GemcutterUtilities#api_key} does.
+     *
+     * @return the API key, or {@code null} if not found
+     */
+    static String findApiKeyInCredentials(final List<String> lines, final String host) {
+        final String normalizedHost = stripTrailingSlashes(host);
+        String defaultKey = null;
+        for (final String line : lines) {
+            final String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#") || trimmed.equals("---")) {
+                continue;
+            }
+            final int separator = trimmed.lastIndexOf(": ");
+            if (separator < 0) {
+                continue;
+            }
+            final String key = unquote(trimmed.substring(0, separator).trim());
+            final String value = unquote(trimmed.substring(separator + 2).trim());
+            if (stripTrailingSlashes(key).equals(normalizedHost)) {
+                return value;
+            }
+            if (key.equals(":rubygems_api_key") || key.equals("rubygems_api_key")) {
+                defaultKey = value;
+            }
+        }
+        return defaultKey;
+    }
+
+    private static String unquote(final String value) {
+        if (value.length() >= 2
+                && ((value.startsWith("\"") && value.endsWith("\"")) || (value.startsWith("'") && value.endsWith("'")))) {
+            return value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+
+    private static String stripTrailingSlashes(final String url) {
+        int end = url.length();
+        while (end > 0 && url.charAt(end - 1) == '/') {
+            end--;
+        }
+        return url.substring(0, end);
+    }
+
+    static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(30);
+    static final Duration DEFAULT_READ_TIMEOUT = Duration.ofSeconds(300);
+    static final int DEFAULT_MAX_RETRIES = 3;
+    static final Duration DEFAULT_RETRY_INTERVAL = Duration.ofSeconds(2);
+
+    private static final String USER_AGENT = "gradle-embulk-plugins";
+
+    private final String host;
+    private final String apiKey;
+    private final Duration connectTimeout;
+    private final Duration readTimeout;
+    private final int maxRetries;
+    private final Duration retryInterval;
+}
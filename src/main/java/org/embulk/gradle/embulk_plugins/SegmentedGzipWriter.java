@@ -0,0 +1,269 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a single gzip member whose deflate stream is a concatenation of independently compressed segments.
+ *
+ * <p>Each segment is raw deflate data terminated by {@link Deflater#SYNC_FLUSH}, which ends at a byte boundary
+ * without the final-block bit. Such segments can be concatenated as they are, and the stream is terminated by
+ * an empty final block. The CRC-32 of the whole member is combined from the CRC-32 of each segment.
+ *
+ * <p>The output is one gzip member, not concatenated gzip members, because Ruby's {@code Zlib::GzipReader}
+ * reads only the first member of a gzip file.
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc1951">RFC 1951: DEFLATE Compressed Data Format Specification</a>
+ * @see <a href="https://tools.ietf.org/html/rfc1952">RFC 1952: GZIP file format specification</a>
+ */
+class SegmentedGzipWriter implements Closeable {
+    SegmentedGzipWriter(final OutputStream out) throws IOException {
+        this.out = out;
+        this.crc = 0;
+        this.length = 0;
+        this.closed = false;
+        this.out.write(GZIP_HEADER);
+    }
+
+    /**
+     * A raw deflate segment with the CRC-32 and the length of its uncompressed data.
+     */
+    static final class Segment {
+        Segment(final byte[] deflated, final int crc, final long length) {
+            this.deflated = deflated;
+            this.crc = crc;
+            this.length = length;
+        }
+
+        byte[] getDeflated() {
+            return this.deflated;
+        }
+
+        int getCrc() {
+            return this.crc;
+        }
+
+        long getLength() {
+            return this.length;
+        }
+
+        private final byte[] deflated;
+        private final int crc;
+        private final long length;
+    }
+
+    /**
+     * Compresses a sequence of inputs into one segment.
+     */
+    static Segment compress(final GemCompression compression, final InputStream... inputs) throws IOException {
+        final Deflater deflater = compression.newDeflater(true);
+        try {
+            final CRC32 crc32 = new CRC32();
+            final ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+            final byte[] inputBuffer = new byte[BUFFER_SIZE];
+            final byte[] outputBuffer = new byte[BUFFER_SIZE];
+            long length = 0;
+            for (final InputStream input : inputs) {
+                int read;
+                while ((read = input.read(inputBuffer)) >= 0) {
+                    if (read == 0) {
+                        continue;
+                    }
+                    crc32.update(inputBuffer, 0, read);
+                    length += read;
+                    deflater.setInput(inputBuffer, 0, read);
+                    while (!deflater.needsInput()) {
+                        final int written = deflater.deflate(outputBuffer, 0, outputBuffer.length, Deflater.NO_FLUSH);
+                        deflated.write(outputBuffer, 0, written);
+                    }
+                }
+            }
+            int written;
+            do {
+                written = deflater.deflate(outputBuffer, 0, outputBuffer.length, Deflater.SYNC_FLUSH);
+                deflated.write(outputBuffer, 0, written);
+            } while (written == outputBuffer.length);
+            return new Segment(deflated.toByteArray(), (int) crc32.getValue(), length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Compresses a block into one segment with a preset dictionary, as pigz does with the last 32 KiB of the
+     * previous block. The dictionary is not included in the segment. It just improves the compression ratio.
+     */
+    static Segment compress(
+            final GemCompression compression,
+            final byte[] dictionary,
+            final byte[] block,
+            final int offset,
+            final int length) {
+        final Deflater deflater = compression.newDeflater(true);
+        try {
+            if (dictionary != null && dictionary.length > 0) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(block, offset, length);
+
+            final ByteArrayOutputStream deflated = new ByteArrayOutputStream(length / 2 + 64);
+            final byte[] outputBuffer = new byte[BUFFER_SIZE];
+            while (!deflater.needsInput()) {
+                final int written = deflater.deflate(outputBuffer, 0, outputBuffer.length, Deflater.NO_FLUSH);
+                deflated.write(outputBuffer, 0, written);
+            }
+            int written;
+            do {
+                written = deflater.deflate(outputBuffer, 0, outputBuffer.length, Deflater.SYNC_FLUSH);
+                deflated.write(outputBuffer, 0, written);
+            } while (written == outputBuffer.length);
+
+            final CRC32 crc32 = new CRC32();
+            crc32.update(block, offset, length);
+            return new Segment(deflated.toByteArray(), (int) crc32.getValue(), length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    void write(final Segment segment) throws IOException {
+        if (this.closed) {
+            throw new IOException("Closed SegmentedGzipWriter");
+        }
+        this.out.write(segment.getDeflated());
+        this.crc = combineCrc32(this.crc, segment.getCrc(), segment.getLength());
+        this.length += segment.getLength();
+    }
+
+    /**
+     * Terminates the deflate stream with an empty final block, and writes the gzip trailer.
+     * It does not close the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.out.write(EMPTY_FINAL_BLOCK);
+        writeIntLittleEndian(this.out, this.crc);
+        writeIntLittleEndian(this.out, (int) this.length);
+        this.out.flush();
+        this.closed = true;
+    }
+
+    /**
+     * Combines two CRC-32 values as {@code crc32_combine} in zlib does.
+     *
+     * @param crc1  CRC-32 of the first data
+     * @param crc2  CRC-32 of the second data
+     * @param length2  the length of the second data
+     * @return CRC-32 of the concatenated data
+     *
+     * @see <a href="https://github.com/madler/zlib/blob/v1.2.11/crc32.c">crc32.c in zlib</a>
+     */
+    static int combineCrc32(final int crc1, final int crc2, final long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+
+        final int[] even = new int[32];  // even-power-of-two zeros operator
+        final int[] odd = new int[32];   // odd-power-of-two zeros operator
+
+        // The operator for one zero bit in odd.
+        odd[0] = 0xedb88320;  // CRC-32 polynomial
+        int row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+
+        gf2MatrixSquare(even, odd);  // two zero bits in even
+        gf2MatrixSquare(odd, even);  // four zero bits in odd
+
+        // Applies length2 zeros to crc1. The first square puts the operator for one zero byte, eight zero bits, in even.
+        int crc = crc1;
+        long remaining = length2;
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((remaining & 1) != 0) {
+                crc = gf2MatrixTimes(even, crc);
+            }
+            remaining >>>= 1;
+            if (remaining == 0) {
+                break;
+            }
+
+            gf2MatrixSquare(odd, even);
+            if ((remaining & 1) != 0) {
+                crc = gf2MatrixTimes(odd, crc);
+            }
+            remaining >>>= 1;
+        } while (remaining != 0);
+
+        return crc ^ crc2;
+    }
+
+    private static int gf2MatrixTimes(final int[] matrix, final int vector) {
+        int sum = 0;
+        int v = vector;
+        int i = 0;
+        while (v != 0) {
+            if ((v & 1) != 0) {
+                sum ^= matrix[i];
+            }
+            v >>>= 1;
+            i++;
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(final int[] square, final int[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = gf2MatrixTimes(matrix, matrix[n]);
+        }
+    }
+
+    private static void writeIntLittleEndian(final OutputStream out, final int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >>> 8) & 0xff);
+        out.write((value >>> 16) & 0xff);
+        out.write((value >>> 24) & 0xff);
+    }
+
+    // The same header as java.util.zip.GZIPOutputStream writes: no file name, and zero as the modification time.
+    private static final byte[] GZIP_HEADER = {
+        (byte) 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0
+    };
+
+    // An empty fixed Huffman block with the final-block bit: BFINAL=1, BTYPE=01, and the end-of-block code.
+    private static final byte[] EMPTY_FINAL_BLOCK = { 0x03, 0x00 };
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final OutputStream out;
+
+    private int crc;
+    private long length;
+    private boolean closed;
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes a POSIX ustar archive in the same manner as RubyGems' {@code Gem::Package::TarWriter}.
+ *
+ * <p>Only regular files are written. Directories are not stored as entries, as {@code gem build} does not.
+ *
+ * @see <a href="https://github.com/rubygems/rubygems/blob/v2.7.9/lib/rubygems/package/tar_writer.rb">Gem::Package::TarWriter</a>
+ * @see <a href="https://github.com/rubygems/rubygems/blob/v2.7.9/lib/rubygems/package/tar_header.rb">Gem::Package::TarHeader</a>
+ */
+class TarWriter implements Closeable {
+    TarWriter(final OutputStream out) {
+        this.out = out;
+        this.closed = false;
+    }
+
+    /**
+     * Adds a file whose size is known in advance, and copies its content from {@code in}.
+     */
+    void addFile(final String name, final int mode, final long mtime, final long size, final InputStream in)
+            throws IOException {
+        this.checkClosed();
+        this.out.write(createHeader(name, mode, mtime, size));
+
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        long remaining = size;
+        while (remaining > 0) {
+            final int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                throw new IOException("File \"" + name + "\" is shorter than its expected size: " + size);
+            }
+            this.out.write(buffer, 0, read);
+            remaining -= read;
+        }
+        if (in.read() >= 0) {
+            throw new IOException("File \"" + name + "\" is longer than its expected size: " + size);
+        }
+        this.out.write(new byte[padding(size)]);
+    }
+
+    /**
+     * Adds a file with its whole content on memory.
+     */
+    void addFile(final String name, final int mode, final long mtime, final byte[] content) throws IOException {
+        this.checkClosed();
+        this.out.write(createHeader(name, mode, mtime, content.length));
+        this.out.write(content);
+        this.out.write(new byte[padding(content.length)]);
+    }
+
+    /**
+     * Writes the end-of-archive marker, two blocks of zeros. It does not close the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        this.checkClosed();
+        this.out.write(new byte[BLOCK_SIZE * 2]);
+        this.out.flush();
+        this.closed = true;
+    }
+
+    /**
+     * Creates a header block of a regular file entry.
+     *
+     * <p>Owners are fixed to {@code wheel} (uid 0, gid 0) as RubyGems does.
+     */
+    static byte[] createHeader(final String fullName, final int mode, final long mtime, final long size) throws IOException {
+        final String[] prefixAndName = splitName(fullName);
+
+        final byte[] header = new byte[BLOCK_SIZE];
+        putString(header, 0, 100, prefixAndName[1]);      // name
+        putOctal(header, 100, 8, mode & 07777);           // mode
+        putOctal(header, 108, 8, 0);                      // uid
+        putOctal(header, 116, 8, 0);                      // gid
+        putOctal(header, 124, 12, size);                  // size
+        putOctal(header, 136, 12, mtime);                 // mtime
+        putString(header, 148, 8, "        ");            // checksum -- spaces while calculating
+        header[156] = '0';                                // typeflag -- a regular file
+        putString(header, 257, 6, "ustar");               // magic -- "ustar\0"
+        putString(header, 263, 2, "00");                  // version
+        putString(header, 265, 32, "wheel");              // uname
+        putString(header, 297, 32, "wheel");              // gname
+        putOctal(header, 329, 8, 0);                      // devmajor
+        putOctal(header, 337, 8, 0);                      // devminor
+        putString(header, 345, 155, prefixAndName[0]);    // prefix
+
+        long checksum = 0;
+        for (final byte b : header) {
+            checksum += (b & 0xff);
+        }
+        putOctal(header, 148, 7, checksum);
+        header[155] = ' ';
+
+        return header;
+    }
+
+    static int padding(final long size) {
+        final int remainder = (int) (size % BLOCK_SIZE);
+        return remainder == 0 ? 0 : BLOCK_SIZE - remainder;
+    }
+
+    /**
+     * Splits a long name into {@code prefix} and {@code name} in the same way as {@code TarWriter#split_name}.
+     *
+     * <p>The name is kept as short as possible, only the last part of the path unless the prefix is too long.
+     */
+    private static String[] splitName(final String fullName) throws IOException {
+        final byte[] fullNameBytes = fullName.getBytes(StandardCharsets.UTF_8);
+        if (fullNameBytes.length > 256) {
+            throw new IOException("File \"" + fullName + "\" has a too long path (should be 256 or less)");
+        }
+        if (fullNameBytes.length <= 100) {
+            return new String[] { "", fullName };
+        }
+
+        final String[] parts = fullName.split("/", -1);
+        int index = parts.length - 1;
+        String name = parts[index];
+        String prefix = String.join("/", Arrays.copyOfRange(parts, 0, index));
+        while (index > 0 && (prefix.getBytes(StandardCharsets.UTF_8).length > 155 || name.isEmpty())) {
+            index--;
+            name = parts[index] + "/" + name;
+            prefix = String.join("/", Arrays.copyOfRange(parts, 0, index));
+        }
+
+        if (name.getBytes(StandardCharsets.UTF_8).length > 100 || prefix.isEmpty()) {
+            throw new IOException("File \"" + fullName + "\" has a too long name (should be 100 or less)");
+        }
+        if (prefix.getBytes(StandardCharsets.UTF_8).length > 155) {
+            throw new IOException("File \"" + fullName + "\" has a too long base path (should be 155 or less)");
+        }
+        return new String[] { prefix, name };
+    }
+
+    private static void putString(final byte[] header, final int offset, final int length, final String value) {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(bytes, 0, header, offset, Math.min(bytes.length, length));
+    }
+
+    /**
+     * Puts a zero-padded octal number followed by NUL, as {@code "%0*o"} in {@code TarHeader#oct}.
+     */
+    private static void putOctal(final byte[] header, final int offset, final int length, final long value) {
+        final String octal = Long.toOctalString(value);
+        final StringBuilder builder = new StringBuilder();
+        for (int i = octal.length(); i < length - 1; i++) {
+            builder.append('0');
+        }
+        builder.append(octal);
+        putString(header, offset, length - 1, builder.toString());
+        header[offset + length - 1] = 0;
+    }
+
+    private void checkClosed() throws IOException {
+        if (this.closed) {
+            throw new IOException("Closed TarWriter");
+        }
+    }
+
+    static final int BLOCK_SIZE = 512;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final OutputStream out;
+
+    private boolean closed;
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads a ustar archive back in tests, with the raw fields of each header, to check what {@link TarWriter} and
+ * {@link GemWriter} write.
+ */
+final class TarReader {
+    private TarReader() {
+        // No instantiation.
+    }
+
+    static final class Entry {
+        private Entry(final byte[] header, final byte[] content) {
+            this.header = header;
+            this.content = content;
+        }
+
+        byte[] getHeader() {
+            return this.header;
+        }
+
+        byte[] getContent() {
+            return this.content;
+        }
+
+        /**
+         * Returns the raw field in the header, including trailing NULs and spaces.
+         */
+        String field(final int offset, final int length) {
+            return new String(this.header, offset, length, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Returns the string field in the header until the first NUL.
+         */
+        String string(final int offset, final int length) {
+            int end = offset;
+            while (end < offset + length && this.header[end] != 0) {
+                end++;
+            }
+            return new String(this.header, offset, end - offset, StandardCharsets.UTF_8);
+        }
+
+        long octal(final int offset, final int length) {
+            return Long.parseLong(this.string(offset, length).trim(), 8);
+        }
+
+        String getName() {
+            return this.string(0, 100);
+        }
+
+        String getPrefix() {
+            return this.string(345, 155);
+        }
+
+        /**
+         * Returns the full path joined from {@code prefix} and {@code name}.
+         */
+        String getFullName() {
+            return this.getPrefix().isEmpty() ? this.getName() : this.getPrefix() + "/" + this.getName();
+        }
+
+        int getMode() {
+            return (int) this.octal(100, 8);
+        }
+
+        long getSize() {
+            return this.octal(124, 12);
+        }
+
+        long getMtime() {
+            return this.octal(136, 12);
+        }
+
+        /**
+         * Returns the checksum calculated from the header with the checksum field as spaces.
+         */
+        long calculateChecksum() {
+            long checksum = 0;
+            for (int i = 0; i < this.header.length; i++) {
+                checksum += (i >= 148 && i < 156) ? ' ' : (this.header[i] & 0xff);
+            }
+            return checksum;
+        }
+
+        private final byte[] header;
+        private final byte[] content;
+    }
+
+    /**
+     * Reads a single header block, without its content.
+     */
+    static Entry header(final byte[] header) {
+        return new Entry(header, new byte[0]);
+    }
+
+    /**
+     * Reads all entries until the end-of-archive marker, which must be followed only by zeros.
+     */
+    static List<Entry> read(final InputStream in) throws IOException {
+        final ArrayList<Entry> entries = new ArrayList<>();
+        while (true) {
+            final byte[] header = readFully(in, TarWriter.BLOCK_SIZE);
+            if (isZero(header)) {
+                if (!isZero(readFully(in, TarWriter.BLOCK_SIZE))) {
+                    throw new IOException("Unexpected end-of-archive marker.");
+                }
+                if (in.read() >= 0) {
+                    throw new IOException("Unexpected data after the end-of-archive marker.");
+                }
+                return entries;
+            }
+            final Entry entry = new Entry(header, readFully(in, (int) header(header).getSize()));
+            if (!isZero(readFully(in, TarWriter.padding(entry.getSize())))) {
+                throw new IOException("Unexpected padding of: " + entry.getFullName());
+            }
+            entries.add(entry);
+        }
+    }
+
+    /**
+     * Returns the contents of entries from their full paths, in the order of the archive.
+     */
+    static Map<String, byte[]> contents(final List<Entry> entries) {
+        final LinkedHashMap<String, byte[]> contents = new LinkedHashMap<>();
+        for (final Entry entry : entries) {
+            contents.put(entry.getFullName(), entry.getContent());
+        }
+        return contents;
+    }
+
+    static byte[] gunzip(final byte[] gzipped) throws IOException {
+        try (final InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped))) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static byte[] readFully(final InputStream in, final int length) throws IOException {
+        final byte[] buffer = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            final int read = in.read(buffer, offset, length - offset);
+            if (read < 0) {
+                throw new IOException("Unexpected end of the archive.");
+            }
+            offset += read;
+        }
+        return buffer;
+    }
+
+    private static boolean isZero(final byte[] bytes) {
+        return Arrays.equals(bytes, new byte[bytes.length]);
+    }
+}
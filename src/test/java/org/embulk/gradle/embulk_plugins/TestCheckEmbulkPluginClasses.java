@@ -0,0 +1,91 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TestCheckEmbulkPluginClasses {
+    @Test
+    public void testFind(@TempDir Path tempDir) throws IOException {
+        final JarClassIndex guava = JarClassIndex.load(createJar(tempDir, "guava.jar",
+                "com/google/common/base/Optional.class", "optional",
+                "com/google/common/base/Strings.class", "strings"));
+        final JarClassIndex shaded = JarClassIndex.load(createJar(tempDir, "shaded.jar",
+                "com/google/common/base/Optional.class", "optional",
+                "com/google/common/base/Strings.class", "strings-modified",
+                "META-INF/versions/9/com/google/common/base/Strings.class", "ignored"));
+        final JarClassIndex plugin = JarClassIndex.load(createJar(tempDir, "plugin.jar",
+                "org/embulk/input/example/ExampleInputPlugin.class", "plugin",
+                "org/embulk/spi/Exec.class", "exec"));
+        final JarClassIndex core = JarClassIndex.load(createJar(tempDir, "embulk-core.jar",
+                "org/embulk/spi/Exec.class", "exec",
+                "org/embulk/spi/PageBuilder.class", "page-builder",
+                "org/embulk/exec/Only.class", "only-in-core"));
+
+        final CheckEmbulkPluginClasses.ClassConflicts conflicts = CheckEmbulkPluginClasses.ClassConflicts.find(
+                Arrays.asList(guava, shaded, plugin), Collections.singletonList(core));
+
+        assertEquals(Collections.singletonMap("com/google/common/base/Optional", Arrays.asList("guava.jar", "shaded.jar")),
+                     conflicts.getIdenticalDuplicates());
+        assertEquals(Collections.singletonMap("com/google/common/base/Strings", Arrays.asList("guava.jar", "shaded.jar")),
+                     conflicts.getDifferentDuplicates());
+        assertEquals(Collections.singletonMap("org/embulk/spi/Exec",
+                                              Arrays.asList("plugin.jar", "embulk-core.jar (compileOnly)")),
+                     conflicts.getProvidedClasses());
+        assertEquals(Arrays.asList("com/google/common/base", "org/embulk/spi"),
+                     Arrays.asList(conflicts.getSplitPackages().keySet().toArray()));
+    }
+
+    @Test
+    public void testLoad(@TempDir Path tempDir) throws IOException {
+        final File jar = createJar(tempDir, "a.jar",
+                "a/A.class", "a",
+                "a/B.class", "b",
+                "a/package-info.class", "package-info",
+                "a/resource.txt", "resource");
+        final JarClassIndex index = JarClassIndex.load(jar);
+        assertEquals(Arrays.asList("a/A", "a/B"), new ArrayList<>(index.getClasses().keySet()));
+        assertEquals(jar, index.getJarFile());
+    }
+
+    private static File createJar(final Path tempDir, final String name, final String... entries) throws IOException {
+        final Path jar = tempDir.resolve(name);
+        try (final OutputStream out = Files.newOutputStream(jar);
+                final ZipOutputStream zip = new ZipOutputStream(out)) {
+            for (int i = 0; i < entries.length; i += 2) {
+                zip.putNextEntry(new ZipEntry(entries[i]));
+                zip.write(entries[i + 1].getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+        }
+        return jar.toFile();
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TestClasspathFiles {
+    @Test
+    public void testClasspathList(@TempDir Path tempDir) throws IOException {
+        final Path library = tempDir.resolve("library.jar");
+        Files.write(library, "library".getBytes(StandardCharsets.UTF_8));
+        final Path plugin = tempDir.resolve("plugin.jar");
+        Files.write(plugin, "plugin".getBytes(StandardCharsets.UTF_8));
+
+        final ClasspathFiles classpathFiles = new ClasspathFiles(false, true);
+        classpathFiles.add("classpath/library.jar", library.toFile());
+        classpathFiles.add("LICENSE", tempDir.resolve("LICENSE").toFile());
+        classpathFiles.add("classpath/plugin.jar", plugin.toFile());
+
+        final Map<String, byte[]> files = classpathFiles.toFiles();
+        assertEquals(Arrays.asList("classpath/CLASSPATH.LIST"), Arrays.asList(files.keySet().toArray()));
+        assertEquals("# SHA-256 size name\n"
+                     + sha256(library) + " 7 library.jar\n"
+                     + sha256(plugin) + " 6 plugin.jar\n",
+                     new String(files.get("classpath/CLASSPATH.LIST"), StandardCharsets.UTF_8));
+    }
+
+    private static String sha256(final Path path) throws IOException {
+        try (final InputStream in = Files.newInputStream(path)) {
+            return GemSegmentCache.sha256(in);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TestClasspathIndex {
+    @Test
+    public void testToBytes(@TempDir Path tempDir) throws IOException {
+        final ClasspathIndex index = new ClasspathIndex();
+        index.add("guava.jar", createJar(tempDir.resolve("guava.jar"),
+                "com/google/common/collect/Lists.class",
+                "com/google/common/base/Optional.class",
+                "com/google/common/base/Strings.class",
+                "META-INF/MANIFEST.MF"));
+        final ByteArrayOutputStream plugin = new ByteArrayOutputStream();
+        writeJar(plugin, "org/embulk/input/example/ExampleInputPlugin.class", "example.properties");
+        index.add("embulk-input-example.jar", new ByteArrayInputStream(plugin.toByteArray()));
+
+        assertEquals("JarIndex-Version: 1.0\n"
+                     + "\n"
+                     + "embulk-input-example.jar\n"
+                     + "example.properties\n"
+                     + "org/embulk/input/example\n"
+                     + "\n"
+                     + "guava.jar\n"
+                     + "com/google/common/base\n"
+                     + "com/google/common/collect\n"
+                     + "\n",
+                     new String(index.toBytes(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testIsIndexed() {
+        assertTrue(ClasspathIndex.isIndexed("classpath/guava.jar"));
+        assertFalse(ClasspathIndex.isIndexed("classpath/lib/guava.jar"));
+        assertFalse(ClasspathIndex.isIndexed("lib/guava.jar"));
+        assertFalse(ClasspathIndex.isIndexed("classpath/INDEX.LIST"));
+    }
+
+    private static File createJar(final Path jar, final String... entries) throws IOException {
+        try (final OutputStream out = Files.newOutputStream(jar)) {
+            writeJar(out, entries);
+        }
+        return jar.toFile();
+    }
+
+    private static void writeJar(final OutputStream out, final String... entries) throws IOException {
+        try (final ZipOutputStream zip = new ZipOutputStream(out)) {
+            for (final String entry : entries) {
+                zip.putNextEntry(new ZipEntry(entry));
+                zip.closeEntry();
+            }
+        }
+    }
+}
@@ -16,22 +16,33 @@
 
 package org.embulk.gradle.embulk_plugins;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.JarURLConnection;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
@@ -42,6 +53,7 @@ import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import org.gradle.testkit.runner.BuildResult;
 import org.gradle.testkit.runner.GradleRunner;
+import org.gradle.testkit.runner.TaskOutcome;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 import org.w3c.dom.Document;
@@ -89,6 +101,170 @@ class TestEmbulkPluginsPlugin {
         assertPom(pomPath);
     }
 
+    @Test
+    public void testGem(@TempDir Path tempDir) throws IOException {
+        final Path projectDir = Files.createDirectory(tempDir.resolve("embulk-input-test1"));
+        Files.copy(TestEmbulkPluginsPlugin.class.getClassLoader().getResourceAsStream("build.gradle"),
+                   projectDir.resolve("build.gradle"));
+
+        final BuildResult result = this.build(projectDir, "gem");
+        assertEquals(TaskOutcome.SUCCESS, result.task(":gem").getOutcome());
+
+        final Path gemPath = projectDir.resolve("build/gems/embulk-input-test1-0.2.5-java.gem");
+        assertTrue(Files.exists(gemPath));
+        final GemFileInfo gem = GemFileInfo.read(gemPath);
+        assertEquals("embulk-input-test1", gem.getName());
+        assertEquals("0.2.5", gem.getVersion());
+        assertEquals("java", gem.getPlatform());
+
+        assertEquals(Arrays.asList(
+                             "classpath/commons-lang3-3.9.jar",
+                             "classpath/commons-text-1.7.jar",
+                             "classpath/embulk-input-test1-0.2.5.jar",
+                             "lib/embulk/input/test1.rb"),
+                     listGemFiles(gemPath));
+    }
+
+    @Test
+    public void testGemAll(@TempDir Path tempDir) throws IOException {
+        final Path projectDir = Files.createDirectory(tempDir.resolve("embulk-plugins"));
+        Files.write(projectDir.resolve("settings.gradle"),
+                    Arrays.asList(
+                            "rootProject.name = \"embulk-plugins\"",
+                            "include \"embulk-input-test1\", \"embulk-input-test2\""),
+                    StandardCharsets.UTF_8);
+        Files.write(projectDir.resolve("build.gradle"),
+                    Arrays.asList(
+                            "gradle.projectsEvaluated {",
+                            "    tasks.named(\"gemAll\") {",
+                            "        maxWorkers = 1",
+                            "    }",
+                            "}"),
+                    StandardCharsets.UTF_8);
+        final Path buildGradlePath =
+                Files.createDirectory(projectDir.resolve("embulk-input-test1")).resolve("build.gradle");
+        Files.copy(TestEmbulkPluginsPlugin.class.getClassLoader().getResourceAsStream("build.gradle"), buildGradlePath);
+        final String buildGradle = new String(Files.readAllBytes(buildGradlePath), StandardCharsets.UTF_8);
+        Files.write(Files.createDirectory(projectDir.resolve("embulk-input-test2")).resolve("build.gradle"),
+                    buildGradle.replace("test1", "test2").getBytes(StandardCharsets.UTF_8));
+
+        // Without "--parallel", as it cannot always be enabled.
+        final BuildResult result = this.build(projectDir, "gemAll");
+        assertEquals(TaskOutcome.SUCCESS, result.task(":gemAll").getOutcome());
+        assertTrue(result.getOutput().contains("Summary of 2 gem(s):"));
+        for (final String type : Arrays.asList("test1", "test2")) {
+            assertEquals(TaskOutcome.SUCCESS, result.task(":embulk-input-" + type + ":gem").getOutcome());
+            assertTrue(hasSummaryRow(result, ":embulk-input-" + type + ":gem", "BUILT"));
+            final Path gemPath =
+                    projectDir.resolve("embulk-input-" + type + "/build/gems/embulk-input-" + type + "-0.2.5-java.gem");
+            assertTrue(Files.exists(gemPath));
+            assertEquals(Arrays.asList(
+                                 "classpath/commons-lang3-3.9.jar",
+                                 "classpath/commons-text-1.7.jar",
+                                 "classpath/embulk-input-" + type + "-0.2.5.jar",
+                                 "lib/embulk/input/" + type + ".rb"),
+                         listGemFiles(gemPath));
+        }
+
+        // The gem tasks are up-to-date as usual through "gemAll".
+        final BuildResult resultAgain = this.build(projectDir, "gemAll");
+        for (final String type : Arrays.asList("test1", "test2")) {
+            assertEquals(TaskOutcome.UP_TO_DATE, resultAgain.task(":embulk-input-" + type + ":gem").getOutcome());
+            assertTrue(hasSummaryRow(resultAgain, ":embulk-input-" + type + ":gem", "UP-TO-DATE"));
+        }
+    }
+
+    @Test
+    public void testDependencyList(@TempDir Path tempDir) throws IOException {
+        final Path projectDir = Files.createDirectory(tempDir.resolve("embulk-plugins"));
+        Files.write(projectDir.resolve("settings.gradle"),
+                    Arrays.asList(
+                            "rootProject.name = \"embulk-plugins\"",
+                            "include \"embulk-input-test1\", \"embulk-util-test\""),
+                    StandardCharsets.UTF_8);
+        Files.write(Files.createDirectory(projectDir.resolve("embulk-util-test")).resolve("build.gradle"),
+                    Arrays.asList(
+                            "plugins {",
+                            "    id \"java\"",
+                            "}",
+                            "group = \"org.embulk.util.test\"",
+                            "version = \"0.1.0\""),
+                    StandardCharsets.UTF_8);
+        final Path buildGradlePath =
+                Files.createDirectory(projectDir.resolve("embulk-input-test1")).resolve("build.gradle");
+        Files.copy(TestEmbulkPluginsPlugin.class.getClassLoader().getResourceAsStream("build.gradle"), buildGradlePath);
+        Files.write(buildGradlePath,
+                    Arrays.asList(
+                            "dependencies {",
+                            "    compile project(\":embulk-util-test\")",
+                            "}",
+                            "embulkPlugin {",
+                            "    dependencyList = true",
+                            "}"),
+                    StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+        this.build(projectDir, ":embulk-input-test1:jar");
+        final Path jarPath = projectDir.resolve("embulk-input-test1/build/libs/embulk-input-test1-0.2.5.jar");
+        assertEquals("META-INF/embulk/dependencies.list",
+                     getManifestAttributes(jarPath).getValue("Embulk-Plugin-Dependencies"));
+
+        final List<String> lines = new ArrayList<>();
+        try (final JarFile jarFile = new JarFile(jarPath.toFile())) {
+            final JarEntry entry = jarFile.getJarEntry("META-INF/embulk/dependencies.list");
+            assertNotNull(entry);
+            try (final BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(jarFile.getInputStream(entry), StandardCharsets.UTF_8))) {
+                reader.lines().forEach(lines::add);
+            }
+        }
+
+        // Sorted by the coordinates. The project dependency is marked as it cannot be fetched by its coordinates.
+        assertEquals(4, lines.size());
+        assertEquals("# SHA-256 size group:module:version[:classifier][@extension]", lines.get(0));
+        assertTrue(lines.get(1).matches("[0-9a-f]{64} [0-9]+ org\\.apache\\.commons:commons-lang3:3\\.9"), lines.get(1));
+        assertTrue(lines.get(2).matches("[0-9a-f]{64} [0-9]+ org\\.apache\\.commons:commons-text:1\\.7"), lines.get(2));
+        assertTrue(lines.get(3).matches("# project [0-9a-f]{64} [0-9]+ org\\.embulk\\.util\\.test:embulk-util-test:0\\.1\\.0"),
+                   lines.get(3));
+    }
+
+    @Test
+    public void testReproducibleGem(@TempDir Path tempDir) throws IOException {
+        final Path projectDir = Files.createDirectory(tempDir.resolve("embulk-input-test1"));
+        Files.copy(TestEmbulkPluginsPlugin.class.getClassLoader().getResourceAsStream("build.gradle"),
+                   projectDir.resolve("build.gradle"));
+        // Only preserveFileTimestamps is configured in "gem" so that reproducibleFileOrder follows it.
+        Files.write(projectDir.resolve("build.gradle"),
+                    Arrays.asList(
+                            "jar {",
+                            "    preserveFileTimestamps = false",
+                            "    reproducibleFileOrder = true",
+                            "}",
+                            "gem {",
+                            "    from(\"LICENSE\")",
+                            "    from(\"NOTICE\")",
+                            "    preserveFileTimestamps = false",
+                            "}"),
+                    StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        final Path licensePath = Files.write(projectDir.resolve("LICENSE"), Arrays.asList("License"));
+        final Path noticePath = Files.write(projectDir.resolve("NOTICE"), Arrays.asList("Notice"));
+        final Path gemPath = projectDir.resolve("build/gems/embulk-input-test1-0.2.5-java.gem");
+
+        Files.setLastModifiedTime(licensePath, FileTime.from(Instant.parse("2019-01-01T00:00:00Z")));
+        Files.setLastModifiedTime(noticePath, FileTime.from(Instant.parse("2019-02-01T00:00:00Z")));
+        final BuildResult result1 = buildWithSourceDateEpoch(projectDir, null, "gem");
+        assertEquals(TaskOutcome.SUCCESS, result1.task(":gem").getOutcome());
+        final byte[] gem1 = Files.readAllBytes(gemPath);
+
+        // SOURCE_DATE_EPOCH is the same as the default, 1980-01-02 00:00:00 UTC.
+        Files.setLastModifiedTime(licensePath, FileTime.from(Instant.parse("2019-06-01T00:00:00Z")));
+        Files.setLastModifiedTime(noticePath, FileTime.from(Instant.parse("2019-05-01T00:00:00Z")));
+        final BuildResult result2 = buildWithSourceDateEpoch(projectDir, "315619200", "gem", "--rerun-tasks");
+        assertEquals(TaskOutcome.SUCCESS, result2.task(":gem").getOutcome());
+        final byte[] gem2 = Files.readAllBytes(gemPath);
+
+        assertArrayEquals(gem1, gem2);
+    }
+
     @Test
     public void testEmbulkPluginRuntimeConfiguration(@TempDir Path tempDir) throws IOException {
         final Path projectDir = Files.createDirectory(tempDir.resolve("embulk-input-test2"));
@@ -101,6 +277,41 @@ class TestEmbulkPluginsPlugin {
         assertFileDoesNotContain(lockfilePath, "javax.inject:javax.inject");
     }
 
+    @Test
+    public void testCheckEmbulkPluginDependencies(@TempDir Path tempDir) throws IOException {
+        final Path projectDir = Files.createDirectory(tempDir.resolve("embulk-input-test2"));
+        Files.copy(TestEmbulkPluginsPlugin.class.getClassLoader().getResourceAsStream("build2.gradle"),
+                   projectDir.resolve("build.gradle"));
+
+        this.build(projectDir, "dependencies", "--configuration", "embulkPluginRuntime", "--write-locks");
+        final BuildResult result = this.build(projectDir, "check");
+        assertEquals(TaskOutcome.SUCCESS, result.task(":checkEmbulkPluginDependencies").getOutcome());
+        assertTrue(Files.exists(projectDir.resolve("build/reports/embulk/dependencies.txt")));
+
+        final BuildResult resultAgain = this.build(projectDir, "check");
+        assertEquals(TaskOutcome.UP_TO_DATE, resultAgain.task(":checkEmbulkPluginDependencies").getOutcome());
+    }
+
+    @Test
+    public void testCheckEmbulkPluginDependenciesWithMainJar(@TempDir Path tempDir) throws IOException {
+        final Path projectDir = Files.createDirectory(tempDir.resolve("embulk-input-test3"));
+        Files.copy(TestEmbulkPluginsPlugin.class.getClassLoader().getResourceAsStream("build3.gradle"),
+                   projectDir.resolve("build.gradle"));
+        // With "mainJar", "embulkPluginRuntime" is configured by hand, and it differs from "runtime".
+        Files.write(projectDir.resolve("build.gradle"), Arrays.asList(
+                        "dependencies {",
+                        "    compile \"javax.inject:javax.inject:1\"",
+                        "    embulkPluginRuntime \"com.fasterxml.jackson.core:jackson-annotations:2.6.7\"",
+                        "}"),
+                    StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+        final BuildResult result = this.build(projectDir, "checkEmbulkPluginDependencies");
+        assertEquals(TaskOutcome.SUCCESS, result.task(":checkEmbulkPluginDependencies").getOutcome());
+        final List<String> modules = Files.readAllLines(
+                projectDir.resolve("build/reports/embulk/dependencies.txt"), StandardCharsets.UTF_8);
+        assertEquals(Arrays.asList("com.fasterxml.jackson.core:jackson-annotations:2.6.7"), modules);
+    }
+
     @Test
     public void testVariableMainJar(@TempDir Path tempDir) throws IOException {
         final Path projectDir = Files.createDirectory(tempDir.resolve("embulk-input-test3"));
@@ -149,6 +360,58 @@ class TestEmbulkPluginsPlugin {
         return result;
     }
 
+    /**
+     * Builds with {@code SOURCE_DATE_EPOCH} set, or unset if {@code null}.
+     *
+     * <p>It does not run in debug mode because environment variables cannot be configured in debug mode.
+     */
+    private static BuildResult buildWithSourceDateEpoch(
+            final Path projectDir, final String sourceDateEpoch, final String... args) {
+        final ArrayList<String> argsList = new ArrayList<>();
+        argsList.addAll(Arrays.asList(args));
+        argsList.add("--stacktrace");
+        final HashMap<String, String> environment = new HashMap<>(System.getenv());
+        environment.remove("SOURCE_DATE_EPOCH");
+        if (sourceDateEpoch != null) {
+            environment.put("SOURCE_DATE_EPOCH", sourceDateEpoch);
+        }
+        final BuildResult result = GradleRunner.create()
+                .withProjectDir(projectDir.toFile())
+                .withArguments(argsList)
+                .withEnvironment(environment)
+                .withPluginClasspath()
+                .build();
+        System.out.println("Running 'gradle " + String.join(" ", argsList) + "'"
+                           + " with SOURCE_DATE_EPOCH=" + sourceDateEpoch + " :");
+        System.out.println("============================================================");
+        System.out.print(result.getOutput());
+        System.out.println("============================================================");
+        return result;
+    }
+
+    /**
+     * Returns true if the summary table of "gemAll" has a row of the task with the status.
+     */
+    private static boolean hasSummaryRow(final BuildResult result, final String taskPath, final String status) {
+        return Arrays.stream(result.getOutput().split("\\r?\\n"))
+                .map(line -> Arrays.asList(line.trim().split(" +")))
+                .anyMatch(columns -> columns.size() == 5 && columns.get(0).equals(taskPath) && columns.get(2).equals(status));
+    }
+
+    /**
+     * Lists the files in data.tar.gz of the gem, sorted.
+     */
+    private static List<String> listGemFiles(final Path gemPath) throws IOException {
+        final Map<String, byte[]> outer;
+        try (final InputStream in = Files.newInputStream(gemPath)) {
+            outer = TarReader.contents(TarReader.read(in));
+        }
+        final ArrayList<String> files = new ArrayList<>(TarReader.contents(TarReader.read(
+                new ByteArrayInputStream(TarReader.gunzip(outer.get("data.tar.gz"))))).keySet());
+        Collections.sort(files);
+        return files;
+    }
+
     private static void assertManifest(final Path jarPath) throws IOException {
         final JarURLConnection connection = openJarUrlConnection(jarPath);
         final Manifest manifest = connection.getManifest();
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import org.gradle.api.artifacts.Configuration;
+import org.gradle.api.artifacts.ModuleIdentifier;
+import org.gradle.api.artifacts.ModuleVersionIdentifier;
+import org.gradle.api.artifacts.ResolvedConfiguration;
+import org.gradle.api.artifacts.ResolvedDependency;
+import org.gradle.api.artifacts.ResolvedModuleVersion;
+import org.junit.jupiter.api.Test;
+
+class TestFlattenedDependencies {
+    @Test
+    public void testFlatten() {
+        final ResolvedDependency shared = dependency("org.example", "shared", "default");
+        final ResolvedDependency subproject = dependency("org.example", "subproject", "runtimeElements",
+                dependency("org.example.sub", "only-in-subproject", "default"));
+        final ResolvedConfiguration configuration = configuration(
+                dependency("org.example", "b", "default", shared),
+                subproject,
+                dependency("org.example", "a", "default", shared, dependency("com.example", "c", "default")));
+
+        final FlattenedDependencies flattened = FlattenedDependencies.of(configuration);
+        assertEquals(Collections.singleton(subproject), flattened.getProjectDependencies());
+        assertEquals(Arrays.asList("com.example:c", "org.example:a", "org.example:b", "org.example:shared"),
+                     keys(flattened.getExternalDependencies().keySet()));
+        assertEquals(Arrays.asList("com.example:c", "org.example.sub:only-in-subproject", "org.example:a",
+                                   "org.example:b", "org.example:shared", "org.example:subproject"),
+                     keys(flattened.getAllDependencies().keySet()));
+    }
+
+    @Test
+    public void testFlattenedOncePerProject() {
+        final ResolvedConfiguration runtime = configuration(dependency("org.example", "a", "default"));
+        final ResolvedConfiguration alternativeRuntime = configuration(dependency("org.example", "c", "default"));
+        final ResolvedConfiguration compileOnly = configuration(dependency("org.example", "b", "default"));
+        final AtomicInteger resolved = new AtomicInteger(0);
+        final ProjectDependencyGraphs graphs = new ProjectDependencyGraphs(
+                unresolved(runtime, resolved), unresolved(alternativeRuntime, resolved), unresolved(compileOnly, resolved));
+        graphs.setAlternativeRuntimeFlattenedFromRuntime();
+
+        final FlattenedDependencies flattenedRuntime = graphs.getRuntime();
+        assertSame(flattenedRuntime, graphs.getRuntime());
+        // "embulkPluginRuntime" flattened from "runtime" shares the graph of "runtime".
+        assertSame(flattenedRuntime, graphs.getAlternativeRuntime());
+        assertEquals(Arrays.asList("org.example:a"), keys(flattenedRuntime.getAllDependencies().keySet()));
+        final FlattenedDependencies flattenedCompileOnly = graphs.getCompileOnly();
+        assertSame(flattenedCompileOnly, graphs.getCompileOnly());
+        assertEquals(Arrays.asList("org.example:b"), keys(flattenedCompileOnly.getAllDependencies().keySet()));
+        assertEquals(2, resolved.get());
+    }
+
+    @Test
+    public void testAlternativeRuntimeWithMainJar() {
+        final ResolvedConfiguration runtime = configuration(dependency("org.example", "a", "default"));
+        final ResolvedConfiguration alternativeRuntime = configuration(dependency("org.example", "c", "default"));
+        final ResolvedConfiguration compileOnly = configuration(dependency("org.example", "b", "default"));
+        final AtomicInteger resolved = new AtomicInteger(0);
+        final ProjectDependencyGraphs graphs = new ProjectDependencyGraphs(
+                unresolved(runtime, resolved), unresolved(alternativeRuntime, resolved), unresolved(compileOnly, resolved));
+
+        // "embulkPluginRuntime" configured by hand with "mainJar" is flattened by itself, not from "runtime".
+        final FlattenedDependencies flattened = graphs.getAlternativeRuntime();
+        assertSame(flattened, graphs.getAlternativeRuntime());
+        assertEquals(Arrays.asList("org.example:c"), keys(flattened.getAllDependencies().keySet()));
+        assertEquals(1, resolved.get());
+    }
+
+    @Test
+    public void testDeepGraph() {
+        // Deep enough to overflow the stack with recursion.
+        ResolvedDependency dependency = dependency("org.example", "leaf", "default");
+        for (int i = 0; i < 100000; i++) {
+            dependency = dependency("org.example", "node" + i, "default", dependency);
+        }
+        final FlattenedDependencies flattened = FlattenedDependencies.of(configuration(dependency));
+        assertEquals(100001, flattened.getAllDependencies().size());
+    }
+
+    private static List<String> keys(final Set<ModuleIdentifier> modules) {
+        return modules.stream().map(FlattenedDependencies::toKey).collect(Collectors.toList());
+    }
+
+    private static ResolvedConfiguration configuration(final ResolvedDependency... firstLevel) {
+        final Set<ResolvedDependency> firstLevelSet = new LinkedHashSet<>(Arrays.asList(firstLevel));
+        return proxy(ResolvedConfiguration.class, (proxy, method, args) -> {
+            if (method.getName().equals("getFirstLevelModuleDependencies")) {
+                return firstLevelSet;
+            }
+            return defaultMethod(proxy, method.getName(), args);
+        });
+    }
+
+    private static Configuration unresolved(final ResolvedConfiguration resolvedConfiguration, final AtomicInteger resolved) {
+        return proxy(Configuration.class, (proxy, method, args) -> {
+            if (method.getName().equals("getResolvedConfiguration")) {
+                resolved.incrementAndGet();
+                return resolvedConfiguration;
+            }
+            return defaultMethod(proxy, method.getName(), args);
+        });
+    }
+
+    private static ResolvedDependency dependency(
+            final String group, final String name, final String configuration, final ResolvedDependency... children) {
+        final ModuleIdentifier module = proxy(ModuleIdentifier.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getGroup":
+                    return group;
+                case "getName":
+                    return name;
+                default:
+                    return defaultMethod(proxy, method.getName(), args);
+            }
+        });
+        final ModuleVersionIdentifier id = proxy(ModuleVersionIdentifier.class, (proxy, method, args) -> {
+            if (method.getName().equals("getModule")) {
+                return module;
+            }
+            return defaultMethod(proxy, method.getName(), args);
+        });
+        final ResolvedModuleVersion moduleVersion = proxy(ResolvedModuleVersion.class, (proxy, method, args) -> {
+            if (method.getName().equals("getId")) {
+                return id;
+            }
+            return defaultMethod(proxy, method.getName(), args);
+        });
+        final Set<ResolvedDependency> childrenSet = new LinkedHashSet<>(Arrays.asList(children));
+        return proxy(ResolvedDependency.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getModule":
+                    return moduleVersion;
+                case "getConfiguration":
+                    return configuration;
+                case "getChildren":
+                    return childrenSet;
+                default:
+                    return defaultMethod(proxy, method.getName(), args);
+            }
+        });
+    }
+
+    private static Object defaultMethod(final Object proxy, final String methodName, final Object[] args) {
+        switch (methodName) {
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            case "toString":
+                return "proxy@" + System.identityHashCode(proxy);
+            default:
+                throw new UnsupportedOperationException(methodName);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(final Class<T> iface, final InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(TestFlattenedDependencies.class.getClassLoader(), new Class<?>[] { iface }, handler);
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+class TestGemAll {
+    @Test
+    public void testFormatTable() {
+        final String table = GemAll.formatTable(Arrays.asList(
+                new String[] { "Task", "Gem", "Status", "Bytes", "Seconds" },
+                new String[] { ":a:gem", "embulk-input-a-0.1.0.gem", "BUILT", "123456", "1.234" },
+                new String[] { ":bb:gem", "embulk-input-bb-0.1.0.gem", "UP-TO-DATE", "78", "-" }));
+        assertEquals(
+                "Summary of 2 gem(s):\n"
+                + "  Task    Gem                       Status      Bytes Seconds\n"
+                + "  :a:gem  embulk-input-a-0.1.0.gem  BUILT      123456   1.234\n"
+                + "  :bb:gem embulk-input-bb-0.1.0.gem UP-TO-DATE     78       -",
+                table);
+    }
+}
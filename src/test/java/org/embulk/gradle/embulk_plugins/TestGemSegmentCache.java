@@ -0,0 +1,109 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TestGemSegmentCache {
+    @Test
+    public void testFindUnchangedSource(@TempDir Path tempDir) throws IOException {
+        final Path cacheDirectory = tempDir.resolve("cache");
+        final File source = write(tempDir.resolve("test1.rb"), "# test1\n", 1000L);
+        final AtomicInteger compressed = new AtomicInteger(0);
+
+        final GemSegmentCache first = new GemSegmentCache(cacheDirectory);
+        assertNull(first.find(source, GemCompression.SMALLEST));
+        final SegmentedGzipWriter.Segment segment = get(first, source, compressed);
+        first.removeUnused();
+        assertEquals(1, first.getMisses());
+
+        // Found by the path, the size, and the last-modified time without reading the source file.
+        final GemSegmentCache second = new GemSegmentCache(cacheDirectory);
+        final SegmentedGzipWriter.Segment found = second.find(source, GemCompression.SMALLEST);
+        assertNotNull(found);
+        assertArrayEquals(segment.getDeflated(), found.getDeflated());
+        assertEquals(1, second.getHits());
+        // Not found in another compression profile.
+        assertNull(second.find(source, GemCompression.FASTEST));
+        assertEquals(1, compressed.get());
+    }
+
+    @Test
+    public void testTouchedSource(@TempDir Path tempDir) throws IOException {
+        final Path cacheDirectory = tempDir.resolve("cache");
+        final File source = write(tempDir.resolve("test1.rb"), "# test1\n", 1000L);
+        final AtomicInteger compressed = new AtomicInteger(0);
+
+        final GemSegmentCache first = new GemSegmentCache(cacheDirectory);
+        get(first, source, compressed);
+        first.removeUnused();
+
+        // Regenerated with the same content: read again, but not compressed again.
+        write(source.toPath(), "# test1\n", 2000L);
+        final GemSegmentCache second = new GemSegmentCache(cacheDirectory);
+        assertNull(second.find(source, GemCompression.SMALLEST));
+        get(second, source, compressed);
+        second.removeUnused();
+        assertEquals(1, second.getHits());
+        assertEquals(0, second.getMisses());
+        assertEquals(1, compressed.get());
+
+        // Changed: compressed again, and the unused segment is removed.
+        write(source.toPath(), "# test1 changed\n", 3000L);
+        final GemSegmentCache third = new GemSegmentCache(cacheDirectory);
+        assertNull(third.find(source, GemCompression.SMALLEST));
+        get(third, source, compressed);
+        third.removeUnused();
+        assertEquals(1, third.getMisses());
+        assertEquals(2, compressed.get());
+        // The index, and the segment of the changed content.
+        try (final Stream<Path> files = Files.list(cacheDirectory)) {
+            assertEquals(2, files.count());
+        }
+    }
+
+    private static SegmentedGzipWriter.Segment get(
+            final GemSegmentCache cache, final File source, final AtomicInteger compressed) throws IOException {
+        final byte[] bytes = Files.readAllBytes(source.toPath());
+        final String key = GemSegmentCache.key(bytes.length, GemSegmentCache.sha256(bytes), GemCompression.SMALLEST);
+        return cache.get(key, source, GemCompression.SMALLEST, () -> {
+            compressed.incrementAndGet();
+            return SegmentedGzipWriter.compress(GemCompression.SMALLEST, new ByteArrayInputStream(bytes));
+        });
+    }
+
+    private static File write(final Path path, final String content, final long lastModified) throws IOException {
+        Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(path, FileTime.fromMillis(lastModified));
+        return path.toFile();
+    }
+}
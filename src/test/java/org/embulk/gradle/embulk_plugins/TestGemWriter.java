@@ -0,0 +1,229 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.AbstractConstruct;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
+import org.yaml.snakeyaml.nodes.MappingNode;
+import org.yaml.snakeyaml.nodes.Node;
+
+class TestGemWriter {
+    @Test
+    public void testOuterTar(@TempDir Path tempDir) throws IOException {
+        final Path gemPath = this.writeGem(tempDir);
+
+        assertEquals(0, Files.size(gemPath) % TarWriter.BLOCK_SIZE);
+        final List<TarReader.Entry> entries = readGem(gemPath);
+        assertEquals(3, entries.size());
+        assertEquals("data.tar.gz", entries.get(0).getFullName());
+        assertEquals("metadata.gz", entries.get(1).getFullName());
+        assertEquals("checksums.yaml.gz", entries.get(2).getFullName());
+
+        // The top-level entries are read-only, at the build time, as Gem::Package#build does.
+        for (final TarReader.Entry entry : entries) {
+            assertEquals("0000444\0", entry.field(100, 8));
+            assertEquals(String.format("%011o\0", entry.getContent().length), entry.field(124, 12));
+            assertEquals(String.format("%011o\0", BUILD_TIME), entry.field(136, 12));
+            assertEquals(String.format("%06o\0 ", entry.calculateChecksum()), entry.field(148, 8));
+            assertEquals("0", entry.field(156, 1));
+            assertEquals("ustar\0", entry.field(257, 6));
+            assertEquals("00", entry.field(263, 2));
+            assertEquals("wheel", entry.string(265, 32));
+            assertEquals("wheel", entry.string(297, 32));
+        }
+    }
+
+    @Test
+    public void testContents(@TempDir Path tempDir) throws IOException {
+        final Path gemPath = this.writeGem(tempDir);
+
+        final Map<String, byte[]> outer = TarReader.contents(readGem(gemPath));
+        final List<TarReader.Entry> entries = TarReader.read(
+                new ByteArrayInputStream(TarReader.gunzip(outer.get("data.tar.gz"))));
+        assertEquals(3, entries.size());
+
+        assertEquals(JAR_PATH, entries.get(0).getFullName());
+        assertEquals(0644, entries.get(0).getMode());
+        assertEquals(BUILD_TIME, entries.get(0).getMtime());
+        assertArrayEquals(jarContent(), entries.get(0).getContent());
+
+        // A path longer than 100 bytes is split into "prefix" and "name" as TarWriter#split_name does.
+        assertEquals("test1.rb", entries.get(1).getName());
+        assertEquals(LONG_PATH.substring(0, LONG_PATH.length() - "/test1.rb".length()), entries.get(1).getPrefix());
+        assertEquals(LONG_PATH, entries.get(1).getFullName());
+        assertEquals(0755, entries.get(1).getMode());
+
+        assertEquals(BOOTSTRAP_PATH, entries.get(2).getFullName());
+        assertArrayEquals(BOOTSTRAP, entries.get(2).getContent());
+    }
+
+    @Test
+    public void testMetadata(@TempDir Path tempDir) throws IOException {
+        final Path gemPath = this.writeGem(tempDir);
+        final Map<String, byte[]> outer = TarReader.contents(readGem(gemPath));
+
+        final String actual = new String(TarReader.gunzip(outer.get("metadata.gz")), StandardCharsets.UTF_8);
+
+        // The expected YAML is what `gem specification` prints for the same gem built by `gem build` on RubyGems 2.7.9.
+        // They are compared as parsed because Psych does not quote strings as GemSpecification#dumpYaml does.
+        final String expected;
+        try (final InputStream in = TestGemWriter.class.getClassLoader().getResourceAsStream("gem-specification.yaml")) {
+            expected = new String(readAll(in), StandardCharsets.UTF_8);
+        }
+        assertEquals(loadYaml(expected), loadYaml(actual));
+        assertEquals(Arrays.asList(
+                "name", "version", "platform", "authors", "autorequire", "bindir", "cert_chain", "date", "dependencies",
+                "description", "email", "executables", "extensions", "extra_rdoc_files", "files", "homepage",
+                "licenses", "metadata", "post_install_message", "rdoc_options", "require_paths", "required_ruby_version",
+                "required_rubygems_version", "requirements", "rubyforge_project", "rubygems_version", "signing_key",
+                "specification_version", "summary", "test_files"),
+                Arrays.asList(loadYaml(actual).keySet().stream().filter(key -> !key.equals(TAG)).toArray()));
+    }
+
+    @Test
+    public void testChecksums(@TempDir Path tempDir) throws IOException {
+        final Path gemPath = this.writeGem(tempDir);
+        final Map<String, byte[]> outer = TarReader.contents(readGem(gemPath));
+
+        final Map<Object, Object> checksums = loadYaml(
+                new String(TarReader.gunzip(outer.get("checksums.yaml.gz")), StandardCharsets.UTF_8));
+        assertEquals(Arrays.asList("SHA256", "SHA512"), Arrays.asList(checksums.keySet().toArray()));
+
+        for (final String algorithm : Arrays.asList("SHA256", "SHA512")) {
+            final Map<?, ?> expected = (Map<?, ?>) checksums.get(algorithm);
+            assertEquals(Arrays.asList("data.tar.gz", "metadata.gz"), Arrays.asList(expected.keySet().toArray()));
+            for (final String name : Arrays.asList("data.tar.gz", "metadata.gz")) {
+                assertEquals(expected.get(name), digest(algorithm, outer.get(name)));
+            }
+        }
+    }
+
+    private Path writeGem(final Path tempDir) throws IOException {
+        final Path gemPath = tempDir.resolve("embulk-input-test1-0.2.5-java.gem");
+        final Path jarPath = Files.write(tempDir.resolve("embulk-input-test1-0.2.5.jar"), jarContent());
+        try (final GemWriter writer = GemWriter.open(gemPath, BUILD_TIME)) {
+            writer.addContents(tar -> {
+                try (final InputStream in = Files.newInputStream(jarPath)) {
+                    tar.addFile(JAR_PATH, 0644, BUILD_TIME, Files.size(jarPath), in);
+                }
+                tar.addFile(LONG_PATH, 0755, BUILD_TIME, "# long\n".getBytes(StandardCharsets.UTF_8));
+                tar.addFile(BOOTSTRAP_PATH, 0644, BUILD_TIME, BOOTSTRAP);
+            });
+            final LinkedHashMap<String, String> metadata = new LinkedHashMap<>();
+            metadata.put("allowed_push_host", "https://rubygems.org");
+            writer.addMetadata(GemSpecification.builder()
+                    .name("embulk-input-test1")
+                    .version("0.2.5")
+                    .authors(Arrays.asList("Somebody Somewhere"))
+                    .summary("Example input plugin for Embulk")
+                    .description("Embulk input plugin for testing 1")
+                    .email(Arrays.asList("somebody@example.com"))
+                    .homepage("https://example.com")
+                    .licenses(Arrays.asList("Apache-2.0"))
+                    .metadata(metadata)
+                    .files(Arrays.asList(BOOTSTRAP_PATH, LONG_PATH, JAR_PATH))
+                    .date(Instant.ofEpochSecond(BUILD_TIME))
+                    .build());
+        }
+        return gemPath;
+    }
+
+    private static List<TarReader.Entry> readGem(final Path gemPath) throws IOException {
+        try (final InputStream in = Files.newInputStream(gemPath)) {
+            return TarReader.read(in);
+        }
+    }
+
+    private static byte[] jarContent() {
+        final byte[] content = new byte[100 * 1024 + 1];
+        new Random(42).nextBytes(content);
+        return content;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<Object, Object> loadYaml(final String yaml) {
+        return (Map<Object, Object>) new Yaml(new RubyObjectConstructor()).load(yaml);
+    }
+
+    /**
+     * Constructs Ruby objects, such as {@code Gem::Specification} and {@code Gem::Version}, as maps with their tags.
+     */
+    private static final class RubyObjectConstructor extends SafeConstructor {
+        RubyObjectConstructor() {
+            super();
+            this.yamlConstructors.put(null, new AbstractConstruct() {
+                @Override
+                public Object construct(final Node node) {
+                    final LinkedHashMap<Object, Object> object = new LinkedHashMap<>();
+                    object.put(TAG, node.getTag().getValue());
+                    object.putAll(RubyObjectConstructor.this.constructMapping((MappingNode) node));
+                    return object;
+                }
+            });
+        }
+    }
+
+    private static String digest(final String algorithm, final byte[] bytes) {
+        try {
+            return GemWriter.toHex(MessageDigest.getInstance(algorithm.replace("SHA", "SHA-")).digest(bytes));
+        } catch (final NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static byte[] readAll(final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static final String TAG = "!";
+
+    private static final long BUILD_TIME = 315619200L;
+
+    private static final String JAR_PATH = "classpath/embulk-input-test1-0.2.5.jar";
+    private static final String LONG_PATH =
+            "lib/embulk/input/" + String.join("/", Collections.nCopies(6, "long-directory")) + "/test1.rb";
+    private static final String BOOTSTRAP_PATH = "lib/embulk/input/test1.rb";
+    private static final byte[] BOOTSTRAP = "Embulk::JavaPlugin.register_input(\"test1\", \"Test1\")\n".getBytes(StandardCharsets.UTF_8);
+}
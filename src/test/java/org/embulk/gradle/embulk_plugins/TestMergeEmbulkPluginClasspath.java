@@ -0,0 +1,109 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.jar.JarInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TestMergeEmbulkPluginClasspath {
+    @Test
+    public void testMerge(@TempDir Path tempDir) throws IOException {
+        final File main = createJar(tempDir, "plugin.jar",
+                "META-INF/MANIFEST.MF", "Manifest-Version: 1.0\nEmbulk-Plugin-Type: example\n",
+                "org/embulk/input/example/ExampleInputPlugin.class", "plugin",
+                "META-INF/services/com.example.Spi", "org.embulk.input.example.Provider\n",
+                "log.properties", "plugin");
+        final File library = createJar(tempDir, "library.jar",
+                "META-INF/MANIFEST.MF", "Manifest-Version: 1.0\nCreated-By: library\n",
+                "META-INF/LIBRARY.SF", "signature",
+                "META-INF/LIBRARY.RSA", "signature",
+                "META-INF/services/com.example.Spi", "# Comment\ncom.example.Provider\norg.embulk.input.example.Provider\n",
+                "module-info.class", "module",
+                "com/example/Library.class", "library",
+                "log.properties", "library");
+
+        final Path output = tempDir.resolve("merged.jar");
+        final MergeEmbulkPluginClasspath.MergedJar merged =
+                MergeEmbulkPluginClasspath.MergedJar.merge(Arrays.asList(main, library), output);
+
+        assertEquals(1, merged.getServices());
+        assertEquals(3, merged.getDropped());
+        assertEquals(Collections.singletonMap("log.properties", Arrays.asList("plugin.jar", "library.jar")),
+                     merged.getConflicts());
+
+        try (final JarInputStream jar = new JarInputStream(Files.newInputStream(output))) {
+            assertEquals("example", jar.getManifest().getMainAttributes().getValue("Embulk-Plugin-Type"));
+        }
+        try (final ZipFile zipFile = new ZipFile(output.toFile())) {
+            final ArrayList<String> names = new ArrayList<>();
+            final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                names.add(entries.nextElement().getName());
+            }
+            assertEquals(Arrays.asList(
+                                 "META-INF/MANIFEST.MF",
+                                 "org/embulk/input/example/ExampleInputPlugin.class",
+                                 "log.properties",
+                                 "com/example/Library.class",
+                                 "META-INF/services/com.example.Spi"),
+                         names);
+            assertEquals("plugin", read(zipFile, "log.properties"));
+            assertEquals("org.embulk.input.example.Provider\ncom.example.Provider\n",
+                         read(zipFile, "META-INF/services/com.example.Spi"));
+            assertNull(zipFile.getEntry("META-INF/LIBRARY.SF"));
+        }
+    }
+
+    private static String read(final ZipFile zipFile, final String name) throws IOException {
+        try (final InputStream in = zipFile.getInputStream(zipFile.getEntry(name))) {
+            final byte[] buffer = new byte[1024];
+            final int read = in.read(buffer);
+            return new String(buffer, 0, read, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static File createJar(final Path tempDir, final String name, final String... entries) throws IOException {
+        final Path jar = tempDir.resolve(name);
+        try (final OutputStream out = Files.newOutputStream(jar);
+                final ZipOutputStream zip = new ZipOutputStream(out)) {
+            for (int i = 0; i < entries.length; i += 2) {
+                zip.putNextEntry(new ZipEntry(entries[i]));
+                zip.write(entries[i + 1].getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+        }
+        return jar.toFile();
+    }
+}
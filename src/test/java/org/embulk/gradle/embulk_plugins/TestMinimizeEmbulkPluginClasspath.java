@@ -0,0 +1,114 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TestMinimizeEmbulkPluginClasspath {
+    @Test
+    public void testFindReachable(@TempDir Path tempDir) throws IOException {
+        final MinimizeEmbulkPluginClasspath.ScannedJar main = MinimizeEmbulkPluginClasspath.ScannedJar.scan(
+                createJar(tempDir.resolve("plugin.jar"), Root.class));
+        final MinimizeEmbulkPluginClasspath.ScannedJar library = MinimizeEmbulkPluginClasspath.ScannedJar.scan(
+                createJar(tempDir.resolve("library.jar"), Referenced.class, Indirect.class, Unreferenced.class, Kept.class));
+
+        final Set<String> reachable = MinimizeEmbulkPluginClasspath.findReachable(
+                Collections.singletonList(main),
+                Collections.singletonList(library),
+                nameOf(Root.class),
+                Collections.singletonList(Kept.class.getName()),
+                true);
+
+        assertEquals(new HashSet<>(Arrays.asList(
+                             nameOf(Root.class), nameOf(Referenced.class), nameOf(Indirect.class), nameOf(Kept.class))),
+                     reachable);
+        assertFalse(reachable.contains(nameOf(Unreferenced.class)));
+    }
+
+    @Test
+    public void testMatches() {
+        assertTrue(MinimizeEmbulkPluginClasspath.matches("com.example.Foo", "com/example/Foo"));
+        assertTrue(MinimizeEmbulkPluginClasspath.matches("com.example.Foo", "com/example/Foo$Bar"));
+        assertFalse(MinimizeEmbulkPluginClasspath.matches("com.example.Foo", "com/example/FooBar"));
+        assertTrue(MinimizeEmbulkPluginClasspath.matches("com.example.*", "com/example/Foo"));
+        assertFalse(MinimizeEmbulkPluginClasspath.matches("com.example.*", "com/example/sub/Foo"));
+        assertTrue(MinimizeEmbulkPluginClasspath.matches("com.example.**", "com/example/sub/Foo"));
+        assertFalse(MinimizeEmbulkPluginClasspath.matches("com.example.**", "com/examples/Foo"));
+    }
+
+    static class Root {
+        Referenced referenced;
+    }
+
+    static class Referenced {
+        Indirect[] indirect() {
+            return null;
+        }
+    }
+
+    static class Indirect {
+    }
+
+    static class Unreferenced {
+    }
+
+    static class Kept {
+    }
+
+    private static String nameOf(final Class<?> klass) {
+        return klass.getName().replace('.', '/');
+    }
+
+    private static File createJar(final Path jar, final Class<?>... classes) throws IOException {
+        try (final OutputStream out = Files.newOutputStream(jar);
+                final ZipOutputStream zip = new ZipOutputStream(out)) {
+            for (final Class<?> klass : classes) {
+                zip.putNextEntry(new ZipEntry(nameOf(klass) + ".class"));
+                try (final InputStream in = klass.getResourceAsStream("/" + nameOf(klass) + ".class")) {
+                    final byte[] buffer = new byte[8192];
+                    int read;
+                    while ((read = in.read(buffer)) >= 0) {
+                        zip.write(buffer, 0, read);
+                    }
+                }
+                zip.closeEntry();
+            }
+            zip.putNextEntry(new ZipEntry("META-INF/services/java.lang.Runnable"));
+            zip.write("# No providers.\n".getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+        }
+        return jar.toFile();
+    }
+}
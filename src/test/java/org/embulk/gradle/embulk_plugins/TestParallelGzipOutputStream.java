@@ -0,0 +1,69 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import org.junit.jupiter.api.Test;
+
+class TestParallelGzipOutputStream {
+    @Test
+    public void testRoundTrip() throws IOException {
+        // Compressible data across many blocks, and a tail shorter than a block.
+        final Random random = new Random(42);
+        final byte[] data = new byte[ParallelGzipOutputStream.BLOCK_SIZE * 9 + 12345];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ('a' + random.nextInt(4));
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        final ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        try {
+            try (final ParallelGzipOutputStream out =
+                         new ParallelGzipOutputStream(gzipped, GemCompression.SMALLEST, executor, 4)) {
+                // Written in uneven chunks to cross block boundaries.
+                int offset = 0;
+                while (offset < data.length) {
+                    final int length = Math.min(data.length - offset, 1 + random.nextInt(100000));
+                    out.write(data, offset, length);
+                    offset += length;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // GZIPInputStream verifies CRC-32 and the length in the trailer.
+        final ByteArrayOutputStream gunzipped = new ByteArrayOutputStream();
+        try (final InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped.toByteArray()))) {
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                gunzipped.write(buffer, 0, read);
+            }
+        }
+        assertArrayEquals(data, gunzipped.toByteArray());
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TestRubyGemsClient {
+    @BeforeEach
+    public void startServer() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.server.start();
+        this.host = "http://127.0.0.1:" + this.server.getAddress().getPort() + "/";
+        this.requestBodies = Collections.synchronizedList(new ArrayList<>());
+        this.authorizations = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    @AfterEach
+    public void stopServer() {
+        this.server.stop(0);
+    }
+
+    @Test
+    public void testPush(@TempDir Path tempDir) throws IOException {
+        final Path gemPath = createGemFile(tempDir);
+        this.server.createContext("/api/v1/gems", exchange -> {
+            this.record(exchange);
+            respond(exchange, 200, "Successfully registered gem: embulk-input-test1 (0.1.0-java)");
+        });
+
+        final RubyGemsClient.PushResult result = this.newClient().push(gemPath);
+
+        assertEquals("Successfully registered gem: embulk-input-test1 (0.1.0-java)", result.getMessage());
+        assertEquals(Files.size(gemPath), result.getBytes());
+        assertEquals(1, result.getAttempts());
+        assertEquals(1, this.requestBodies.size());
+        assertArrayEquals(Files.readAllBytes(gemPath), this.requestBodies.get(0));
+        assertEquals(Arrays.asList("0123456789abcdef"), this.authorizations);
+    }
+
+    @Test
+    public void testRetryOnServerErrorIfNotPushed(@TempDir Path tempDir) throws IOException {
+        final Path gemPath = createRealGemFile(tempDir);
+        final GemFileInfo gem = GemFileInfo.read(gemPath);
+        final AtomicInteger count = new AtomicInteger(0);
+        final AtomicInteger versionsCount = new AtomicInteger(0);
+        this.server.createContext("/api/v1/versions/embulk-input-test1.json", exchange -> {
+            versionsCount.incrementAndGet();
+            respond(exchange, 404, "This rubygem could not be found.");
+        });
+        this.server.createContext("/api/v1/gems", exchange -> {
+            this.record(exchange);
+            if (count.incrementAndGet() < 3) {
+                respond(exchange, 503, "Service Unavailable");
+            } else {
+                respond(exchange, 200, "Successfully registered gem");
+            }
+        });
+
+        final RubyGemsClient.PushResult result = this.newClient().push(gemPath, gem);
+
+        assertEquals(3, result.getAttempts());
+        assertEquals(3, this.requestBodies.size());
+        assertEquals(2, versionsCount.get());
+        for (final byte[] body : this.requestBodies) {
+            assertArrayEquals(Files.readAllBytes(gemPath), body);
+        }
+    }
+
+    @Test
+    public void testNoRetryOnServerErrorIfPushed(@TempDir Path tempDir) throws IOException {
+        final Path gemPath = createRealGemFile(tempDir);
+        final GemFileInfo gem = GemFileInfo.read(gemPath);
+        this.server.createContext("/api/v1/versions/embulk-input-test1.json", exchange -> {
+            respond(exchange, 200, "[{\"number\":\"0.1.0\",\"platform\":\"java\",\"sha\":\"" + gem.getSha256() + "\"}]");
+        });
+        this.server.createContext("/api/v1/gems", exchange -> {
+            this.record(exchange);
+            respond(exchange, 502, "Bad Gateway");
+        });
+
+        final RubyGemsClient.PushResult result = this.newClient().push(gemPath, gem);
+
+        assertFalse(result.isSkipped());
+        assertEquals(1, result.getAttempts());
+        assertEquals(1, this.requestBodies.size());
+    }
+
+    @Test
+    public void testFailOnServerErrorIfPushedDifferently(@TempDir Path tempDir) throws IOException {
+        final Path gemPath = createRealGemFile(tempDir);
+        final GemFileInfo gem = GemFileInfo.read(gemPath);
+        this.server.createContext("/api/v1/versions/embulk-input-test1.json", exchange -> {
+            respond(exchange, 200, "[{\"number\":\"0.1.0\",\"platform\":\"java\",\"sha\":\"0123\"}]");
+        });
+        this.server.createContext("/api/v1/gems", exchange -> {
+            this.record(exchange);
+            respond(exchange, 502, "Bad Gateway");
+        });
+
+        assertThrows(IOException.class, () -> this.newClient().push(gemPath, gem));
+        assertEquals(1, this.requestBodies.size());
+    }
+
+    @Test
+    public void testNoRetryOnServerErrorWithoutGem(@TempDir Path tempDir) throws IOException {
+        final Path gemPath = createGemFile(tempDir);
+        this.server.createContext("/api/v1/gems", exchange -> {
+            this.record(exchange);
+            respond(exchange, 503, "Service Unavailable");
+        });
+
+        assertThrows(IOException.class, () -> this.newClient().push(gemPath));
+        assertEquals(1, this.requestBodies.size());
+    }
+
+    @Test
+    public void testRetryOnTooManyRequests(@TempDir Path tempDir) throws IOException {
+        final Path gemPath = createGemFile(tempDir);
+        final AtomicInteger count = new AtomicInteger(0);
+        this.server.createContext("/api/v1/gems", exchange -> {
+            this.record(exchange);
+            if (count.incrementAndGet() < 3) {
+                respond(exchange, 429, "Too Many Requests");
+            } else {
+                respond(exchange, 200, "Successfully registered gem");
+            }
+        });
+
+        final RubyGemsClient.PushResult result = this.newClient().push(gemPath);
+
+        assertEquals(3, result.getAttempts());
+        assertEquals(3, this.requestBodies.size());
+        for (final byte[] body : this.requestBodies) {
+            assertArrayEquals(Files.readAllBytes(gemPath), body);
+        }
+    }
+
+    @Test
+    public void testNoRetryOnClientError(@TempDir Path tempDir) throws IOException {
+        final Path gemPath = createGemFile(tempDir);
+        this.server.createContext("/api/v1/gems", exchange -> {
+            this.record(exchange);
+            respond(exchange, 409, "Repushing of gem versions is not allowed.");
+        });
+
+        final RubyGemsClient.ResponseException ex =
+                assertThrows(RubyGemsClient.ResponseException.class, () -> this.newClient().push(gemPath));
+
+        assertEquals(409, ex.getStatusCode());
+        assertEquals("HTTP 409: Repushing of gem versions is not allowed.", ex.getMessage());
+        assertEquals(1, this.requestBodies.size());
+    }
+
+    @Test
+    public void testSkipIfPushed(@TempDir Path tempDir) throws IOException {
+        final Path gemPath = createRealGemFile(tempDir);
+        final GemFileInfo gem = GemFileInfo.read(gemPath);
+        assertEquals("embulk-input-test1", gem.getName());
+        assertEquals("0.1.0", gem.getVersion());
+        assertEquals("java", gem.getPlatform());
+
+        this.server.createContext("/api/v1/versions/embulk-input-test1.json", exchange -> {
+            respond(exchange, 200, "[{\"number\":\"0.2.0\",\"platform\":\"java\",\"sha\":\"0123\"},"
+                                   + "{\"number\":\"0.1.0\",\"platform\":\"java\",\"sha\":\"" + gem.getSha256() + "\"}]");
+        });
+        this.server.createContext("/api/v1/gems", exchange -> {
+            this.record(exchange);
+            respond(exchange, 409, "Repushing of gem versions is not allowed.");
+        });
+
+        final RubyGemsClient.PushResult result = this.newClient().pushUnlessPushed(gemPath, gem);
+
+        assertTrue(result.isSkipped());
+        assertEquals(0, this.requestBodies.size());
+    }
+
+    @Test
+    public void testFailIfPushedDifferently(@TempDir Path tempDir) throws IOException {
+        final Path gemPath = createRealGemFile(tempDir);
+        final GemFileInfo gem = GemFileInfo.read(gemPath);
+        this.server.createContext("/api/v1/versions/embulk-input-test1.json", exchange -> {
+            respond(exchange, 200, "[{\"number\":\"0.1.0\",\"platform\":\"java\",\"sha\":\"0123\"}]");
+        });
+        this.server.createContext("/api/v1/gems", exchange -> {
+            this.record(exchange);
+            respond(exchange, 409, "Repushing of gem versions is not allowed.");
+        });
+
+        assertThrows(IOException.class, () -> this.newClient().pushUnlessPushed(gemPath, gem));
+        assertEquals(0, this.requestBodies.size());
+    }
+
+    @Test
+    public void testPushIfNotPushed(@TempDir Path tempDir) throws IOException {
+        final Path gemPath = createRealGemFile(tempDir);
+        final GemFileInfo gem = GemFileInfo.read(gemPath);
+        this.server.createContext("/api/v1/versions/embulk-input-test1.json", exchange -> {
+            respond(exchange, 404, "This rubygem could not be found.");
+        });
+        this.server.createContext("/api/v1/gems", exchange -> {
+            this.record(exchange);
+            respond(exchange, 200, "Successfully registered gem: embulk-input-test1 (0.1.0-java)");
+        });
+
+        final RubyGemsClient.PushResult result = this.newClient().pushUnlessPushed(gemPath, gem);
+
+        assertFalse(result.isSkipped());
+        assertEquals(1, this.requestBodies.size());
+        assertArrayEquals(Files.readAllBytes(gemPath), this.requestBodies.get(0));
+    }
+
+    @Test
+    public void testFindApiKeyInCredentials() {
+        final List<String> credentials = Arrays.asList(
+                "---",
+                ":rubygems_api_key: default0123",
+                "https://gems.example.com: example4567",
+                "\"http://localhost:9292\": 'local89ab'");
+
+        assertEquals("default0123", RubyGemsClient.findApiKeyInCredentials(credentials, "https://rubygems.org"));
+        assertEquals("example4567", RubyGemsClient.findApiKeyInCredentials(credentials, "https://gems.example.com/"));
+        assertEquals("local89ab", RubyGemsClient.findApiKeyInCredentials(credentials, "http://localhost:9292"));
+        assertNull(RubyGemsClient.findApiKeyInCredentials(Arrays.asList("---"), "https://rubygems.org"));
+    }
+
+    private RubyGemsClient newClient() {
+        return RubyGemsClient.builder()
+                .host(this.host)
+                .apiKey("0123456789abcdef")
+                .connectTimeout(Duration.ofSeconds(5))
+                .readTimeout(Duration.ofSeconds(5))
+                .maxRetries(3)
+                .retryInterval(Duration.ofMillis(10))
+                .build();
+    }
+
+    private void record(final HttpExchange exchange) throws IOException {
+        assertEquals("POST", exchange.getRequestMethod());
+        this.authorizations.add(exchange.getRequestHeaders().getFirst("Authorization"));
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (final InputStream in = exchange.getRequestBody()) {
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                body.write(buffer, 0, read);
+            }
+        }
+        this.requestBodies.add(body.toByteArray());
+    }
+
+    private static void respond(final HttpExchange exchange, final int statusCode, final String body) throws IOException {
+        final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(statusCode, bytes.length);
+        try (final OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static Path createGemFile(final Path tempDir) throws IOException {
+        final byte[] content = new byte[300 * 1024];
+        new Random(42).nextBytes(content);
+        return Files.write(tempDir.resolve("embulk-input-test1-0.1.0-java.gem"), content);
+    }
+
+    private static Path createRealGemFile(final Path tempDir) throws IOException {
+        final Path gemPath = tempDir.resolve("embulk-input-test1-0.1.0-java.gem");
+        try (final GemWriter writer = GemWriter.open(gemPath, 315619200L)) {
+            writer.addContents(tar -> {
+                tar.addFile("lib/embulk/input/test1.rb", 0644, 315619200L, "# test\n".getBytes(StandardCharsets.UTF_8));
+            });
+            writer.addMetadata(GemSpecification.builder()
+                    .name("embulk-input-test1")
+                    .version("0.1.0")
+                    .authors(Arrays.asList("Somebody Somewhere"))
+                    .summary("Test")
+                    .files(Arrays.asList("lib/embulk/input/test1.rb"))
+                    .build());
+        }
+        return gemPath;
+    }
+
+    private HttpServer server;
+    private String host;
+    private List<byte[]> requestBodies;
+    private List<String> authorizations;
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import org.junit.jupiter.api.Test;
+
+class TestSegmentedGzipWriter {
+    @Test
+    public void testConcatenatedSegments() throws IOException {
+        final Random random = new Random(42);
+        final byte[][] chunks = {
+            randomBytes(random, 300 * 1024),
+            new byte[0],
+            "lib/embulk/input/test1.rb".getBytes(StandardCharsets.UTF_8),
+            new byte[200 * 1024],
+            randomBytes(random, 1),
+        };
+
+        final ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        try (final SegmentedGzipWriter writer = new SegmentedGzipWriter(gzipped)) {
+            for (final byte[] chunk : chunks) {
+                writer.write(SegmentedGzipWriter.compress(GemCompression.SMALLEST, new ByteArrayInputStream(chunk)));
+                expected.write(chunk);
+            }
+        }
+
+        // GZIPInputStream verifies CRC-32 and the length in the trailer.
+        assertArrayEquals(expected.toByteArray(), gunzip(gzipped.toByteArray()));
+    }
+
+    @Test
+    public void testCombineCrc32() {
+        final Random random = new Random(42);
+        for (final int length : new int[] { 0, 1, 7, 512, 65536, 100003 }) {
+            final byte[] first = randomBytes(random, 1000);
+            final byte[] second = randomBytes(random, length);
+
+            final CRC32 whole = new CRC32();
+            whole.update(first);
+            whole.update(second);
+
+            assertEquals((int) whole.getValue(), SegmentedGzipWriter.combineCrc32(crc32(first), crc32(second), length));
+        }
+    }
+
+    private static byte[] gunzip(final byte[] gzipped) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (final InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped))) {
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static int crc32(final byte[] bytes) {
+        final CRC32 crc32 = new CRC32();
+        crc32.update(bytes);
+        return (int) crc32.getValue();
+    }
+
+    private static byte[] randomBytes(final Random random, final int length) {
+        final byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2019 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.gradle.embulk_plugins;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class TestTarWriter {
+    @Test
+    public void testHeader() throws IOException {
+        final TarReader.Entry entry = TarReader.header(TarWriter.createHeader("lib/embulk/input/test1.rb", 0100755, 315619200L, 1234L));
+
+        // Fields are laid out as Gem::Package::TarHeader::PACK_FORMAT in RubyGems 2.7.9.
+        assertEquals("lib/embulk/input/test1.rb", entry.getName());
+        assertEquals("0000755\0", entry.field(100, 8));  // mode -- only the permission bits
+        assertEquals("0000000\0", entry.field(108, 8));  // uid
+        assertEquals("0000000\0", entry.field(116, 8));  // gid
+        assertEquals("00000002322\0", entry.field(124, 12));  // size
+        assertEquals("02263773600\0", entry.field(136, 12));  // mtime
+        assertEquals("0", entry.field(156, 1));  // typeflag
+        assertEquals("ustar\0", entry.field(257, 6));  // magic
+        assertEquals("00", entry.field(263, 2));  // version
+        assertEquals("wheel", entry.string(265, 32));  // uname
+        assertEquals("wheel", entry.string(297, 32));  // gname
+        assertEquals("0000000\0", entry.field(329, 8));  // devmajor
+        assertEquals("0000000\0", entry.field(337, 8));  // devminor
+        assertEquals("", entry.getPrefix());
+
+        // The checksum is six octal digits, NUL, and a space.
+        assertEquals(String.format("%06o\0 ", entry.calculateChecksum()), entry.field(148, 8));
+
+        assertEquals(0755, entry.getMode());
+        assertEquals(1234L, entry.getSize());
+        assertEquals(315619200L, entry.getMtime());
+    }
+
+    @Test
+    public void testNameOf100Bytes() throws IOException {
+        final String fullName = "classpath/" + repeat('a', 86) + ".jar";
+        assertEquals(100, fullName.length());
+
+        final TarReader.Entry entry = TarReader.header(TarWriter.createHeader(fullName, 0644, 0L, 0L));
+        assertEquals(fullName, entry.getName());
+        assertEquals("", entry.getPrefix());
+    }
+
+    @Test
+    public void testSplitNameOver100Bytes() throws IOException {
+        // The name is only the last part as TarWriter#split_name does, not the longest possible.
+        final String fullName = "lib/embulk/" + repeat('b', 50) + "/" + repeat('c', 40) + "/test1.rb";
+        assertEquals(111, fullName.length());
+
+        final TarReader.Entry entry = TarReader.header(TarWriter.createHeader(fullName, 0644, 0L, 0L));
+        assertEquals("test1.rb", entry.getName());
+        assertEquals("lib/embulk/" + repeat('b', 50) + "/" + repeat('c', 40), entry.getPrefix());
+        assertEquals(fullName, entry.getFullName());
+    }
+
+    @Test
+    public void testSplitNameWithLongPrefix() throws IOException {
+        // The name takes more parts while the prefix is longer than 155 bytes.
+        final String fullName = repeat('d', 100) + "/" + repeat('e', 50) + "/" + repeat('f', 30) + "/test1.rb";
+
+        final TarReader.Entry entry = TarReader.header(TarWriter.createHeader(fullName, 0644, 0L, 0L));
+        assertEquals(repeat('f', 30) + "/test1.rb", entry.getName());
+        assertEquals(repeat('d', 100) + "/" + repeat('e', 50), entry.getPrefix());
+        assertEquals(fullName, entry.getFullName());
+    }
+
+    @Test
+    public void testTooLongNames() {
+        assertThrows(IOException.class, () -> TarWriter.createHeader(repeat('g', 101), 0644, 0L, 0L));
+        assertThrows(IOException.class, () -> TarWriter.createHeader("lib/" + repeat('h', 101), 0644, 0L, 0L));
+        assertThrows(IOException.class, () -> TarWriter.createHeader(repeat('i', 200) + "/" + repeat('j', 50), 0644, 0L, 0L));
+        assertThrows(IOException.class, () -> TarWriter.createHeader(repeat('k', 128) + "/" + repeat('l', 128), 0644, 0L, 0L));
+    }
+
+    @Test
+    public void testArchive() throws IOException {
+        final byte[] content1 = "# test\n".getBytes(StandardCharsets.UTF_8);
+        final byte[] content2 = new byte[TarWriter.BLOCK_SIZE * 2];
+        Arrays.fill(content2, (byte) 'x');
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (final TarWriter tar = new TarWriter(out)) {
+            tar.addFile("lib/embulk/input/test1.rb", 0644, 315619200L, content1);
+            tar.addFile("classpath/test1.jar", 0644, 315619200L, content2.length, new ByteArrayInputStream(content2));
+        }
+        assertEquals(0, out.size() % TarWriter.BLOCK_SIZE);
+
+        final List<TarReader.Entry> entries = TarReader.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(2, entries.size());
+        assertEquals("lib/embulk/input/test1.rb", entries.get(0).getFullName());
+        assertArrayEquals(content1, entries.get(0).getContent());
+        assertEquals("classpath/test1.jar", entries.get(1).getFullName());
+        assertArrayEquals(content2, entries.get(1).getContent());
+    }
+
+    @Test
+    public void testSizeMismatch() {
+        final byte[] content = new byte[10];
+        assertThrows(IOException.class, () -> {
+            new TarWriter(new ByteArrayOutputStream()).addFile("a", 0644, 0L, 11, new ByteArrayInputStream(content));
+        });
+        assertThrows(IOException.class, () -> {
+            new TarWriter(new ByteArrayOutputStream()).addFile("a", 0644, 0L, 9, new ByteArrayInputStream(content));
+        });
+    }
+
+    private static String repeat(final char c, final int count) {
+        return String.join("", Collections.nCopies(count, String.valueOf(c)));
+    }
+}